@@ -29,6 +29,7 @@ public class APDURes {
     private int sw1;
     private int sw2;
     private byte[] apdu;
+    private String hex;
 
     /**
      * Constructor [data || sw1 || sw2].
@@ -62,7 +63,44 @@ public class APDURes {
     /** @return full apdu bytes (data and sw). */
     public byte[] getBytes() { return apdu; }
 
-    /** @return hex apdu (data and sw). */
-    public String toString() { return Hex.b2s(apdu); }
+    /** @return hex apdu (data and sw), encoded on first call. */
+    public String toString() {
+        if (hex == null) {
+            hex = Hex.b2s(apdu);
+        }
+        return hex;
+    }
+
+    /**
+     * Hex view of apdu that encodes only the chars read.  Checking the
+     * status word with <code>charAt</code> or <code>subSequence</code>
+     * near the end does not encode the data.
+     * @return lazy hex view (data and sw)
+     */
+    public CharSequence toHex() {
+        return hex != null ? hex : new HexView();
+    }
+
+    private class HexView implements CharSequence {
+        public int length() { return apdu.length * 2; }
+
+        public char charAt(int index) {
+            int b = apdu[index >> 1] & 0xff;
+            return Hex.HEX_DIGITS[(index & 1) == 0 ? b >> 4 : b & 0x0f];
+        }
+
+        public CharSequence subSequence(int start, int end) {
+            if (start < 0 || end > length() || start > end) {
+                throw new IndexOutOfBoundsException("start " + start + ", end " + end + ", length " + length());
+            }
+            char[] c = new char[end - start];
+            for (int i = start; i < end; i++) {
+                c[i - start] = charAt(i);
+            }
+            return new String(c);
+        }
+
+        public String toString() { return APDURes.this.toString(); }
+    }
 
 }
@@ -0,0 +1,317 @@
+/*
+ * Copyright 2009-2011 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.java.jless.smartcard;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiled APDU script.  Hex parsing is done once by {@link #compile(String)},
+ * running the script only copies bound variables into pre-encoded commands.
+ * <pre>
+ * # comment
+ * var KEY 16                               declare 16 byte variable
+ * 00a4040007 a0000000031010       : 9000   expected sw
+ * 80d8000013 8010 ${KEY} 00                expected sw defaults to 9000
+ * 00c0000000                      : 61xx   x matches any nibble
+ * 00b0000000                      : *      any sw
+ * </pre>
+ * Non-hex chars other than <code>${NAME}</code> are ignored in commands, so
+ * whitespace can be used freely.  Lc is not adjusted, variables have fixed
+ * length so the script must include the correct Lc.
+ */
+public class APDUScript {
+    private byte[][] commands;
+    private int[] sw;
+    private int[] swMask;
+    private int[] lineNums;
+    // variable bindings for each command, pairs of (var index, offset), null if none
+    private int[][] bindings;
+    private String[] varNames;
+    private int[] varLens;
+
+    private APDUScript(List<byte[]> commands, List<int[]> sws, List<Integer> lineNums, List<int[]> bindings,
+            Map<String, Integer> varIndex, List<Integer> varLens) {
+        int n = commands.size();
+        this.commands = commands.toArray(new byte[n][]);
+        this.bindings = bindings.toArray(new int[n][]);
+        this.sw = new int[n];
+        this.swMask = new int[n];
+        this.lineNums = new int[n];
+        for (int i = 0; i < n; i++) {
+            sw[i] = sws.get(i)[0];
+            swMask[i] = sws.get(i)[1];
+            this.lineNums[i] = lineNums.get(i);
+        }
+        this.varNames = varIndex.keySet().toArray(new String[varIndex.size()]);
+        this.varLens = new int[varLens.size()];
+        for (int i = 0; i < this.varLens.length; i++) {
+            this.varLens[i] = varLens.get(i);
+        }
+    }
+
+    /**
+     * Compile script.
+     * @param script script text
+     * @return compiled script
+     * @throws IllegalArgumentException if script is invalid
+     */
+    public static APDUScript compile(String script) {
+        try {
+            return compile(new StringReader(script));
+        } catch (IOException e) {
+            // does not happen with StringReader
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Compile script.
+     * @param script script text
+     * @return compiled script
+     * @throws IOException if error reading script
+     * @throws IllegalArgumentException if script is invalid
+     */
+    public static APDUScript compile(Reader script) throws IOException {
+        BufferedReader in = new BufferedReader(script);
+        List<byte[]> commands = new ArrayList<byte[]>();
+        List<int[]> sws = new ArrayList<int[]>();
+        List<Integer> lineNums = new ArrayList<Integer>();
+        List<int[]> bindings = new ArrayList<int[]>();
+        Map<String, Integer> varIndex = new LinkedHashMap<String, Integer>();
+        List<Integer> varLens = new ArrayList<Integer>();
+
+        int lineNum = 0;
+        for (String line = in.readLine(); line != null; line = in.readLine()) {
+            lineNum++;
+            int hash = line.indexOf('#');
+            if (hash >= 0) {
+                line = line.substring(0, hash);
+            }
+            line = line.trim();
+            if (line.length() == 0) {
+                continue;
+            }
+
+            // var NAME LEN
+            if (line.startsWith("var ")) {
+                String[] parts = line.split("\\s+");
+                if (parts.length != 3) {
+                    throw new IllegalArgumentException("line " + lineNum + ": expected 'var NAME LEN', got: " + line);
+                }
+                if (varIndex.containsKey(parts[1])) {
+                    throw new IllegalArgumentException("line " + lineNum + ": duplicate var " + parts[1]);
+                }
+                try {
+                    varLens.add(Integer.valueOf(parts[2]));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("line " + lineNum + ": invalid var len: " + parts[2]);
+                }
+                varIndex.put(parts[1], varIndex.size());
+                continue;
+            }
+
+            // command [: sw]
+            String cmd = line;
+            int[] expected = {0x9000, 0xffff};
+            int colon = line.lastIndexOf(':');
+            if (colon >= 0) {
+                cmd = line.substring(0, colon);
+                expected = parseSW(line.substring(colon + 1).trim(), lineNum);
+            }
+
+            // split on ${NAME}, hex parts are decoded, vars are left as zeros
+            List<byte[]> parts = new ArrayList<byte[]>();
+            List<Integer> binding = new ArrayList<Integer>();
+            int offset = 0;
+            int i = 0;
+            while (i < cmd.length()) {
+                int start = cmd.indexOf("${", i);
+                String hex = start < 0 ? cmd.substring(i) : cmd.substring(i, start);
+                byte[] buf = Hex.s2b(hex);
+                if (countHex(hex) % 2 != 0) {
+                    throw new IllegalArgumentException("line " + lineNum + ": odd number of hex chars: " + hex.trim());
+                }
+                parts.add(buf);
+                offset += buf.length;
+                if (start < 0) {
+                    break;
+                }
+                int end = cmd.indexOf('}', start);
+                if (end < 0) {
+                    throw new IllegalArgumentException("line " + lineNum + ": unterminated ${");
+                }
+                String name = cmd.substring(start + 2, end);
+                Integer var = varIndex.get(name);
+                if (var == null) {
+                    throw new IllegalArgumentException("line " + lineNum + ": undeclared var " + name);
+                }
+                binding.add(var);
+                binding.add(offset);
+                int len = varLens.get(var);
+                parts.add(new byte[len]);
+                offset += len;
+                i = end + 1;
+            }
+            byte[] apdu = Buf.cat(parts.toArray(new byte[parts.size()][]));
+            if (apdu.length < 4) {
+                throw new IllegalArgumentException("line " + lineNum + ": APDU must be at least 4 bytes, got: "
+                        + Hex.b2s(apdu));
+            }
+            int[] b = null;
+            if (binding.size() > 0) {
+                b = new int[binding.size()];
+                for (int j = 0; j < b.length; j++) {
+                    b[j] = binding.get(j);
+                }
+            }
+            commands.add(apdu);
+            sws.add(expected);
+            lineNums.add(lineNum);
+            bindings.add(b);
+        }
+        return new APDUScript(commands, sws, lineNums, bindings, varIndex, varLens);
+    }
+
+    private static int countHex(String s) {
+        int count = 0;
+        for (int i = 0; i < s.length(); i++) {
+            if (Hex.HEX_S2B[s.charAt(i) & 0xff] >= 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // returns {sw, mask}
+    private static int[] parseSW(String s, int lineNum) {
+        if (s.equals("*")) {
+            return new int[] {0, 0};
+        }
+        if (s.length() != 4) {
+            throw new IllegalArgumentException("line " + lineNum + ": expected 4 char sw, got: " + s);
+        }
+        int sw = 0;
+        int mask = 0;
+        for (int i = 0; i < 4; i++) {
+            char c = s.charAt(i);
+            sw <<= 4;
+            mask <<= 4;
+            if (c == 'x' || c == 'X') {
+                continue;
+            }
+            int n = Hex.HEX_S2B[c & 0xff];
+            if (n < 0) {
+                throw new IllegalArgumentException("line " + lineNum + ": invalid sw: " + s);
+            }
+            sw |= n;
+            mask |= 0xf;
+        }
+        return new int[] {sw, mask};
+    }
+
+    /** @return number of commands. */
+    public int size() { return commands.length; }
+
+    /** @return variable names and lengths in order of declaration. */
+    public Map<String, Integer> getVars() {
+        Map<String, Integer> result = new LinkedHashMap<String, Integer>();
+        for (int i = 0; i < varNames.length; i++) {
+            result.put(varNames[i], varLens[i]);
+        }
+        return result;
+    }
+
+    /**
+     * @param i command index
+     * @return script line number of command
+     */
+    public int getLineNum(int i) { return lineNums[i]; }
+
+    /**
+     * @param i command index
+     * @param sw status word
+     * @return true if sw matches expected sw for command
+     */
+    public boolean isExpected(int i, int sw) { return (sw & swMask[i]) == this.sw[i]; }
+
+    /**
+     * Bind variables into commands.  Commands without variables are
+     * returned without copying and must not be modified.
+     * @param values variable values, must include all declared vars with correct length
+     * @return commands
+     * @throws IllegalArgumentException if a value is missing or wrong length
+     */
+    public byte[][] bind(Map<String, byte[]> values) {
+        byte[][] vals = new byte[varNames.length][];
+        for (int i = 0; i < varNames.length; i++) {
+            vals[i] = values == null ? null : values.get(varNames[i]);
+            if (vals[i] == null || vals[i].length != varLens[i]) {
+                throw new IllegalArgumentException("var " + varNames[i] + " must be " + varLens[i] + " bytes, got: "
+                        + Hex.b2s(vals[i]));
+            }
+        }
+        byte[][] result = new byte[commands.length][];
+        for (int i = 0; i < commands.length; i++) {
+            int[] b = bindings[i];
+            if (b == null) {
+                result[i] = commands[i];
+                continue;
+            }
+            byte[] apdu = commands[i].clone();
+            for (int j = 0; j < b.length; j += 2) {
+                byte[] val = vals[b[j]];
+                System.arraycopy(val, 0, apdu, b[j + 1], val.length);
+            }
+            result[i] = apdu;
+        }
+        return result;
+    }
+
+    /**
+     * Run script.  Stops at first unexpected status word.
+     * @param card card
+     * @param values variable values
+     * @return responses
+     * @throws SmartcardException if error or unexpected status word
+     */
+    public APDURes[] run(Smartcard card, Map<String, byte[]> values) throws SmartcardException {
+        byte[][] apdus = bind(values);
+        APDURes[] result = new APDURes[apdus.length];
+        for (int i = 0; i < apdus.length; i++) {
+            result[i] = card.transmit(apdus[i]);
+            int actual = result[i].getSW();
+            if ((actual & swMask[i]) != sw[i]) {
+                throw new SmartcardException(String.format("line %d: expected sw %04x/%04x, got %04x",
+                        lineNums[i], sw[i], swMask[i], actual), actual);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2009-2011 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.java.jless.smartcard;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ATR parser (ISO 7816-3 interface bytes, ISO 7816-4 historical bytes).
+ * <pre>
+ * |TS |T0 |TA1|TB1|TC1|TD1|TA2|...|TDi|...|T1...TK|TCK|
+ * </pre>
+ * Interface bytes are indexed from 1 as per the standard, so
+ * {@link #getTA(int)} with 1 returns TA1.  Missing bytes return -1.
+ */
+public class ATR {
+    /** Clock rate conversion integer Fi indexed by high nibble of TA1, -1 if RFU. */
+    public static final int[] FI = {372, 372, 558, 744, 1116, 1488, 1860, -1, -1, 512, 768, 1024, 1536, 2048, -1, -1};
+    /** Max clock frequency (kHz) indexed by high nibble of TA1, -1 if RFU. */
+    public static final int[] FMAX_KHZ = {4000, 5000, 6000, 8000, 12000, 16000, 20000, -1, -1, 5000, 7500, 10000, 15000, 20000, -1, -1};
+    /** Baud rate adjustment integer Di indexed by low nibble of TA1, -1 if RFU. */
+    public static final int[] DI = {-1, 1, 2, 4, 8, 16, 32, 64, 12, 20, -1, -1, -1, -1, -1, -1};
+
+    /** Card capabilities (3rd software function byte) - command chaining. */
+    public static final int CAP_COMMAND_CHAINING = 0x80;
+    /** Card capabilities (3rd software function byte) - extended Lc and Le. */
+    public static final int CAP_EXTENDED_LENGTH = 0x40;
+    /** Card capabilities (3rd software function byte) - extended length info in EF.ATR/INFO. */
+    public static final int CAP_EXTENDED_LENGTH_INFO = 0x20;
+
+    private byte[] atr;
+    private int ts;
+    private int t0;
+    // interface bytes, index 0 unused
+    private List<int[]> ifBytes = new ArrayList<int[]>();
+    private int protocols; // bitmask 1 << T
+    private int histStart;
+    private int histLen;
+    private int tck = -1;
+    private int cardCapabilities = -1;
+
+    /**
+     * Constructor.
+     * @param atr ATR bytes
+     * @throws IllegalArgumentException if ATR is malformed
+     */
+    public ATR(byte[] atr) {
+        if (atr == null || atr.length < 2) {
+            throw new IllegalArgumentException("ATR must be at least 2 bytes, got: " + Hex.b2s(atr));
+        }
+        this.atr = atr;
+        ts = atr[0] & 0xff;
+        if (ts != 0x3b && ts != 0x3f) {
+            throw new IllegalArgumentException("Invalid TS, expected 3b or 3f, got: " + Hex.b2s(atr));
+        }
+        t0 = atr[1] & 0xff;
+        histLen = t0 & 0x0f;
+        ifBytes.add(null);
+
+        int i = 2; // index into atr
+        int y = t0 >> 4;
+        boolean tckPresent = false;
+        while (true) {
+            // TAi, TBi, TCi, TDi
+            int[] abcd = {-1, -1, -1, -1};
+            for (int j = 0; j < 4; j++) {
+                if ((y & (1 << j)) != 0) {
+                    if (i >= atr.length) {
+                        throw new IllegalArgumentException("ATR truncated in interface bytes: " + Hex.b2s(atr));
+                    }
+                    abcd[j] = atr[i++] & 0xff;
+                }
+            }
+            ifBytes.add(abcd);
+            if (abcd[3] < 0) {
+                break;
+            }
+            int t = abcd[3] & 0x0f;
+            protocols |= 1 << t;
+            if (t != 0) {
+                tckPresent = true;
+            }
+            y = abcd[3] >> 4;
+        }
+        // T=0 is implied if no TD1
+        if (getTD(1) < 0) {
+            protocols |= 1;
+        }
+
+        histStart = i;
+        if (histStart + histLen > atr.length) {
+            throw new IllegalArgumentException("ATR truncated in historical bytes: " + Hex.b2s(atr));
+        }
+        if (tckPresent && histStart + histLen < atr.length) {
+            tck = atr[histStart + histLen] & 0xff;
+        }
+        parseHistoricalBytes();
+    }
+
+    /**
+     * Constructor taking hex string.
+     * @param hexAtr hex ATR
+     */
+    public ATR(String hexAtr) {
+        this(Hex.s2b(hexAtr));
+    }
+
+    // compact-TLV historical bytes, only the card capabilities DO is used
+    private void parseHistoricalBytes() {
+        if (histLen == 0) {
+            return;
+        }
+        int cat = atr[histStart] & 0xff;
+        int end = histStart + histLen;
+        if (cat == 0x00) {
+            end -= 3; // mandatory status indicator at end
+        } else if (cat != 0x80) {
+            return;
+        }
+        int i = histStart + 1;
+        while (i < end) {
+            int tag = (atr[i] >> 4) & 0x0f;
+            int len = atr[i] & 0x0f;
+            i++;
+            if (i + len > end) {
+                return;
+            }
+            // card capabilities, 3rd byte is data coding byte 2 (chaining, extended length)
+            if (tag == 7 && len >= 3) {
+                cardCapabilities = atr[i + 2] & 0xff;
+            }
+            i += len;
+        }
+    }
+
+    /** @return ATR bytes. */
+    public byte[] getBytes() { return atr; }
+    /** @return TS (0x3b direct or 0x3f inverse convention). */
+    public int getTS() { return ts; }
+    /** @return T0. */
+    public int getT0() { return t0; }
+    /** @return TAi or -1 if not present. */
+    public int getTA(int i) { return ifByte(i, 0); }
+    /** @return TBi or -1 if not present. */
+    public int getTB(int i) { return ifByte(i, 1); }
+    /** @return TCi or -1 if not present. */
+    public int getTC(int i) { return ifByte(i, 2); }
+    /** @return TDi or -1 if not present. */
+    public int getTD(int i) { return ifByte(i, 3); }
+    /** @return TCK or -1 if not present. */
+    public int getTCK() { return tck; }
+
+    private int ifByte(int i, int abcd) {
+        return i > 0 && i < ifBytes.size() ? ifBytes.get(i)[abcd] : -1;
+    }
+
+    /** @return historical bytes. */
+    public byte[] getHistoricalBytes() { return Buf.substring(atr, histStart, histLen); }
+
+    /**
+     * @param t protocol number (0 or 1)
+     * @return true if protocol T=t is indicated
+     */
+    public boolean supportsProtocol(int t) { return (protocols & (1 << t)) != 0; }
+
+    /** @return true if card is in specific mode (TA2 present). */
+    public boolean isSpecificMode() { return getTA(2) >= 0; }
+
+    /** @return Fi index (high nibble TA1), default 1. */
+    public int getFiIndex() { int ta1 = getTA(1); return ta1 < 0 ? 1 : ta1 >> 4; }
+    /** @return Di index (low nibble TA1), default 1. */
+    public int getDiIndex() { int ta1 = getTA(1); return ta1 < 0 ? 1 : ta1 & 0x0f; }
+    /** @return max Fi supported by card, -1 if RFU. */
+    public int getFi() { return FI[getFiIndex()]; }
+    /** @return max Di supported by card, -1 if RFU. */
+    public int getDi() { return DI[getDiIndex()]; }
+    /** @return max clock frequency (kHz) supported by card, -1 if RFU. */
+    public int getFmaxKHz() { return FMAX_KHZ[getFiIndex()]; }
+
+    /**
+     * Baud rate achievable with max Fi/Di at given clock.
+     * @param clockKHz clock frequency in kHz
+     * @return baud rate or -1 if Fi or Di are RFU
+     */
+    public int getBaudRate(int clockKHz) {
+        int fi = getFi();
+        int di = getDi();
+        if (fi < 0 || di < 0) {
+            return -1;
+        }
+        return (int) (clockKHz * 1000L * di / fi);
+    }
+
+    /** @return IFSC for T=1 (first TAi, i &gt; 2, after T=1 indicated), default 32. */
+    public int getIFSC() {
+        // TA2 is the specific mode byte, IFSC starts from TA3
+        for (int i = 3; i < ifBytes.size(); i++) {
+            if (getTD(i - 1) >= 0 && (getTD(i - 1) & 0x0f) == 1 && getTA(i) >= 0) {
+                return getTA(i);
+            }
+        }
+        return 32;
+    }
+
+    /** @return card capabilities data coding byte, or -1 if not in historical bytes. */
+    public int getCardCapabilities() { return cardCapabilities; }
+
+    /** @return true if historical bytes indicate command chaining. */
+    public boolean isCommandChainingSupported() {
+        return cardCapabilities >= 0 && (cardCapabilities & CAP_COMMAND_CHAINING) != 0;
+    }
+
+    /** @return true if historical bytes indicate extended Lc and Le. */
+    public boolean isExtendedLengthSupported() {
+        return cardCapabilities >= 0 && (cardCapabilities & CAP_EXTENDED_LENGTH) != 0;
+    }
+
+    /** @return max data in single command, 65535 if extended length supported else 255. */
+    public int getMaxCommandDataLen() { return isExtendedLengthSupported() ? 65535 : 255; }
+
+    /** @return max data in single response, 65536 if extended length supported else 256. */
+    public int getMaxResponseDataLen() { return isExtendedLengthSupported() ? 65536 : 256; }
+
+    /**
+     * Protocol to use when connecting.  In specific mode the protocol is
+     * fixed by TA2.  Otherwise T=1 is preferred over T=0 since it is
+     * block oriented and does not need GET RESPONSE for case 4 commands.
+     * @return "T=1", "T=0" or "*" if neither is indicated
+     */
+    public String getPreferredProtocol() {
+        if (isSpecificMode()) {
+            int t = getTA(2) & 0x0f;
+            return t <= 1 ? "T=" + t : "*";
+        }
+        if (supportsProtocol(1)) {
+            return "T=1";
+        } else if (supportsProtocol(0)) {
+            return "T=0";
+        }
+        return "*";
+    }
+
+    /** @return hex ATR. */
+    public String toString() { return Hex.b2s(atr); }
+}
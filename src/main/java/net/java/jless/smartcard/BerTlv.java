@@ -0,0 +1,299 @@
+/*
+ * Copyright 2009-2011 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.java.jless.smartcard;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * BER-TLV view over a byte array.  Values are not copied, a BerTlv
+ * holds offsets into the original array.  Children of constructed
+ * TLVs are parsed lazily when iterated, and {@link #find(int)} builds
+ * a small index of direct children on first use for repeated lookups.
+ * <pre>
+ * BerTlv fci = BerTlv.parse(res);             // no copy of response
+ * BerTlv pdol = fci.find(0xa5, 0x9f38);        // path relative to children of 6f
+ * </pre>
+ * Tags are returned as int with all tag bytes, e.g. 0x9f38.
+ * Zero padding bytes between TLVs are skipped.
+ */
+public class BerTlv {
+    private byte[] buf;
+    private int offset;
+    private int tag;
+    private int valueOffset;
+    private int length;
+    // pairs of (tag, offset) for direct children, built on first find
+    private int[] index;
+
+    private BerTlv(byte[] buf, int offset, int limit) {
+        this.buf = buf;
+        this.offset = offset;
+        int i = offset;
+        if (i >= limit) {
+            throw new IllegalArgumentException("no tag at offset " + offset);
+        }
+        int b = buf[i++] & 0xff;
+        tag = b;
+        if ((b & 0x1f) == 0x1f) {
+            do {
+                if (i >= limit) {
+                    throw new IllegalArgumentException("truncated tag at offset " + offset);
+                }
+                if (i - offset >= 4) {
+                    throw new IllegalArgumentException("tag longer than 4 bytes at offset " + offset);
+                }
+                b = buf[i++] & 0xff;
+                tag = (tag << 8) | b;
+            } while ((b & 0x80) != 0);
+        }
+        if (i >= limit) {
+            throw new IllegalArgumentException("truncated length at offset " + offset);
+        }
+        int len = buf[i++] & 0xff;
+        if (len > 0x80) {
+            int n = len & 0x7f;
+            if (n > 3 || i + n > limit) {
+                throw new IllegalArgumentException("invalid length at offset " + offset);
+            }
+            len = 0;
+            while (n-- > 0) {
+                len = (len << 8) | (buf[i++] & 0xff);
+            }
+        } else if (len == 0x80) {
+            throw new IllegalArgumentException("indefinite length not supported at offset " + offset);
+        }
+        if (i + len > limit) {
+            throw new IllegalArgumentException(String.format("tag %x at offset %d has length %d beyond end %d",
+                    tag, offset, len, limit));
+        }
+        valueOffset = i;
+        length = len;
+    }
+
+    /**
+     * Parse TLV at start of buf.
+     * @param buf buf
+     * @return tlv
+     * @throws IllegalArgumentException if invalid
+     */
+    public static BerTlv parse(byte[] buf) {
+        return parse(buf, 0, buf.length);
+    }
+
+    /**
+     * Parse TLV at offset.
+     * @param buf buf
+     * @param offset offset of tag
+     * @param len max len of TLV
+     * @return tlv
+     * @throws IllegalArgumentException if invalid
+     */
+    public static BerTlv parse(byte[] buf, int offset, int len) {
+        return new BerTlv(buf, offset, offset + len);
+    }
+
+    /**
+     * Parse TLV at start of response data, using response bytes without copy.
+     * @param res response
+     * @return tlv
+     * @throws IllegalArgumentException if invalid
+     */
+    public static BerTlv parse(APDURes res) {
+        return parse(res.getBytes(), 0, res.getBytes().length - 2);
+    }
+
+    /**
+     * Parse TLV at buffer position.  Heap buffers are used without copy,
+     * remaining bytes of direct buffers are copied once.
+     * @param bb buffer, position is not changed
+     * @return tlv
+     * @throws IllegalArgumentException if invalid
+     */
+    public static BerTlv parse(ByteBuffer bb) {
+        if (bb.hasArray()) {
+            return parse(bb.array(), bb.arrayOffset() + bb.position(), bb.remaining());
+        }
+        byte[] buf = new byte[bb.remaining()];
+        bb.duplicate().get(buf);
+        return parse(buf);
+    }
+
+    /**
+     * Iterate sequence of TLVs, e.g. response data with several top level TLVs.
+     * @param buf buf
+     * @param offset offset of first tag
+     * @param len len of all TLVs
+     * @return lazy iterable
+     */
+    public static Iterable<BerTlv> iterate(final byte[] buf, final int offset, final int len) {
+        return new Iterable<BerTlv>() {
+            public Iterator<BerTlv> iterator() {
+                return new TlvIterator(buf, offset, offset + len);
+            }
+        };
+    }
+
+    /**
+     * Find TLV by path in sequence of TLVs.
+     * @param buf buf
+     * @param offset offset of first tag
+     * @param len len of all TLVs
+     * @param path tags from top level down
+     * @return tlv or null if not found
+     */
+    public static BerTlv find(byte[] buf, int offset, int len, int... path) {
+        for (BerTlv tlv : iterate(buf, offset, len)) {
+            if (tlv.tag == path[0]) {
+                return path.length == 1 ? tlv : tlv.find(path, 1);
+            }
+        }
+        return null;
+    }
+
+    /** @return tag, e.g. 0x9f38. */
+    public int getTag() { return tag; }
+    /** @return true if constructed (bit 6 of first tag byte). */
+    public boolean isConstructed() { return (buf[offset] & 0x20) != 0; }
+    /** @return underlying buf. */
+    public byte[] getBuf() { return buf; }
+    /** @return offset of tag in buf. */
+    public int getOffset() { return offset; }
+    /** @return offset of value in buf. */
+    public int getValueOffset() { return valueOffset; }
+    /** @return len of value. */
+    public int getLength() { return length; }
+    /** @return offset after end of value. */
+    public int getEnd() { return valueOffset + length; }
+    /** @return len of whole TLV. */
+    public int getTotalLength() { return getEnd() - offset; }
+
+    /** @return copy of value. */
+    public byte[] getValue() { return Buf.substring(buf, valueOffset, length); }
+
+    /** @return value as read only buffer without copy. */
+    public ByteBuffer getValueBuffer() { return ByteBuffer.wrap(buf, valueOffset, length).slice().asReadOnlyBuffer(); }
+
+    /**
+     * @return value as unsigned big-endian int
+     * @throws IllegalArgumentException if value longer than 4 bytes
+     */
+    public int getInt() {
+        if (length > 4) {
+            throw new IllegalArgumentException(String.format("tag %x value too long for int: %d", tag, length));
+        }
+        int result = 0;
+        for (int i = valueOffset; i < valueOffset + length; i++) {
+            result = (result << 8) | (buf[i] & 0xff);
+        }
+        return result;
+    }
+
+    /** @return lazy iterable over children. */
+    public Iterable<BerTlv> children() {
+        return iterate(buf, valueOffset, length);
+    }
+
+    /**
+     * Find direct child.  An index of children is built on first call.
+     * @param childTag tag
+     * @return child or null if not found
+     */
+    public BerTlv find(int childTag) {
+        if (index == null) {
+            int n = 0;
+            int[] idx = new int[8];
+            for (BerTlv child : children()) {
+                if (n + 2 > idx.length) {
+                    int[] tmp = new int[idx.length * 2];
+                    System.arraycopy(idx, 0, tmp, 0, n);
+                    idx = tmp;
+                }
+                idx[n++] = child.tag;
+                idx[n++] = child.offset;
+            }
+            index = n == idx.length ? idx : Arrays.copyOf(idx, n);
+        }
+        for (int i = 0; i < index.length; i += 2) {
+            if (index[i] == childTag) {
+                return new BerTlv(buf, index[i + 1], getEnd());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find descendant by path of tags below this TLV.
+     * @param path tags, first tag is a child of this TLV
+     * @return tlv or null if not found
+     */
+    public BerTlv find(int... path) {
+        return find(path, 0);
+    }
+
+    private BerTlv find(int[] path, int start) {
+        BerTlv tlv = this;
+        for (int i = start; i < path.length && tlv != null; i++) {
+            tlv = tlv.isConstructed() ? tlv.find(path[i]) : null;
+        }
+        return tlv;
+    }
+
+    /** @return hex of whole TLV. */
+    public String toString() { return Hex.b2s(buf, offset, getTotalLength()); }
+
+    private static class TlvIterator implements Iterator<BerTlv> {
+        private byte[] buf;
+        private int pos;
+        private int end;
+
+        TlvIterator(byte[] buf, int pos, int end) {
+            this.buf = buf;
+            this.pos = pos;
+            this.end = end;
+            skipPadding();
+        }
+
+        private void skipPadding() {
+            while (pos < end && buf[pos] == 0) {
+                pos++;
+            }
+        }
+
+        public boolean hasNext() { return pos < end; }
+
+        public BerTlv next() {
+            if (pos >= end) {
+                throw new NoSuchElementException();
+            }
+            BerTlv tlv = new BerTlv(buf, pos, end);
+            pos = tlv.getEnd();
+            skipPadding();
+            return tlv;
+        }
+
+        public void remove() { throw new UnsupportedOperationException(); }
+    }
+}
@@ -21,10 +21,6 @@
  */
 package net.java.jless.smartcard;
 
-import java.security.SecureRandom;
-
-
-
 /**
  * Byte array utils.
  * @author Joel Hockey
@@ -122,13 +118,13 @@ public class Buf {
     }
 
     /**
-     * Return random bytes
+     * Return random bytes from {@link CardEntropy#getDefault()}.
      * @param numBytes number of bytes
      * @return random bytes
      */
     public static byte[] random(int numBytes) {
         byte[] buf = new byte[numBytes];
-        new SecureRandom().nextBytes(buf);
+        CardEntropy.getDefault().nextBytes(buf);
         return buf;
     }
 
@@ -143,15 +139,24 @@ public class Buf {
         }
 
         byte[] result = new byte[sa.length * 2];
-        // start at rhs and work back
-        int j = result.length - 1;
-        for (int i = sa.length - 1; i >= 0; i--) {
+        s2b(result, 0, sa);
+        return result;
+    }
+
+    /**
+     * Write shorts into dest as 16-bit big-endian values.
+     * @param dest destination
+     * @param pos position to start writing
+     * @param sa short array
+     * @return position after last byte written
+     */
+    public static int s2b(byte[] dest, int pos, short... sa) {
+        for (int i = 0; i < sa.length; i++) {
             int val = sa[i];
-            result[j--] = (byte) val;
-            val >>= 8;
-            result[j--] = (byte) val;
+            dest[pos++] = (byte) (val >> 8);
+            dest[pos++] = (byte) val;
         }
-        return result;
+        return pos;
     }
 
     /**
@@ -165,19 +170,83 @@ public class Buf {
         }
 
         byte[] result = new byte[ia.length * 4];
-        // start at rhs and work back
-        int j = result.length - 1;
-        for (int i = ia.length - 1; i >= 0; i--) {
+        i2b(result, 0, ia);
+        return result;
+    }
+
+    /**
+     * Write ints into dest as 32-bit big-endian values.
+     * @param dest destination
+     * @param pos position to start writing
+     * @param ia int array
+     * @return position after last byte written
+     */
+    public static int i2b(byte[] dest, int pos, int... ia) {
+        for (int i = 0; i < ia.length; i++) {
             int val = ia[i];
-            result[j--] = (byte) val;
-            val >>= 8;
-            result[j--] = (byte) val;
-            val >>= 8;
-            result[j--] = (byte) val;
-            val >>= 8;
-            result[j--] = (byte) val;
+            dest[pos++] = (byte) (val >> 24);
+            dest[pos++] = (byte) (val >> 16);
+            dest[pos++] = (byte) (val >> 8);
+            dest[pos++] = (byte) val;
         }
+        return pos;
+    }
+
+    /**
+     * Convert byte array of 16-bit big-endian values into shorts.
+     * @param buf byte array, odd trailing byte is ignored
+     * @return shorts
+     */
+    public static short[] b2s(byte[] buf) {
+        short[] result = new short[buf.length / 2];
+        b2s(buf, 0, result, 0, result.length);
         return result;
     }
 
+    /**
+     * Read 16-bit big-endian values into dest.
+     * @param src source
+     * @param pos position to start reading
+     * @param dest destination
+     * @param destPos position in dest to start writing
+     * @param n number of shorts
+     * @return position in src after last byte read
+     */
+    public static int b2s(byte[] src, int pos, short[] dest, int destPos, int n) {
+        for (int i = 0; i < n; i++) {
+            dest[destPos + i] = (short) (((src[pos] & 0xff) << 8) | (src[pos + 1] & 0xff));
+            pos += 2;
+        }
+        return pos;
+    }
+
+    /**
+     * Convert byte array of 32-bit big-endian values into ints.
+     * @param buf byte array, trailing bytes that do not make an int are ignored
+     * @return ints
+     */
+    public static int[] b2i(byte[] buf) {
+        int[] result = new int[buf.length / 4];
+        b2i(buf, 0, result, 0, result.length);
+        return result;
+    }
+
+    /**
+     * Read 32-bit big-endian values into dest.
+     * @param src source
+     * @param pos position to start reading
+     * @param dest destination
+     * @param destPos position in dest to start writing
+     * @param n number of ints
+     * @return position in src after last byte read
+     */
+    public static int b2i(byte[] src, int pos, int[] dest, int destPos, int n) {
+        for (int i = 0; i < n; i++) {
+            dest[destPos + i] = ((src[pos] & 0xff) << 24) | ((src[pos + 1] & 0xff) << 16)
+                    | ((src[pos + 2] & 0xff) << 8) | (src[pos + 3] & 0xff);
+            pos += 4;
+        }
+        return pos;
+    }
+
 }
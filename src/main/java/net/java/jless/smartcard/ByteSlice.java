@@ -0,0 +1,216 @@
+/*
+ * Copyright 2008-2011 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.java.jless.smartcard;
+
+/**
+ * Immutable view of part of a byte array.  Uses the same indexing and
+ * padding rules as {@link Buf#substring(byte[], int, int)}, but padding is
+ * virtual and nothing is copied until {@link #writeTo(byte[], int)},
+ * {@link #toByteArray()} or {@link #cat(ByteSlice...)}.
+ * The underlying array must not be modified while the slice is in use.
+ * @see Buf
+ */
+public class ByteSlice {
+    private static final byte[] EMPTY = new byte[0];
+
+    private byte[] array;
+    private int offset; // offset in array of first real byte
+    private int padLeft; // zero bytes before first real byte
+    private int count; // real bytes
+    private int length; // total length including padding
+
+    private ByteSlice(byte[] array, int offset, int padLeft, int count, int length) {
+        this.array = array;
+        this.offset = offset;
+        this.padLeft = padLeft;
+        this.count = count;
+        this.length = length;
+    }
+
+    /**
+     * Slice of whole buf.
+     * @param src buf, null is treated as empty
+     * @return slice
+     */
+    public static ByteSlice of(byte[] src) {
+        src = src == null ? EMPTY : src;
+        return new ByteSlice(src, 0, 0, src.length, src.length);
+    }
+
+    /**
+     * Slice of buf.  Allows negative indexing as per python.
+     * If range of slice outside range of buf, then slice is zero-padded.
+     * Slice will be left justified if start is positive,
+     * right-justified if start is negative.
+     * @param src buf, null is treated as empty
+     * @param start index to start
+     * @param len length of slice
+     * @return slice
+     */
+    public static ByteSlice of(byte[] src, int start, int len) {
+        return of(src).slice(start, len);
+    }
+
+    /**
+     * Slice of buf from start to end.
+     * @param src buf
+     * @param start index to start
+     * @return slice
+     */
+    public static ByteSlice of(byte[] src, int start) {
+        return of(src).slice(start);
+    }
+
+    /**
+     * Slice of this slice with same rules as {@link #of(byte[], int, int)}.
+     * @param start index to start
+     * @param len length of slice
+     * @return slice
+     */
+    public ByteSlice slice(int start, int len) {
+        if (len < 0) {
+            throw new IllegalArgumentException("len cannot be negative, got: " + len);
+        }
+        if (start == 0 && len == length) {
+            return this;
+        }
+        boolean right = start < 0;
+        int s = right ? start + length : start;
+        // window [s, s + len) intersected with [0, length)
+        int a = Math.max(s, 0);
+        int b = Math.min(s + len, length);
+        if (a >= b) {
+            return new ByteSlice(array, offset, 0, 0, len);
+        }
+        int pos = right ? len - (b - a) : a - s; // where [a, b) goes in result
+        // real bytes of this slice within [a, b)
+        int ra = Math.max(a, padLeft);
+        int rb = Math.min(b, padLeft + count);
+        if (ra >= rb) {
+            return new ByteSlice(array, offset, 0, 0, len);
+        }
+        return new ByteSlice(array, offset + ra - padLeft, pos + ra - a, rb - ra, len);
+    }
+
+    /**
+     * Slice from start to end.
+     * @param start index to start
+     * @return slice
+     */
+    public ByteSlice slice(int start) {
+        return slice(start, length - start);
+    }
+
+    /** @return length including padding. */
+    public int length() { return length; }
+
+    /**
+     * Byte at index, negative index counts from end.
+     * @param i index
+     * @return byte, 0 for padding
+     */
+    public byte get(int i) {
+        if (i < 0) {
+            i += length;
+        }
+        if (i < 0 || i >= length) {
+            throw new IndexOutOfBoundsException("index " + i + " outside slice of length " + length);
+        }
+        i -= padLeft;
+        return i >= 0 && i < count ? array[offset + i] : 0;
+    }
+
+    /**
+     * Write slice into dest.
+     * @param dest destination
+     * @param pos position to start writing
+     * @return position after last byte written
+     */
+    public int writeTo(byte[] dest, int pos) {
+        for (int i = 0; i < padLeft; i++) {
+            dest[pos + i] = 0;
+        }
+        System.arraycopy(array, offset, dest, pos + padLeft, count);
+        for (int i = padLeft + count; i < length; i++) {
+            dest[pos + i] = 0;
+        }
+        return pos + length;
+    }
+
+    /**
+     * Slice as byte array.  As with {@link Buf#substring(byte[], int, int)},
+     * the underlying array is returned if the slice covers all of it.
+     * @return bytes
+     */
+    public byte[] toByteArray() {
+        if (offset == 0 && padLeft == 0 && count == array.length && length == count) {
+            return array;
+        }
+        byte[] result = new byte[length];
+        writeTo(result, 0);
+        return result;
+    }
+
+    /**
+     * Total length of parts.
+     * @param parts slices, null entries are ignored
+     * @return sum of lengths
+     */
+    public static int length(ByteSlice... parts) {
+        int len = 0;
+        for (ByteSlice part : parts) {
+            len += part == null ? 0 : part.length;
+        }
+        return len;
+    }
+
+    /**
+     * Concatenate slices with a single copy of each.
+     * @param parts slices, null entries are ignored
+     * @return concatenated
+     */
+    public static byte[] cat(ByteSlice... parts) {
+        byte[] result = new byte[length(parts)];
+        cat(result, 0, parts);
+        return result;
+    }
+
+    /**
+     * Concatenate slices into dest.
+     * @param dest destination
+     * @param pos position to start writing
+     * @param parts slices, null entries are ignored
+     * @return position after last byte written
+     */
+    public static int cat(byte[] dest, int pos, ByteSlice... parts) {
+        for (ByteSlice part : parts) {
+            if (part != null) {
+                pos = part.writeTo(dest, pos);
+            }
+        }
+        return pos;
+    }
+
+    /** @return hex of slice. */
+    public String toString() { return Hex.b2s(toByteArray()); }
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright 2009-2011 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.java.jless.smartcard;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Loads a Java Card package with GlobalPlatform INSTALL [for load] and
+ * LOAD.  IJC files are memory mapped, CAP files are unzipped once into
+ * a direct buffer in load order.  LOAD blocks are built straight from
+ * that buffer into each command, and the next block is built on another
+ * thread while the card processes the current one.  A loader is
+ * read-only once opened and can load many cards concurrently.
+ * <pre>
+ * CapLoader loader = new CapLoader(new File("applet.cap"));
+ * loader.load(scp, Hex.s2b("a000000151000000"));
+ * </pre>
+ * Descriptor and Debug components are not loaded.
+ */
+public class CapLoader {
+    private static final SmartcardLog log = SmartcardLog.getLog(CapLoader.class);
+
+    // load order, Descriptor (11) and Debug (12) omitted
+    private static final String[] COMPONENTS = {"Header", "Directory", "Import", "Applet", "Class", "Method",
+        "StaticField", "Export", "ConstantPool", "RefLocation"};
+
+    private static final ExecutorService PRODUCERS = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "smartcard-caploader");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private ByteBuffer image;
+    private byte[] header;
+    private byte[] packageAID;
+    private int blockSize;
+    private ReaderProfileCache profiles;
+
+    /**
+     * Open CAP (zip) or IJC file.
+     * @param file CAP or IJC file
+     * @throws IOException if file cannot be read or has no Header component
+     */
+    public CapLoader(File file) throws IOException {
+        if (file.getName().toLowerCase().endsWith(".ijc")) {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                image = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            } finally {
+                raf.close();
+            }
+        } else {
+            image = readCap(file);
+        }
+        // Header: tag(1) size(2) magic(4) minor(1) major(1) flags(1) pkg minor(1) pkg major(1) AID len(1) AID
+        if (image.remaining() < 13 || image.get(0) != 1) {
+            throw new IOException("no Header component at start of " + file);
+        }
+        packageAID = new byte[image.get(12) & 0xff];
+        ByteBuffer b = image.duplicate();
+        b.position(13);
+        b.get(packageAID);
+
+        // load file data block tag C4 with BER length
+        int len = image.remaining();
+        if (len < 0x80) {
+            header = new byte[] {(byte) 0xc4, (byte) len};
+        } else if (len < 0x100) {
+            header = new byte[] {(byte) 0xc4, (byte) 0x81, (byte) len};
+        } else if (len < 0x10000) {
+            header = new byte[] {(byte) 0xc4, (byte) 0x82, (byte) (len >> 8), (byte) len};
+        } else {
+            header = new byte[] {(byte) 0xc4, (byte) 0x83, (byte) (len >> 16), (byte) (len >> 8), (byte) len};
+        }
+    }
+
+    private static ByteBuffer readCap(File file) throws IOException {
+        ZipFile zip = new ZipFile(file);
+        try {
+            List<ZipEntry> entries = new ArrayList<ZipEntry>();
+            int total = 0;
+            for (String name : COMPONENTS) {
+                ZipEntry found = null;
+                for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); ) {
+                    ZipEntry entry = e.nextElement();
+                    if (entry.getName().endsWith("/javacard/" + name + ".cap")) {
+                        found = entry;
+                        break;
+                    }
+                }
+                if (found != null) {
+                    if (found.getSize() < 0) {
+                        throw new IOException("unknown size for " + found.getName() + " in " + file);
+                    }
+                    entries.add(found);
+                    total += (int) found.getSize();
+                }
+            }
+            ByteBuffer buf = ByteBuffer.allocateDirect(total);
+            byte[] tmp = new byte[8192];
+            for (ZipEntry entry : entries) {
+                InputStream in = zip.getInputStream(entry);
+                try {
+                    for (int n; (n = in.read(tmp)) > 0; ) {
+                        buf.put(tmp, 0, n);
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+            buf.flip();
+            return buf.asReadOnlyBuffer();
+        } finally {
+            zip.close();
+        }
+    }
+
+    /** @return package AID. */
+    public byte[] getPackageAID() { return packageAID.clone(); }
+
+    /** @return size of load file data block including C4 tag and length. */
+    public int getLoadFileSize() { return header.length + image.remaining(); }
+
+    /**
+     * LOAD data len when no {@link SCP03Smartcard} is found and no reader
+     * profile is known, fits a short APDU after SCP03 C-MAC and
+     * C-DECRYPTION so a secure channel the loader cannot see is still safe.
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 239;
+
+    /** @param blockSize LOAD data len, 0 (default) for largest that fits the card stack */
+    public void setBlockSize(int blockSize) { this.blockSize = blockSize; }
+
+    /** @param profiles reader profiles from {@link ReaderTuner}, limit block size to the reader's chain size */
+    public void setProfileCache(ReaderProfileCache profiles) { this.profiles = profiles; }
+
+    /**
+     * LOAD data len for card.  Command data is limited to 255, or to the
+     * chain size of the reader's {@link ReaderProfile} if a profile cache
+     * is set.  If an {@link SCP03Smartcard} is found in the stack of
+     * {@link SmartcardDecorator}s its wrapping overhead at the current
+     * security level is taken off, else room for C-MAC and C-DECRYPTION
+     * is left.
+     * @param card card
+     * @return block size
+     */
+    public int getBlockSize(Smartcard card) {
+        if (blockSize > 0) {
+            return blockSize;
+        }
+        int max = 255;
+        ReaderProfile profile = profiles == null ? null : profiles.get(card.getIFDName(), Hex.b2s(card.getATR()));
+        if (profile != null) {
+            max = Math.min(max, profile.getChainSize());
+        }
+        SCP03Smartcard scp = SmartcardUtil.find(card, SCP03Smartcard.class);
+        if (scp != null) {
+            return scp.getMaxDataLen(max);
+        }
+        return SCP03Smartcard.maxDataLen(max, true);
+    }
+
+    /**
+     * Send INSTALL [for load] and all LOAD blocks.
+     * @param card card, usually with secure channel open
+     * @param sdAID security domain AID, or null for the ISD
+     * @throws SmartcardException if card rejects any command
+     */
+    public void load(Smartcard card, byte[] sdAID) throws SmartcardException {
+        byte[] sd = sdAID == null ? new byte[0] : sdAID;
+        byte[] install = Buf.cat(new byte[] {(byte) packageAID.length}, packageAID,
+                new byte[] {(byte) sd.length}, sd, new byte[3]);
+        check(card.transmit(SmartcardUtil.formatAPDU(0x80, 0xe6, 0x02, 0x00, install, 0)), "INSTALL [for load]");
+
+        final int size = getBlockSize(card);
+        final int total = getLoadFileSize();
+        final int blocks = (total + size - 1) / size;
+        if (blocks > 256) {
+            throw new SmartcardException("load file needs " + blocks + " blocks of " + size
+                    + " bytes, max is 256, increase block size");
+        }
+        final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(2);
+        final ByteBuffer src = image.duplicate();
+        Future<?> producer = PRODUCERS.submit(new Runnable() {
+            public void run() {
+                try {
+                    for (int i = 0; i < blocks; i++) {
+                        queue.put(block(src, i, blocks, size, total));
+                    }
+                } catch (InterruptedException e) {
+                    // load aborted
+                }
+            }
+        });
+        try {
+            for (int i = 0; i < blocks; i++) {
+                byte[] apdu = next(queue, producer);
+                check(card.transmit(apdu), "LOAD block " + i);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SmartcardException(e);
+        } finally {
+            producer.cancel(true);
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("loaded " + Hex.b2s(packageAID) + " in " + blocks + " blocks to " + card.getIFDName());
+        }
+    }
+
+    // next block, fails instead of waiting forever if producer died
+    private static byte[] next(BlockingQueue<byte[]> queue, Future<?> producer)
+            throws InterruptedException, SmartcardException {
+        while (true) {
+            byte[] apdu = queue.poll(100, TimeUnit.MILLISECONDS);
+            if (apdu != null) {
+                return apdu;
+            }
+            if (producer.isDone()) {
+                apdu = queue.poll();
+                if (apdu != null) {
+                    return apdu;
+                }
+                try {
+                    producer.get();
+                } catch (ExecutionException e) {
+                    throw new SmartcardException(e.getCause());
+                }
+                throw new SmartcardException("LOAD block producer stopped early");
+            }
+        }
+    }
+
+    // LOAD command for block i, reading sequentially from src
+    private byte[] block(ByteBuffer src, int i, int blocks, int size, int total) {
+        int off = i * size;
+        int len = Math.min(size, total - off);
+        byte[] apdu = new byte[5 + len];
+        apdu[0] = (byte) 0x80;
+        apdu[1] = (byte) 0xe8;
+        apdu[2] = (byte) (i == blocks - 1 ? 0x80 : 0x00);
+        apdu[3] = (byte) i;
+        apdu[4] = (byte) len;
+        int p = 5;
+        if (off < header.length) {
+            int n = Math.min(header.length - off, len);
+            System.arraycopy(header, off, apdu, p, n);
+            p += n;
+        }
+        src.get(apdu, p, apdu.length - p);
+        return apdu;
+    }
+
+    private static void check(APDURes res, String cmd) throws SmartcardException {
+        if (res.getSW() != 0x9000) {
+            throw new SmartcardException(String.format("%s failed, sw %04x", cmd, res.getSW()), res.getSW());
+        }
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2009-2011 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.java.jless.smartcard;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.SecureRandomSpi;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shared random source used by {@link Buf#random(int)}.  Each thread has
+ * its own SHA1PRNG seeded once from the platform SecureRandom, so callers
+ * never contend or block.  Once {@link #start(Smartcard)} is called, a
+ * background thread collects card random bytes with GET CHALLENGE in
+ * batches and each thread mixes fresh card bytes into its generator every
+ * {@link #RESEED_INTERVAL} bytes.  If the card is slow or gone, generators
+ * keep running on their existing state.  {@link #generateSeed(int)} waits
+ * for card bytes and otherwise uses the platform SecureRandom, never these
+ * generators.
+ */
+public class CardEntropy {
+    private static final SmartcardLog log = SmartcardLog.getLog(CardEntropy.class);
+    private static final CardEntropy DEFAULT = new CardEntropy();
+
+    /** Bytes generated per thread before mixing in more card bytes. */
+    public static final int RESEED_INTERVAL = 1 << 16;
+    /** Card bytes mixed in each reseed. */
+    public static final int RESEED_LEN = 32;
+
+    private int challengeLen = 8;
+    private int batchSize = 1024;
+    private long seedTimeoutMillis = 2000;
+    private BlockingQueue<byte[]> batches = new ArrayBlockingQueue<byte[]>(4);
+    private byte[] batch = new byte[0];
+    private int batchPos;
+    private SecureRandom seeder;
+    private volatile Thread thread;
+
+    private ThreadLocal<Generator> generators = new ThreadLocal<Generator>() {
+        protected Generator initialValue() {
+            return new Generator();
+        }
+    };
+
+    /** @return shared instance used by {@link Buf#random(int)}. */
+    public static CardEntropy getDefault() { return DEFAULT; }
+
+    /** @param challengeLen Le for each GET CHALLENGE, default 8 */
+    public void setChallengeLen(int challengeLen) { this.challengeLen = challengeLen; }
+
+    /** @param batchSize bytes collected before handing to generators, default 1024 */
+    public void setBatchSize(int batchSize) { this.batchSize = batchSize; }
+
+    /** @param seedTimeoutMillis max wait for card bytes in {@link #generateSeed(int)}, default 2s */
+    public void setSeedTimeoutMillis(long seedTimeoutMillis) { this.seedTimeoutMillis = seedTimeoutMillis; }
+
+    /**
+     * Start collecting from card.  Card may be shared with other users,
+     * GET CHALLENGE does not change card state.
+     * @param card card
+     */
+    public synchronized void start(final Smartcard card) {
+        stop();
+        Thread t = new Thread("smartcard-entropy-" + card.getIFDName()) {
+            public void run() {
+                collect(card);
+            }
+        };
+        t.setDaemon(true);
+        thread = t;
+        t.start();
+    }
+
+    /** Stop collecting, generators continue with existing state. */
+    public synchronized void stop() {
+        Thread t = thread;
+        thread = null;
+        if (t != null) {
+            t.interrupt();
+        }
+        // waiters in takeCardBytes give up
+        notifyAll();
+    }
+
+    private void collect(Smartcard card) {
+        byte[] getChallenge = {0x00, (byte) 0x84, 0x00, 0x00, (byte) challengeLen};
+        while (thread == Thread.currentThread()) {
+            try {
+                byte[] buf = new byte[batchSize];
+                for (int i = 0; i < buf.length; ) {
+                    APDURes res = card.transmit(getChallenge);
+                    byte[] data = res.getData();
+                    if (res.getSW() != 0x9000 || data.length == 0) {
+                        throw new SmartcardException(String.format("GET CHALLENGE failed, sw %04x", res.getSW()),
+                                res.getSW());
+                    }
+                    int n = Math.min(data.length, buf.length - i);
+                    System.arraycopy(data, 0, buf, i, n);
+                    i += n;
+                }
+                batches.put(buf);
+                synchronized (this) {
+                    notifyAll();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (SmartcardException e) {
+                log.warn("error collecting entropy from " + card.getIFDName() + ", retrying in 5s", e);
+                try {
+                    Thread.sleep(5000);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Take card bytes without blocking.  Spans as many collected batches
+     * as needed, result is never padded.
+     * @param len number of bytes
+     * @return card bytes, or null if fewer than len collected so far
+     */
+    public synchronized byte[] takeCardBytes(int len) {
+        // only this method removes batches, so what is counted here can be taken
+        int available = batch.length - batchPos;
+        for (byte[] b : batches) {
+            available += b.length;
+        }
+        if (available < len) {
+            return null;
+        }
+        byte[] result = new byte[len];
+        for (int i = 0; i < len; ) {
+            if (batchPos == batch.length) {
+                batch = batches.poll();
+                batchPos = 0;
+            }
+            int n = Math.min(len - i, batch.length - batchPos);
+            System.arraycopy(batch, batchPos, result, i, n);
+            batchPos += n;
+            i += n;
+        }
+        return result;
+    }
+
+    /**
+     * Take card bytes, waiting while collection is running.
+     * @param len number of bytes
+     * @param timeoutMillis max wait
+     * @return card bytes, or null if not collected before timeout or not started
+     * @throws InterruptedException if interrupted
+     */
+    public synchronized byte[] takeCardBytes(int len, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        for (;;) {
+            byte[] result = takeCardBytes(len);
+            long left = deadline - System.nanoTime();
+            if (result != null || thread == null || left <= 0) {
+                return result;
+            }
+            // notified when a batch is collected
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+    }
+
+    /**
+     * Seed bytes from the card, waiting up to the seed timeout, else from
+     * {@link SecureRandom#generateSeed(int)} of the platform SecureRandom.
+     * @param len number of bytes
+     * @return seed bytes
+     */
+    public byte[] generateSeed(int len) {
+        byte[] seed = null;
+        try {
+            seed = takeCardBytes(len, seedTimeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (seed == null) {
+            log.debug("card bytes not available, using platform seed");
+            seed = platformGenerateSeed(len);
+        }
+        return seed;
+    }
+
+    private synchronized byte[] platformGenerateSeed(int len) {
+        if (seeder == null) {
+            seeder = new SecureRandom();
+        }
+        return seeder.generateSeed(len);
+    }
+
+    private synchronized byte[] platformSeed() {
+        if (seeder == null) {
+            seeder = new SecureRandom();
+        }
+        byte[] seed = new byte[RESEED_LEN];
+        seeder.nextBytes(seed);
+        return seed;
+    }
+
+    /**
+     * Fill buf with random bytes.
+     * @param buf buf
+     */
+    public void nextBytes(byte[] buf) {
+        generators.get().nextBytes(buf);
+    }
+
+    /**
+     * Mix caller supplied seed into this thread's generator.
+     * @param seed seed
+     */
+    public void setSeed(byte[] seed) {
+        generators.get().random.setSeed(seed);
+    }
+
+    private class Generator {
+        private SecureRandom random;
+        private int sinceReseed;
+
+        Generator() {
+            try {
+                random = SecureRandom.getInstance("SHA1PRNG");
+            } catch (NoSuchAlgorithmException e) {
+                random = new SecureRandom();
+            }
+            // seeding before first use replaces self-seeding
+            random.setSeed(platformSeed());
+            reseed();
+        }
+
+        private void reseed() {
+            byte[] cardBytes = takeCardBytes(RESEED_LEN);
+            if (cardBytes != null) {
+                random.setSeed(cardBytes);
+            }
+            sinceReseed = 0;
+        }
+
+        void nextBytes(byte[] buf) {
+            if (sinceReseed >= RESEED_INTERVAL) {
+                reseed();
+            }
+            random.nextBytes(buf);
+            sinceReseed += buf.length;
+        }
+    }
+
+    /** SecureRandomSpi over {@link #getDefault()}, registered by {@link SmartcardProvider} as CardRandom. */
+    public static class Spi extends SecureRandomSpi {
+        private static final long serialVersionUID = 2871408950227826387L;
+
+        protected void engineSetSeed(byte[] seed) { DEFAULT.setSeed(seed); }
+
+        protected void engineNextBytes(byte[] bytes) { DEFAULT.nextBytes(bytes); }
+
+        protected byte[] engineGenerateSeed(int numBytes) { return DEFAULT.generateSeed(numBytes); }
+    }
+}
@@ -0,0 +1,426 @@
+/*
+ * Copyright 2009-2011 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.java.jless.smartcard;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * On-disk image of a card's file system, one memory mapped file per card.
+ * Each save writes a new version <code>&lt;cardId&gt;.img.&lt;n&gt;</code> rather
+ * than replacing the mapped file, which cannot be done on Windows.  Older
+ * versions are deleted once they can be, at the latest on the next open.
+ * Files are keyed by absolute path in hex, e.g. "3f007f106f3a".
+ * {@link #snapshot(Smartcard, String...)} selects each path on the card
+ * and reads only files that are new or whose FCP changed since the last
+ * snapshot.  {@link ImageSmartcard} answers SELECT, READ BINARY and READ
+ * RECORD from the image.
+ * <pre>
+ * CardImage image = CardImage.open(new File("images"), iccid);
+ * image.snapshot(card, "3f002f00", "3f007f106f3a", "3f007f106f3c");
+ * Smartcard offline = new ImageSmartcard(image);
+ * </pre>
+ * Image layout:
+ * <pre>
+ * |"SCIM"|atrLen(1)|ATR|count(2)|entries...|data...|
+ * entry: |pathLen(1)|path ASCII|fcpLen(2)|FCP|type(1)|sw(2)|offset(4)|len(4)|
+ * </pre>
+ * Record file data is |len(2)|record|... for each record.
+ */
+public class CardImage {
+    private static final SmartcardLog log = SmartcardLog.getLog(CardImage.class);
+    private static final int MAGIC = 0x5343494d; // SCIM
+
+    /** DF. */
+    public static final int DF = 0;
+    /** Transparent EF. */
+    public static final int TRANSPARENT = 1;
+    /** Record EF (linear or cyclic). */
+    public static final int RECORD = 2;
+
+    private File dir;
+    private String name;
+    private int version;
+    private File file;
+    private String cardId;
+    private byte[] atr = new byte[0];
+    private volatile ByteBuffer data = ByteBuffer.allocate(0);
+    private volatile Map<String, Entry> index = Collections.emptyMap();
+
+    private static class Entry {
+        private String path;
+        private byte[] fcp;
+        private int type;
+        private int sw;
+        private int offset;
+        private int len;
+    }
+
+    private CardImage(File dir, String cardId) {
+        this.dir = dir;
+        this.name = cardId.replaceAll("[^A-Za-z0-9._-]", "_") + ".img";
+        this.cardId = cardId;
+        this.file = new File(dir, name + "." + version);
+    }
+
+    /**
+     * Open image for card, empty if not yet saved.
+     * @param dir directory holding images
+     * @param cardId card identity, e.g. ICCID or serial number
+     * @return image
+     * @throws IOException if image exists but cannot be read
+     */
+    public static CardImage open(File dir, String cardId) throws IOException {
+        CardImage image = new CardImage(dir, cardId);
+        int latest = -1;
+        for (File f : image.versions()) {
+            latest = Math.max(latest, image.version(f));
+        }
+        if (latest >= 0) {
+            image.version = latest;
+            image.file = new File(dir, image.name + "." + latest);
+            image.load();
+            image.deleteOldVersions();
+        }
+        return image;
+    }
+
+    // saved versions of this image, name.N
+    private List<File> versions() {
+        List<File> result = new ArrayList<File>();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (version(f) >= 0) {
+                    result.add(f);
+                }
+            }
+        }
+        return result;
+    }
+
+    // version number from file name, -1 if not a version of this image
+    private int version(File f) {
+        String n = f.getName();
+        if (!n.startsWith(name + ".") || n.length() == name.length() + 1) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(n.substring(name.length() + 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // may fail while old versions are still mapped, try again after next save
+    private void deleteOldVersions() {
+        for (File f : versions()) {
+            if (version(f) < version && !f.delete()) {
+                log.debug("could not delete old image " + f + ", still in use");
+            }
+        }
+    }
+
+    private void load() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        ByteBuffer buf;
+        try {
+            buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        if (buf.remaining() < 7 || buf.getInt() != MAGIC) {
+            throw new IOException("not a card image: " + file);
+        }
+        byte[] a = new byte[buf.get() & 0xff];
+        buf.get(a);
+        int count = buf.getShort() & 0xffff;
+        Map<String, Entry> idx = new LinkedHashMap<String, Entry>();
+        for (int i = 0; i < count; i++) {
+            Entry e = new Entry();
+            byte[] path = new byte[buf.get() & 0xff];
+            buf.get(path);
+            e.path = new String(path, "US-ASCII");
+            e.fcp = new byte[buf.getShort() & 0xffff];
+            buf.get(e.fcp);
+            e.type = buf.get();
+            e.sw = buf.getShort() & 0xffff;
+            e.offset = buf.getInt();
+            e.len = buf.getInt();
+            idx.put(e.path, e);
+        }
+        atr = a;
+        data = buf.slice();
+        index = idx;
+    }
+
+    /** @return card identity. */
+    public String getCardId() { return cardId; }
+
+    /** @return ATR at last snapshot. */
+    public byte[] getATR() { return atr; }
+
+    /** @return current version of image file. */
+    public File getFile() { return file; }
+
+    /** @return paths in image. */
+    public List<String> getPaths() { return new ArrayList<String>(index.keySet()); }
+
+    /**
+     * @param path absolute path in hex
+     * @return true if path is in image
+     */
+    public boolean contains(String path) { return index.containsKey(path.toLowerCase()); }
+
+    /**
+     * @param path absolute path in hex
+     * @return FCP (tag 62 TLV), or null if path not in image
+     */
+    public byte[] getFCP(String path) {
+        Entry e = index.get(path.toLowerCase());
+        return e == null ? null : e.fcp;
+    }
+
+    /**
+     * @param path absolute path in hex
+     * @return {@link #DF}, {@link #TRANSPARENT} or {@link #RECORD}, or -1 if not in image
+     */
+    public int getType(String path) {
+        Entry e = index.get(path.toLowerCase());
+        return e == null ? -1 : e.type;
+    }
+
+    /**
+     * @param path absolute path in hex
+     * @return SW returned when file was read, 9000 if contents are in image
+     */
+    public int getReadSW(String path) {
+        Entry e = index.get(path.toLowerCase());
+        return e == null ? 0x6a82 : e.sw;
+    }
+
+    /**
+     * Contents of file without copying.
+     * @param path absolute path in hex
+     * @return read-only view of transparent EF, or of encoded records, or null if not available
+     */
+    public ByteBuffer getContents(String path) {
+        Entry e = index.get(path.toLowerCase());
+        if (e == null || e.sw != 0x9000) {
+            return null;
+        }
+        ByteBuffer b = data.duplicate();
+        b.position(e.offset);
+        b.limit(e.offset + e.len);
+        return b.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Record of record EF.
+     * @param path absolute path in hex
+     * @param recordNum record number from 1
+     * @return record, or null if not available
+     */
+    public byte[] getRecord(String path, int recordNum) {
+        ByteBuffer b = getContents(path);
+        if (b == null) {
+            return null;
+        }
+        for (int i = 1; b.remaining() >= 2; i++) {
+            int len = b.getShort() & 0xffff;
+            if (i == recordNum) {
+                byte[] rec = new byte[len];
+                b.get(rec);
+                return rec;
+            }
+            b.position(b.position() + len);
+        }
+        return null;
+    }
+
+    /**
+     * Select paths on card and read files that are new or whose FCP
+     * changed, then save image.  Paths already in the image are always
+     * included, so snapshot(card) refreshes the whole image.  Parent DFs
+     * of paths are added.
+     * @param card card
+     * @param paths absolute paths in hex starting with 3f00, in addition to those in image
+     * @return number of files read from card
+     * @throws SmartcardException if card error
+     * @throws IOException if image cannot be saved
+     */
+    public synchronized int snapshot(Smartcard card, String... paths) throws SmartcardException, IOException {
+        TreeSet<String> all = new TreeSet<String>(index.keySet());
+        for (String p : paths) {
+            p = p.toLowerCase();
+            if (!p.startsWith("3f00") || p.length() % 4 != 0) {
+                throw new IllegalArgumentException("path must be hex FIDs starting with 3f00, got: " + p);
+            }
+            for (int i = 4; i <= p.length(); i += 4) {
+                all.add(p.substring(0, i));
+            }
+        }
+        Map<String, Entry> old = index;
+        List<Entry> entries = new ArrayList<Entry>();
+        List<byte[]> contents = new ArrayList<byte[]>();
+        int read = 0;
+        for (String path : all) {
+            APDURes res = select(card, path);
+            if (res.getSW() == 0x6a82) {
+                log.debug("not found: " + path);
+                continue;
+            } else if (res.getSW() != 0x9000) {
+                throw new SmartcardException(String.format("SELECT %s failed, sw %04x", path, res.getSW()),
+                        res.getSW());
+            }
+            Entry e = new Entry();
+            e.path = path;
+            e.fcp = res.getData();
+            e.type = type(e.fcp);
+            Entry prev = old.get(path);
+            byte[] content;
+            if (prev != null && Arrays.equals(prev.fcp, e.fcp)) {
+                e.sw = prev.sw;
+                ByteBuffer b = getContents(path);
+                content = new byte[b == null ? 0 : b.remaining()];
+                if (b != null) {
+                    b.get(content);
+                }
+            } else {
+                content = new byte[0];
+                e.sw = 0x9000;
+                try {
+                    content = readContents(card, e);
+                } catch (SmartcardException ex) {
+                    if (ex.getSW() < 0) {
+                        throw ex;
+                    }
+                    e.sw = ex.getSW();
+                }
+                read++;
+            }
+            entries.add(e);
+            contents.add(content);
+        }
+        save(card.getATR(), entries, contents);
+        load();
+        deleteOldVersions();
+        return read;
+    }
+
+    private static APDURes select(Smartcard card, String path) throws SmartcardException {
+        if (path.equals("3f00")) {
+            return card.transmit(0x00, 0xa4, 0x00, 0x04, Hex.s2b("3f00"), 0);
+        }
+        return card.transmit(0x00, 0xa4, 0x08, 0x04, Hex.s2b(path.substring(4)), 0);
+    }
+
+    // file descriptor byte in FCP tag 82
+    private static int type(byte[] fcp) {
+        BerTlv desc = BerTlv.find(fcp, 0, fcp.length, 0x62, 0x82);
+        if (desc == null || desc.getLength() == 0) {
+            return DF;
+        }
+        int fdb = fcp[desc.getValueOffset()] & 0xff;
+        if ((fdb & 0x38) == 0x38) {
+            return DF;
+        }
+        return (fdb & 0x07) == 0x01 ? TRANSPARENT : RECORD;
+    }
+
+    private static byte[] readContents(Smartcard card, Entry e) throws SmartcardException {
+        if (e.type == DF) {
+            return new byte[0];
+        } else if (e.type == TRANSPARENT) {
+            BerTlv size = BerTlv.find(e.fcp, 0, e.fcp.length, 0x62, 0x80);
+            int len = size == null ? 0x7fff : size.getInt();
+            return SmartcardUtil.readBinary(card, 0, len);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RecordIterator records = new RecordIterator(card, 0);
+        try {
+            for (byte[] rec; (rec = records.nextRecord()) != null; ) {
+                out.write(rec.length >> 8);
+                out.write(rec.length);
+                out.write(rec, 0, rec.length);
+            }
+        } finally {
+            records.close();
+        }
+        return out.toByteArray();
+    }
+
+    // write next version, mapped current version is left alone
+    private void save(byte[] cardAtr, List<Entry> entries, List<byte[]> contents) throws IOException {
+        dir.mkdirs();
+        File next = new File(dir, name + "." + (version + 1));
+        File tmp = new File(dir, name + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeByte(cardAtr.length);
+            out.write(cardAtr);
+            out.writeShort(entries.size());
+            int offset = 0;
+            for (int i = 0; i < entries.size(); i++) {
+                Entry e = entries.get(i);
+                byte[] path = e.path.getBytes("US-ASCII");
+                out.writeByte(path.length);
+                out.write(path);
+                out.writeShort(e.fcp.length);
+                out.write(e.fcp);
+                out.writeByte(e.type);
+                out.writeShort(e.sw);
+                out.writeInt(offset);
+                out.writeInt(contents.get(i).length);
+                offset += contents.get(i).length;
+            }
+            for (byte[] content : contents) {
+                out.write(content);
+            }
+        } finally {
+            out.close();
+        }
+        // left over from a save that failed before load
+        next.delete();
+        if (!tmp.renameTo(next)) {
+            throw new IOException("could not rename " + tmp + " to " + next);
+        }
+        version++;
+        file = next;
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2009-2011 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.java.jless.smartcard;
+
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+
+/**
+ * Private key held on the cards of a {@link SmartcardPool}, used through
+ * {@link SmartcardProvider}.  The key never leaves the card so
+ * {@link #getEncoded()} returns null.
+ */
+public class CardKey implements PrivateKey {
+    private static final long serialVersionUID = -2311950183457046541L;
+
+    private String algorithm;
+    private int keyRef;
+    private transient SmartcardPool pool;
+    private Certificate certificate;
+
+    /**
+     * Constructor.
+     * @param algorithm "RSA" or "EC"
+     * @param keyRef key reference used in MSE tag 84
+     * @param pool cards holding key
+     * @param certificate certificate for key, may be null
+     */
+    public CardKey(String algorithm, int keyRef, SmartcardPool pool, Certificate certificate) {
+        if (!"RSA".equals(algorithm) && !"EC".equals(algorithm)) {
+            throw new IllegalArgumentException("algorithm must be RSA or EC, got: " + algorithm);
+        }
+        this.algorithm = algorithm;
+        this.keyRef = keyRef;
+        this.pool = pool;
+        this.certificate = certificate;
+    }
+
+    /** {@inheritDoc} */
+    public String getAlgorithm() { return algorithm; }
+
+    /** @return null, key is not extractable. */
+    public String getFormat() { return null; }
+
+    /** @return null, key is not extractable. */
+    public byte[] getEncoded() { return null; }
+
+    /** @return key reference. */
+    public int getKeyRef() { return keyRef; }
+
+    /** @return cards holding key. */
+    public SmartcardPool getPool() { return pool; }
+
+    /** @return certificate or null. */
+    public Certificate getCertificate() { return certificate; }
+
+    /** @return description. */
+    public String toString() { return String.format("CardKey %s %02x", algorithm, keyRef); }
+}
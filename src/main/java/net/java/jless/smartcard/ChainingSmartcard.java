@@ -26,19 +26,98 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
+public class ChainingSmartcard implements SmartcardDecorator {
+    private static final SmartcardLog log = SmartcardLog.getLog(ChainingSmartcard.class);
+
+    /** How extended APDUs (2e, 3e, 4e) are sent. */
+    public enum Mode {
+        /** Always split into short chained pieces. */
+        CHAIN,
+        /** Always send extended APDUs in one piece. */
+        EXTENDED,
+        /**
+         * Send in one piece if card supports extended length, else chain.
+         * Support is taken from the ATR, then EF.ATR if enabled with
+         * {@link ChainingSmartcard#setReadEFATR(boolean)}, then by sending
+         * READ BINARY with extended Le {@link ChainingSmartcard#PROBE}.  The
+         * caller's APDU is never used as a probe.
+         */
+        AUTO
+    }
+
+    /** READ BINARY offset 0 with extended Le 257, short cards reject the length. */
+    static final byte[] PROBE = {0, (byte) 0xb0, 0, 0, 0, 1, 1};
 
-public class ChainingSmartcard implements Smartcard {
-    private static final Log log = LogFactory.getLog(ChainingSmartcard.class);
     private Smartcard card;
+    private int maxDataLen = 255;
+    private Mode mode = Mode.CHAIN;
+    private boolean readEFATR = false;
+    private volatile Boolean extendedSupported; // null until detected in AUTO mode
+    private volatile int maxExtendedLc = 65535;
+    private final Object detectLock = new Object();
 
     public ChainingSmartcard(Smartcard card) {
         this.card = card;
     }
 
+    /**
+     * Constructor with max data len for each chained piece.
+     * @param card base card
+     * @param maxDataLen max len of data in each piece (1 to 255)
+     */
+    public ChainingSmartcard(Smartcard card, int maxDataLen) {
+        this.card = card;
+        setMaxDataLen(maxDataLen);
+    }
+
+    /** @return max len of data in each chained piece. */
+    public int getMaxDataLen() { return maxDataLen; }
+
+    /**
+     * Set max len of data in each chained piece.
+     * @param maxDataLen max len of data (1 to 255)
+     */
+    public void setMaxDataLen(int maxDataLen) {
+        if (maxDataLen < 1 || maxDataLen > 255) {
+            throw new IllegalArgumentException("maxDataLen must be between 1 and 255, got: " + maxDataLen);
+        }
+        this.maxDataLen = maxDataLen;
+    }
+
+    /** @return transport mode for extended APDUs. */
+    public Mode getMode() { return mode; }
+
+    /**
+     * Set transport mode for extended APDUs.  Default is {@link Mode#CHAIN}.
+     * @param mode mode
+     */
+    public void setMode(Mode mode) {
+        this.mode = mode;
+        extendedSupported = null;
+    }
+
+    /**
+     * If true, EF.ATR (2f01) is selected and read in {@link Mode#AUTO} when the
+     * ATR does not indicate extended length support.  This changes the
+     * current EF so is off by default.
+     * @param readEFATR read EF.ATR
+     */
+    public void setReadEFATR(boolean readEFATR) { this.readEFATR = readEFATR; }
+
+    /** @return true if extended APDUs are sent in one piece, null if not yet detected. */
+    public Boolean isExtendedSupported() {
+        return mode == Mode.CHAIN ? Boolean.FALSE : mode == Mode.EXTENDED ? Boolean.TRUE : extendedSupported;
+    }
+
+    /** @return max Lc sent in one piece, larger extended APDUs are chained. */
+    public int getMaxExtendedLc() { return maxExtendedLc; }
+
     public static APDURes transmitChain(Smartcard card, byte[] apdu) throws SmartcardException {
-        List<byte[]> pieces = chain(apdu, 255);
+        return transmitChain(card, apdu, 255);
+    }
+
+    public static APDURes transmitChain(Smartcard card, byte[] apdu, int maxDataLen) throws SmartcardException {
+        List<byte[]> pieces = chain(apdu, maxDataLen);
 
         // log full apdu if chaining
         if (pieces.size() > 1 && log.isDebugEnabled()) {
@@ -129,6 +208,9 @@ public class ChainingSmartcard implements Smartcard {
         return result;
     }
 
+    /** {@inheritDoc} */
+    public Smartcard getCard() { return card; }
+
     /** {@inheritDoc} */
     public String getIFDName() { return card.getIFDName(); }
 
@@ -137,12 +219,100 @@ public class ChainingSmartcard implements Smartcard {
 
     /** {@inheritDoc} */
     public APDURes transmit(byte[] apdu) throws SmartcardException {
-        return transmitChain(card, apdu);
+        // short apdu (1, 2s, 3s, 4s)
+        if (mode == Mode.CHAIN || apdu.length <= 6 || apdu[4] != 0) {
+            return transmitChain(card, apdu, maxDataLen);
+        }
+        int lc = apdu.length == 7 ? 0 : ((apdu[5] & 0xff) << 8) | (apdu[6] & 0xff);
+        if (mode == Mode.EXTENDED) {
+            return card.transmit(apdu);
+        }
+
+        // AUTO
+        Boolean supported = extendedSupported;
+        if (supported == null) {
+            supported = detect();
+        }
+        if (supported.booleanValue() && lc <= maxExtendedLc) {
+            return card.transmit(apdu);
+        }
+        return transmitChain(card, apdu, maxDataLen);
+    }
+
+    // detect once, exceptions leave support unknown so the next call detects again
+    private Boolean detect() throws SmartcardException {
+        synchronized (detectLock) {
+            if (extendedSupported == null) {
+                detectExtended();
+            }
+            if (extendedSupported == null) {
+                // harmless probe, card rejects wrong length with 6700 or 6Cxx
+                int sw = card.transmit(PROBE).getSW();
+                boolean supported = sw != 0x6700 && (sw & 0xff00) != 0x6c00
+                    && (sw & 0xff00) != 0x6d00 && (sw & 0xff00) != 0x6e00;
+                log.debug("extended length probe returned " + Integer.toHexString(sw)
+                    + (supported ? ", sending in one piece" : ", using chaining"));
+                extendedSupported = Boolean.valueOf(supported);
+            }
+            return extendedSupported;
+        }
+    }
+
+    // set extendedSupported from ATR or EF.ATR, leave null if unknown
+    private void detectExtended() throws SmartcardException {
+        ATR atr;
+        try {
+            atr = new ATR(card.getATR());
+        } catch (IllegalArgumentException e) {
+            log.debug("could not parse ATR", e);
+            atr = null;
+        }
+        if (atr != null) {
+            // T=0 cannot transport extended apdus without ENVELOPE
+            if (!atr.supportsProtocol(1)) {
+                extendedSupported = Boolean.FALSE;
+                return;
+            }
+            if (atr.isExtendedLengthSupported()) {
+                extendedSupported = Boolean.TRUE;
+                return;
+            }
+            if (atr.getCardCapabilities() >= 0 && (atr.getCardCapabilities() & ATR.CAP_EXTENDED_LENGTH_INFO) == 0) {
+                extendedSupported = Boolean.FALSE;
+                return;
+            }
+        }
+        if (!readEFATR) {
+            return;
+        }
+
+        // SELECT 2f01, READ BINARY
+        APDURes res = card.transmit(new byte[] {0, (byte) 0xa4, 2, 0x0c, 2, 0x2f, 1});
+        if (res.getSW() != 0x9000) {
+            return;
+        }
+        byte[] efatr = SmartcardUtil.readBinary(card, 0, 256, 256);
+        // look for 47 card capabilities and 7f66 extended length info
+        try {
+            for (BerTlv tlv : BerTlv.iterate(efatr, 0, efatr.length)) {
+                if (tlv.getTag() == 0x47 && tlv.getLength() >= 3) {
+                    extendedSupported = Boolean.valueOf((efatr[tlv.getValueOffset() + 2] & ATR.CAP_EXTENDED_LENGTH) != 0);
+                } else if (tlv.getTag() == 0x7f66) {
+                    // 02 len max-command-bytes 02 len max-response-bytes
+                    BerTlv maxCommand = BerTlv.parse(efatr, tlv.getValueOffset(), tlv.getLength());
+                    // max command bytes includes header, Lc and Le
+                    maxExtendedLc = Math.max(0, Math.min(65535, maxCommand.getInt() - 9));
+                    extendedSupported = Boolean.TRUE;
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            log.debug("invalid EF.ATR " + Hex.b2s(efatr), e);
+        }
     }
 
     /** {@inheritDoc} */
     public String transmith(String hexApdu) throws SmartcardException {
-        return transmit(Hex.s2b(hexApdu)).toString();
+        return transmit(HexCommandCache.decode(hexApdu)).toString();
     }
 
     /** {@inheritDoc} */
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2009-2011 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.java.jless.smartcard;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Stops traffic to a failing reader.  After {@link #setFailureThreshold(int)}
+ * consecutive failures the breaker opens and {@link #allow()} returns false
+ * for the cool-down period.  Then a single trial command is allowed; success
+ * closes the breaker, failure opens it again.  Every allowed command must
+ * be followed by {@link #onSuccess()}, {@link #onFailure()} or
+ * {@link #onIgnored()}.
+ */
+public class CircuitBreaker {
+    private static final SmartcardLog log = SmartcardLog.getLog(CircuitBreaker.class);
+    private static final ConcurrentMap<String, CircuitBreaker> READERS = new ConcurrentHashMap<String, CircuitBreaker>();
+
+    /** Breaker state. */
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private String name;
+    private int failureThreshold = 5;
+    private long coolDownMillis = 10000;
+    private State state = State.CLOSED;
+    private int failures;
+    private long openedAt;
+    private boolean trialInFlight;
+    private SmartcardException openException;
+
+    /**
+     * Constructor.
+     * @param name name used in messages
+     */
+    public CircuitBreaker(String name) {
+        this.name = name;
+        this.openException = SmartcardException.stackless("circuit open for reader " + name,
+                SmartcardException.Type.CIRCUIT_OPEN);
+    }
+
+    /**
+     * Shared breaker for reader.
+     * @param ifdName IFD name
+     * @return breaker
+     */
+    public static CircuitBreaker forReader(String ifdName) {
+        String key = String.valueOf(ifdName);
+        CircuitBreaker breaker = READERS.get(key);
+        if (breaker == null) {
+            READERS.putIfAbsent(key, new CircuitBreaker(key));
+            breaker = READERS.get(key);
+        }
+        return breaker;
+    }
+
+    /** @param failureThreshold consecutive failures that open breaker, default 5 */
+    public synchronized void setFailureThreshold(int failureThreshold) { this.failureThreshold = failureThreshold; }
+
+    /** @param coolDownMillis time breaker stays open, default 10s */
+    public synchronized void setCoolDownMillis(long coolDownMillis) { this.coolDownMillis = coolDownMillis; }
+
+    /** @return state. */
+    public synchronized State getState() { return state; }
+
+    /** @return preallocated stackless exception to throw when not allowed. */
+    public SmartcardException getOpenException() { return openException; }
+
+    /** @return true if command may be sent. */
+    public synchronized boolean allow() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.currentTimeMillis() - openedAt < coolDownMillis) {
+                    return false;
+                }
+                state = State.HALF_OPEN;
+                trialInFlight = true;
+                return true;
+            default:
+                if (trialInFlight) {
+                    return false;
+                }
+                trialInFlight = true;
+                return true;
+        }
+    }
+
+    /** Record success. */
+    public synchronized void onSuccess() {
+        if (state != State.CLOSED) {
+            log.info("circuit closed for reader " + name);
+        }
+        state = State.CLOSED;
+        failures = 0;
+        trialInFlight = false;
+    }
+
+    /**
+     * Record a result that says nothing about the reader, such as a
+     * rejected command or a runtime error.  State is not changed, but a
+     * half open trial is released so another trial can be sent.
+     */
+    public synchronized void onIgnored() {
+        trialInFlight = false;
+    }
+
+    /** Record failure. */
+    public synchronized void onFailure() {
+        failures++;
+        trialInFlight = false;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= failureThreshold)) {
+            if (state == State.CLOSED) {
+                log.warn("circuit opened for reader " + name + " after " + failures + " failures");
+            }
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2009-2011 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.java.jless.smartcard;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shares responses of identical read-only commands sent concurrently.
+ * If a read-only command is already in flight, callers sending the same
+ * bytes wait for it and get the same {@link APDURes} instead of sending
+ * it again.  Responses are shared so callers must not modify
+ * {@link APDURes#getBytes()}.
+ * <p>
+ * Read-only commands are READ BINARY, READ RECORD and GET DATA without
+ * secure messaging or chaining; override {@link #isReadOnly(byte[])}
+ * to change this.  Callers are responsible for not interleaving commands
+ * that change the current file or application with concurrent reads.
+ */
+public class CoalescingSmartcard implements SmartcardDecorator {
+    private Smartcard card;
+    private ConcurrentMap<Key, FutureTask<APDURes>> inFlight = new ConcurrentHashMap<Key, FutureTask<APDURes>>();
+    private AtomicLong coalesced = new AtomicLong();
+
+    /** Copy of command bytes as map key, callers may reuse their buffer. */
+    private static class Key {
+        private byte[] apdu;
+        private int hash;
+
+        Key(byte[] apdu) {
+            this.apdu = apdu.clone();
+            this.hash = Arrays.hashCode(apdu);
+        }
+
+        public int hashCode() { return hash; }
+
+        public boolean equals(Object o) {
+            return o instanceof Key && Arrays.equals(apdu, ((Key) o).apdu);
+        }
+    }
+
+    /**
+     * Constructor.
+     * @param card base card, must allow concurrent callers
+     */
+    public CoalescingSmartcard(Smartcard card) {
+        this.card = card;
+    }
+
+    /** @return number of commands answered with the response of a command already in flight. */
+    public long getCoalescedCount() { return coalesced.get(); }
+
+    /**
+     * @param apdu command
+     * @return true if command may share the response of an identical command
+     */
+    protected boolean isReadOnly(byte[] apdu) {
+        if (apdu.length < 4 || (apdu[0] & 0x1c) != 0) {
+            return false; // secure messaging or chaining
+        }
+        switch (apdu[1] & 0xff) {
+            case 0xb0: case 0xb1: // READ BINARY
+            case 0xb2: case 0xb3: // READ RECORD
+            case 0xca: case 0xcb: // GET DATA
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /** {@inheritDoc} */
+    public Smartcard getCard() { return card; }
+
+    /** {@inheritDoc} */
+    public String getIFDName() { return card.getIFDName(); }
+
+    /** {@inheritDoc} */
+    public byte[] getATR() { return card.getATR(); }
+
+    /** {@inheritDoc} */
+    public APDURes transmit(byte[] apdu) throws SmartcardException {
+        if (!isReadOnly(apdu)) {
+            return card.transmit(apdu);
+        }
+        final Key key = new Key(apdu);
+        FutureTask<APDURes> task = new FutureTask<APDURes>(new Callable<APDURes>() {
+            public APDURes call() throws SmartcardException {
+                return card.transmit(key.apdu);
+            }
+        });
+        FutureTask<APDURes> existing = inFlight.putIfAbsent(key, task);
+        if (existing != null) {
+            coalesced.incrementAndGet();
+            return get(existing);
+        }
+        try {
+            task.run();
+        } finally {
+            inFlight.remove(key, task);
+        }
+        return get(task);
+    }
+
+    private static APDURes get(FutureTask<APDURes> task) throws SmartcardException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SmartcardException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SmartcardException) {
+                throw (SmartcardException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new SmartcardException(cause);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public String transmith(String hexApdu) throws SmartcardException {
+        return transmit(HexCommandCache.decode(hexApdu)).toString();
+    }
+
+    /** {@inheritDoc} */
+    public APDURes transmit(int cla, int ins, int p1, int p2, byte[] data, Integer le) throws SmartcardException {
+        return transmit(SmartcardUtil.formatAPDU(cla, ins, p1, p2, data, le));
+    }
+
+    /** {@inheritDoc} */
+    public void disconnect(boolean reset) throws SmartcardException {
+        card.disconnect(reset);
+    }
+}
@@ -23,7 +23,8 @@
 package net.java.jless.smartcard;
 
 /**
- * Hex encoder.
+ * Hex encoder.  Encoding uses only {@link #HEX_DIGITS} and the class has
+ * no dependencies, so it can be initialised at build time for native images.
  * @author Joel Hockey
  */
 public class Hex {
@@ -33,8 +34,31 @@ public class Hex {
     /** Hex string to byte lookup. -1 if non-hex, else hex nibble value. */
     public static final int[] HEX_S2B = new int[256];
 
-    /** Hex byte to string lookup.  returns 2-char hex encoding */
-    public static final char[][] HEX_B2S = new char[256][];
+    /**
+     * Hex byte to string lookup.  returns 2-char hex encoding.  Same table as
+     * {@link B2S#HEX_B2S}.
+     * @deprecated not used by {@link Hex}, use {@link Hex#HEX_DIGITS}
+     */
+    @Deprecated
+    public static final char[][] HEX_B2S = B2S.HEX_B2S;
+
+    /**
+     * Holder of the hex byte to string lookup.
+     * @deprecated not used by {@link Hex}, use {@link Hex#HEX_DIGITS}
+     */
+    @Deprecated
+    public static class B2S {
+        /** Hex byte to string lookup.  returns 2-char hex encoding */
+        public static final char[][] HEX_B2S = new char[256][];
+
+        static {
+            for (int i = 0; i < HEX_DIGITS.length; i++) {
+                for (int j = 0; j < HEX_DIGITS.length; j++) {
+                    HEX_B2S[i * 16 + j] = new char[] { HEX_DIGITS[i], HEX_DIGITS[j] };
+                }
+            }
+        }
+    }
 
     static {
         // init lookup tables
@@ -51,13 +75,6 @@ public class Hex {
         for (int i = 'a'; i <= 'f'; i++) {
             HEX_S2B[i] = i - 'a' + 10;
         }
-
-        // Hex B2S
-        for (int i = 0; i < HEX_DIGITS.length; i++) {
-            for (int j = 0; j < HEX_DIGITS.length; j++) {
-                HEX_B2S[i * 16 + j] = new char[] { HEX_DIGITS[i], HEX_DIGITS[j] };
-            }
-        }
     }
 
     /**
@@ -91,7 +108,9 @@ public class Hex {
 
         char[] cbuf = new char[len * 2];
         for (int i = 0; i < len; i++) {
-            System.arraycopy(HEX_B2S[buf[start + i] & 0xff], 0, cbuf, i * 2, 2);
+            int b = buf[start + i];
+            cbuf[i * 2] = HEX_DIGITS[(b >> 4) & 0x0f];
+            cbuf[i * 2 + 1] = HEX_DIGITS[b & 0x0f];
         }
         return new String(cbuf);
     }
@@ -149,7 +168,8 @@ public class Hex {
         char[] cbuf = new char[8];
         // start at rhs
         for (int i = 3; i >= 0; i--) {
-            System.arraycopy(Hex.HEX_B2S[num & 0xff] , 0, cbuf, i*2, 2);
+            cbuf[i * 2] = HEX_DIGITS[(num >> 4) & 0x0f];
+            cbuf[i * 2 + 1] = HEX_DIGITS[num & 0x0f];
             num >>>= 8;
         }
         return new String(cbuf);
@@ -211,7 +231,8 @@ public class Hex {
             // put ascii into ascii buf
             ascii[lineOffset++] = (buf[i] >= 32 && buf[i] <= 126) ? (char) buf[i] : '.';
             // put hex into sb
-            sb.append(HEX_B2S[(buf[(i++)] & 0xff)]).append(' ');
+            int b = buf[i++];
+            sb.append(HEX_DIGITS[(b >> 4) & 0x0f]).append(HEX_DIGITS[b & 0x0f]).append(' ');
 
             // put ascii at end of each line
             if (lineOffset == ascii.length) {
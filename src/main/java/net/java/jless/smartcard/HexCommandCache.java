@@ -0,0 +1,103 @@
+/*
+ * Copyright 2009-2011 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.java.jless.smartcard;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of decoded hex commands for {@link Smartcard#transmith(String)}.
+ * Tools and scripts repeat the same command strings, so each is decoded
+ * once.  When the cache is full the least recently used command is
+ * evicted.  Callers get their own copy since decorators may modify the
+ * command they are given.
+ */
+public class HexCommandCache {
+    private static final HexCommandCache DEFAULT = new HexCommandCache(1024);
+    // longer strings are usually data-carrying commands that do not repeat
+    private static final int MAX_HEX_LEN = 520;
+
+    private Map<String, byte[]> cache;
+
+    /**
+     * Constructor.
+     * @param maxSize max entries
+     */
+    public HexCommandCache(final int maxSize) {
+        cache = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+            private static final long serialVersionUID = -3640581794614658301L;
+
+            protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /** @return shared cache used by transmith. */
+    public static HexCommandCache getDefault() { return DEFAULT; }
+
+    /**
+     * Decode hex command using shared cache.
+     * @param hexApdu hex command
+     * @return command bytes, a copy owned by the caller
+     */
+    public static byte[] decode(String hexApdu) {
+        return DEFAULT.get(hexApdu);
+    }
+
+    /**
+     * Decode hex command.
+     * @param hexApdu hex command
+     * @return command bytes, a copy owned by the caller
+     */
+    public byte[] get(String hexApdu) {
+        byte[] apdu;
+        synchronized (cache) {
+            apdu = cache.get(hexApdu);
+        }
+        if (apdu != null) {
+            return apdu.clone();
+        }
+        apdu = Hex.s2b(hexApdu);
+        if (hexApdu.length() <= MAX_HEX_LEN) {
+            synchronized (cache) {
+                cache.put(hexApdu, apdu.clone());
+            }
+        }
+        return apdu;
+    }
+
+    // true if command is cached, does not count as use
+    boolean contains(String hexApdu) {
+        synchronized (cache) {
+            return cache.containsKey(hexApdu);
+        }
+    }
+
+    /** @return number of cached commands. */
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+}
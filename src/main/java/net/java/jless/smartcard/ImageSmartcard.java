@@ -0,0 +1,159 @@
+/*
+ * Copyright 2009-2011 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.java.jless.smartcard;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Read-only {@link Smartcard} answering from a {@link CardImage}.
+ * Supports SELECT by FID (P1 00), path from MF (P1 08) and path from
+ * current DF (P1 09), READ BINARY with offset in P1-P2, and READ RECORD
+ * of the current EF by record number.  Other commands return 6d00.
+ */
+public class ImageSmartcard implements Smartcard {
+    private CardImage image;
+    private String currentDF = "3f00";
+    private String currentEF;
+
+    /**
+     * Constructor.
+     * @param image image
+     */
+    public ImageSmartcard(CardImage image) {
+        this.image = image;
+    }
+
+    /** {@inheritDoc} */
+    public String getIFDName() { return "image:" + image.getCardId(); }
+
+    /** {@inheritDoc} */
+    public byte[] getATR() { return image.getATR(); }
+
+    /** {@inheritDoc} */
+    public synchronized APDURes transmit(byte[] apdu) throws SmartcardException {
+        if (apdu.length < 4) {
+            return sw(0x6700);
+        }
+        int ins = apdu[1] & 0xff;
+        int p1 = apdu[2] & 0xff;
+        int p2 = apdu[3] & 0xff;
+        int lc = apdu.length > 5 ? apdu[4] & 0xff : 0;
+        int le = apdu.length == 5 ? apdu[4] & 0xff : apdu.length == 6 + lc ? apdu[5 + lc] & 0xff : 0;
+        le = le == 0 ? 256 : le;
+        switch (ins) {
+            case 0xa4:
+                return select(p1, p2, Hex.b2s(apdu, 5, lc));
+            case 0xb0:
+                return readBinary(((p1 & 0x7f) << 8) | p2, le);
+            case 0xb2:
+                return readRecord(p1, p2);
+            default:
+                return sw(0x6d00);
+        }
+    }
+
+    private APDURes select(int p1, int p2, String fids) {
+        String path;
+        if (p1 == 0x00) {
+            path = fids.equals("3f00") || fids.length() == 0 ? "3f00" : currentDF + fids;
+        } else if (p1 == 0x08) {
+            path = "3f00" + fids;
+        } else if (p1 == 0x09) {
+            path = currentDF + fids;
+        } else {
+            return sw(0x6a86);
+        }
+        byte[] fcp = image.getFCP(path);
+        if (fcp == null) {
+            return sw(0x6a82);
+        }
+        if (image.getType(path) == CardImage.DF) {
+            currentDF = path;
+            currentEF = null;
+        } else {
+            currentDF = path.substring(0, path.length() - 4);
+            currentEF = path;
+        }
+        return (p2 & 0x0c) == 0x0c ? sw(0x9000) : new APDURes(Buf.cat(fcp, new byte[] {(byte) 0x90, 0x00}));
+    }
+
+    private APDURes readBinary(int offset, int le) {
+        if (currentEF == null) {
+            return sw(0x6986);
+        }
+        if (image.getType(currentEF) != CardImage.TRANSPARENT) {
+            return sw(0x6981);
+        }
+        ByteBuffer b = image.getContents(currentEF);
+        if (b == null) {
+            return sw(image.getReadSW(currentEF));
+        }
+        if (offset > b.remaining()) {
+            return sw(0x6b00);
+        }
+        int n = Math.min(le, b.remaining() - offset);
+        byte[] res = new byte[n + 2];
+        b.position(offset);
+        b.get(res, 0, n);
+        res[n] = n < le ? (byte) 0x62 : (byte) 0x90;
+        res[n + 1] = n < le ? (byte) 0x82 : 0x00;
+        return new APDURes(res);
+    }
+
+    private APDURes readRecord(int recordNum, int p2) {
+        if (p2 != 0x04) {
+            return sw(0x6a86);
+        }
+        if (currentEF == null) {
+            return sw(0x6986);
+        }
+        if (image.getType(currentEF) != CardImage.RECORD) {
+            return sw(0x6981);
+        }
+        if (image.getReadSW(currentEF) != 0x9000) {
+            return sw(image.getReadSW(currentEF));
+        }
+        byte[] rec = image.getRecord(currentEF, recordNum);
+        return rec == null ? sw(0x6a83) : new APDURes(Buf.cat(rec, new byte[] {(byte) 0x90, 0x00}));
+    }
+
+    private static APDURes sw(int sw) {
+        return new APDURes(new byte[] {(byte) (sw >> 8), (byte) sw});
+    }
+
+    /** {@inheritDoc} */
+    public String transmith(String hexApdu) throws SmartcardException {
+        return transmit(HexCommandCache.decode(hexApdu)).toString();
+    }
+
+    /** {@inheritDoc} */
+    public APDURes transmit(int cla, int ins, int p1, int p2, byte[] data, Integer le) throws SmartcardException {
+        return transmit(SmartcardUtil.formatAPDU(cla, ins, p1, p2, data, le));
+    }
+
+    /** {@inheritDoc} */
+    public synchronized void disconnect(boolean reset) {
+        currentDF = "3f00";
+        currentEF = null;
+    }
+}
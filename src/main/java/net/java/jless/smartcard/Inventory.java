@@ -0,0 +1,290 @@
+/*
+ * Copyright 2009-2011 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.java.jless.smartcard;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals;
+import javax.smartcardio.TerminalFactory;
+
+/**
+ * Scans all terminals at once.  Each card is connected and probed on its
+ * own thread and results are passed to the {@link Listener} as they
+ * complete, so a scan takes about as long as the slowest card.  Cards
+ * not done {@link #setTimeoutMillis(long)} after the scan starts,
+ * including any still queued behind hung readers when there are more
+ * cards than threads, are reported as timed out and their threads
+ * abandoned, so hung readers cannot hold up the scan.
+ * <pre>
+ * Inventory inventory = new Inventory();
+ * inventory.setListener(new Inventory.Listener() {
+ *     public void onResult(Inventory.Item item) { System.out.println(item); }
+ * });
+ * List&lt;Inventory.Item&gt; items = inventory.scan();
+ * </pre>
+ */
+public class Inventory {
+    /** Gets information from a card. */
+    public interface Probe {
+        /**
+         * @param card connected card
+         * @param values put results here
+         * @throws SmartcardException if error
+         */
+        void probe(Smartcard card, Map<String, String> values) throws SmartcardException;
+    }
+
+    /** Receives results as they complete. */
+    public interface Listener {
+        /** @param item result */
+        void onResult(Item item);
+    }
+
+    /** Result for one terminal. */
+    public static class Item {
+        private String terminal;
+        private volatile String atr;
+        private Map<String, String> values = Collections.synchronizedMap(new LinkedHashMap<String, String>());
+        private Throwable error;
+        private boolean timedOut;
+        private long elapsedMillis;
+        private volatile long startedAt;
+
+        /** @return terminal name. */
+        public String getTerminal() { return terminal; }
+        /** @return hex ATR, or null if not connected. */
+        public String getATR() { return atr; }
+        /** @return probe results. */
+        public Map<String, String> getValues() { return values; }
+        /** @return error, or null if probe succeeded. */
+        public Throwable getError() { return error; }
+        /** @return true if card did not finish before timeout. */
+        public boolean isTimedOut() { return timedOut; }
+        /** @return time from connect to result, 0 if never started. */
+        public long getElapsedMillis() { return elapsedMillis; }
+
+        /** @return summary. */
+        public String toString() {
+            return terminal + " atr=" + atr + " " + values + (timedOut ? " TIMEOUT" : error != null ? " " + error : "")
+                    + " " + elapsedMillis + "ms";
+        }
+    }
+
+    private Probe probe = globalPlatformProbe();
+    private Listener listener;
+    private long timeoutMillis = 30000;
+    private int maxThreads = 256;
+
+    /** @param probe probe, default {@link #globalPlatformProbe()} */
+    public void setProbe(Probe probe) { this.probe = probe; }
+
+    /** @param listener listener, called on the scanning thread */
+    public void setListener(Listener listener) { this.listener = listener; }
+
+    /** @param timeoutMillis max time from start of scan to end of each probe, default 30s */
+    public void setTimeoutMillis(long timeoutMillis) { this.timeoutMillis = timeoutMillis; }
+
+    /** @param maxThreads max cards probed at once, default 256 */
+    public void setMaxThreads(int maxThreads) { this.maxThreads = maxThreads; }
+
+    /**
+     * Probe that sends named commands and records the response data in
+     * hex, or "sw xxxx" if the status word is not 9000.
+     * @param commands name and hex command pairs
+     * @return probe
+     */
+    public static Probe commands(String... commands) {
+        final Map<String, byte[]> cmds = new LinkedHashMap<String, byte[]>();
+        for (int i = 0; i < commands.length; i += 2) {
+            cmds.put(commands[i], Hex.s2b(commands[i + 1]));
+        }
+        return new Probe() {
+            public void probe(Smartcard card, Map<String, String> values) throws SmartcardException {
+                for (Map.Entry<String, byte[]> entry : cmds.entrySet()) {
+                    APDURes res = card.transmit(entry.getValue());
+                    values.put(entry.getKey(), res.getSW() == 0x9000 ? Hex.b2s(res.getData())
+                            : String.format("sw %04x", res.getSW()));
+                }
+            }
+        };
+    }
+
+    /**
+     * Selects the issuer security domain and reads CPLC (serial number),
+     * key information template (key versions) and GET STATUS of
+     * applications.  Cards that need a secure channel for GET STATUS
+     * report its status word instead.
+     * @return probe
+     */
+    public static Probe globalPlatformProbe() {
+        return commands(
+                "select", "00a4040000",
+                "cplc", "80ca9f7f00",
+                "keys", "80ca00e000",
+                "applets", "80f24002024f0000");
+    }
+
+    /**
+     * Scan all PC/SC terminals with a card present.
+     * @return results in order of completion
+     * @throws CardException if terminals cannot be listed
+     * @throws InterruptedException if interrupted
+     */
+    public List<Item> scan() throws CardException, InterruptedException {
+        return scan(TerminalFactory.getDefault().terminals().list(CardTerminals.State.CARD_PRESENT));
+    }
+
+    /**
+     * Scan terminals.
+     * @param terminals terminals
+     * @return results in order of completion
+     * @throws InterruptedException if interrupted
+     */
+    public List<Item> scan(List<CardTerminal> terminals) throws InterruptedException {
+        List<Item> results = new ArrayList<Item>();
+        if (terminals.isEmpty()) {
+            return results;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(maxThreads, terminals.size()),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "smartcard-inventory");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        CompletionService<Item> completion = new ExecutorCompletionService<Item>(executor);
+        Map<Future<Item>, Item> pending = new HashMap<Future<Item>, Item>();
+        try {
+            for (final CardTerminal terminal : terminals) {
+                final Item item = new Item();
+                item.terminal = terminal.getName();
+                pending.put(completion.submit(new Callable<Item>() {
+                    public Item call() {
+                        probe(terminal, item);
+                        return item;
+                    }
+                }), item);
+            }
+            // one deadline for all cards, queued cards that never start are reported as timed out
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (!pending.isEmpty()) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    break;
+                }
+                Future<Item> f = completion.poll(wait, TimeUnit.MILLISECONDS);
+                if (f != null && pending.remove(f) != null) {
+                    try {
+                        report(f.get(), results);
+                    } catch (ExecutionException e) {
+                        // probe catches everything, does not happen
+                        throw new IllegalStateException(e.getCause());
+                    }
+                }
+            }
+            long now = System.currentTimeMillis();
+            for (Iterator<Map.Entry<Future<Item>, Item>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<Future<Item>, Item> entry = it.next();
+                Item item = entry.getValue();
+                entry.getKey().cancel(true);
+                it.remove();
+                Item timedOut = new Item();
+                timedOut.terminal = item.terminal;
+                timedOut.atr = item.atr;
+                synchronized (item.values) {
+                    timedOut.values.putAll(item.values);
+                }
+                timedOut.timedOut = true;
+                timedOut.elapsedMillis = item.startedAt > 0 ? now - item.startedAt : 0;
+                report(timedOut, results);
+            }
+        } finally {
+            for (Future<Item> f : pending.keySet()) {
+                f.cancel(true);
+            }
+            executor.shutdownNow();
+        }
+        return results;
+    }
+
+    private void probe(CardTerminal terminal, Item item) {
+        item.startedAt = System.currentTimeMillis();
+        SCIOSmartcard card = null;
+        try {
+            card = new SCIOSmartcard(terminal);
+            item.atr = Hex.b2s(card.getATR());
+            probe.probe(card, item.values);
+        } catch (Throwable e) {
+            item.error = e;
+        } finally {
+            if (card != null) {
+                try {
+                    card.disconnect(false);
+                } catch (SmartcardException e) {
+                    // ignore
+                }
+            }
+            item.elapsedMillis = System.currentTimeMillis() - item.startedAt;
+        }
+    }
+
+    private void report(Item item, List<Item> results) {
+        results.add(item);
+        if (listener != null) {
+            listener.onResult(item);
+        }
+    }
+
+    /**
+     * Print inventory of all terminals.
+     * @param args ignored
+     * @throws Exception if error
+     */
+    public static void main(String[] args) throws Exception {
+        Inventory inventory = new Inventory();
+        inventory.setListener(new Listener() {
+            public void onResult(Item item) {
+                System.out.println(item);
+            }
+        });
+        inventory.scan();
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright 2009-2011 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.java.jless.smartcard;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Records the commands that established the current session state so it
+ * can be restored after a reconnect by {@link #recover()}.
+ * <p>
+ * Successful SELECT, VERIFY and MANAGE SECURITY ENVIRONMENT commands are
+ * recorded automatically and the journal is kept minimal:
+ * <ul>
+ * <li>SELECT by DF name, of MF or by path from MF starts a new journal</li>
+ * <li>SELECT of an EF (P1=02, or FCP file descriptor shows an EF) replaces
+ * an EF select at the end of the journal, whatever its P1</li>
+ * <li>SELECT repeating the last entry is not recorded again</li>
+ * <li>VERIFY and MSE replace earlier commands with the same P1 and P2</li>
+ * <li>CHANGE REFERENCE DATA and RESET RETRY COUNTER remove VERIFY of the
+ * same reference (P2) since the recorded PIN may no longer be valid</li>
+ * </ul>
+ * A VERIFY that fails during replay is removed from the journal and
+ * recovery stops without a warm reset, so a stale PIN uses at most one
+ * try.
+ * State that cannot be restored by replaying bytes, such as a secure
+ * channel, can be added with {@link #addStep(Step)}.  The journal holds
+ * VERIFY data (PINs) in memory, use {@link #setRecordVerify(boolean)}
+ * to turn this off.
+ */
+public class JournalingSmartcard implements SmartcardDecorator {
+    private static final SmartcardLog log = SmartcardLog.getLog(JournalingSmartcard.class);
+
+    /** Custom step replayed during recovery. */
+    public interface Step {
+        /**
+         * Restore state.
+         * @param card underlying card
+         * @throws SmartcardException if error
+         */
+        void replay(Smartcard card) throws SmartcardException;
+    }
+
+    private ReconnectableSmartcard card;
+    // entries are byte[] commands or Step
+    private List<Object> journal = new ArrayList<Object>();
+    private boolean recordVerify = true;
+    private boolean allowWarmReset = true;
+    private boolean autoRecover = false;
+    // last journal entry is an EF select which the next EF select replaces
+    private boolean efAtEnd = false;
+
+    /**
+     * Constructor.
+     * @param card base card
+     */
+    public JournalingSmartcard(ReconnectableSmartcard card) {
+        this.card = card;
+    }
+
+    /** @param recordVerify if false VERIFY commands are not recorded */
+    public void setRecordVerify(boolean recordVerify) { this.recordVerify = recordVerify; }
+
+    /** @param allowWarmReset if false {@link #recover()} never resets the card */
+    public void setAllowWarmReset(boolean allowWarmReset) { this.allowWarmReset = allowWarmReset; }
+
+    /**
+     * @param autoRecover if true a failed transmit recovers the session.  Read only
+     * commands (SELECT, READ BINARY, READ RECORD, GET DATA) are then retried once,
+     * for other commands the original failure is thrown after recovery
+     */
+    public void setAutoRecover(boolean autoRecover) { this.autoRecover = autoRecover; }
+
+    /** @return number of journal entries. */
+    public synchronized int getJournalSize() { return journal.size(); }
+
+    /** Clear journal. */
+    public synchronized void clear() {
+        journal.clear();
+        efAtEnd = false;
+    }
+
+    /**
+     * Add custom step to end of journal.
+     * @param step step
+     */
+    public synchronized void addStep(Step step) {
+        journal.add(step);
+        efAtEnd = false;
+    }
+
+    /**
+     * Add command to end of journal.
+     * @param apdu command
+     */
+    public synchronized void record(byte[] apdu) {
+        journal.add(apdu.clone());
+        efAtEnd = false;
+    }
+
+    // update journal after successful command
+    private void update(byte[] apdu, APDURes res) {
+        if (apdu.length < 4 || (apdu[0] & 0x10) != 0) {
+            return;
+        }
+        int ins = apdu[1] & 0xff;
+        int p1 = apdu[2] & 0xff;
+        if (ins == 0xa4) {
+            boolean mf = p1 == 0 && apdu.length >= 7 && apdu[4] == 2 && apdu[5] == 0x3f && apdu[6] == 0;
+            if (p1 == 0x04 || p1 == 0x08 || mf || (p1 == 0 && apdu.length <= 5)) {
+                journal.clear();
+                efAtEnd = false;
+            } else {
+                boolean ef = isEFSelect(p1, res);
+                if (ef && efAtEnd) {
+                    journal.remove(journal.size() - 1);
+                } else if (!journal.isEmpty() && journal.get(journal.size() - 1) instanceof byte[]
+                        && Arrays.equals((byte[]) journal.get(journal.size() - 1), apdu)) {
+                    return; // same select repeated
+                }
+                journal.add(apdu.clone());
+                efAtEnd = ef;
+                return;
+            }
+        } else if (ins == 0x24 || ins == 0x2c) {
+            // PIN changed or reset, recorded VERIFY is stale
+            removeVerify(apdu[3]);
+            return;
+        } else if ((ins == 0x20 && recordVerify && apdu.length > 5) || ins == 0x22) {
+            // VERIFY without data only queries status
+            for (int i = journal.size() - 1; i >= 0; i--) {
+                Object o = journal.get(i);
+                if (o instanceof byte[]) {
+                    byte[] prev = (byte[]) o;
+                    if (prev[1] == apdu[1] && prev[2] == apdu[2] && prev[3] == apdu[3]) {
+                        journal.remove(i);
+                    }
+                }
+            }
+        } else {
+            return;
+        }
+        journal.add(apdu.clone());
+        efAtEnd = false;
+    }
+
+    // remove recorded VERIFY of reference p2
+    private void removeVerify(byte p2) {
+        for (int i = journal.size() - 1; i >= 0; i--) {
+            Object o = journal.get(i);
+            if (o instanceof byte[] && ((byte[]) o)[1] == 0x20 && ((byte[]) o)[3] == p2) {
+                journal.remove(i);
+            }
+        }
+    }
+
+    // P1=02 always selects an EF, otherwise use file descriptor byte in FCP if returned
+    static boolean isEFSelect(int p1, APDURes res) {
+        if (p1 == 0x02) {
+            return true;
+        }
+        byte[] b = res.getBytes();
+        if (b.length < 5 || (b[0] & 0xff) != 0x62) {
+            return false;
+        }
+        try {
+            BerTlv fdb = BerTlv.parse(res).find(0x82);
+            return fdb != null && fdb.getLength() > 0 && (fdb.getBuf()[fdb.getValueOffset()] & 0x38) != 0x38;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    // commands that do not change card state and can be sent again after recovery
+    static boolean isIdempotent(byte[] apdu) {
+        if (apdu.length < 4) {
+            return false;
+        }
+        switch (apdu[1] & 0xff) {
+        case 0xa4: // SELECT
+        case 0xb0: // READ BINARY
+        case 0xb1:
+        case 0xb2: // READ RECORD
+        case 0xb3:
+        case 0xca: // GET DATA
+        case 0xcb:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Reconnect and replay journal as one batch.  The card is first
+     * reconnected without reset so state that survived is kept; if replay
+     * fails and warm reset is allowed, the card is reset and replay is
+     * tried again.  A VERIFY rejected by the card is never retried.
+     * @throws SmartcardException if session could not be restored
+     */
+    public synchronized void recover() throws SmartcardException {
+        long start = System.nanoTime();
+        card.reconnect(false);
+        try {
+            replay();
+        } catch (SmartcardException e) {
+            if (!allowWarmReset || e instanceof VerifyRejected) {
+                throw e;
+            }
+            log.debug("replay failed without reset, trying warm reset", e);
+            card.reconnect(true);
+            replay();
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("recovered " + journal.size() + " steps in " + (System.nanoTime() - start) / 1000000 + " ms");
+        }
+    }
+
+    private void replay() throws SmartcardException {
+        for (Object o : journal) {
+            if (o instanceof Step) {
+                ((Step) o).replay(card);
+                continue;
+            }
+            byte[] apdu = (byte[]) o;
+            APDURes res = card.transmit(apdu);
+            if ((apdu[1] & 0xff) == 0x20 && res.getSW() != 0x9000) {
+                // wrong or blocked PIN, each replay would use a try
+                journal.remove(o);
+                throw new VerifyRejected(String.format("replay of VERIFY rejected, sw=%04x, apdu: %s",
+                        res.getSW(), Hex.b2s(apdu, 0, 4)), res.getSW());
+            }
+            if (res.getSW() != 0x9000 && res.getSW1() != 0x61) {
+                throw new SmartcardException(String.format("replay failed, sw=%04x, apdu: %s", res.getSW(),
+                        (apdu[1] & 0xff) == 0x20 ? Hex.b2s(apdu, 0, 4) : Hex.b2s(apdu)), res.getSW());
+            }
+        }
+    }
+
+    // VERIFY failed during replay, must not be replayed again
+    private static class VerifyRejected extends SmartcardException {
+        private static final long serialVersionUID = 4412093381263620718L;
+
+        VerifyRejected(String msg, int sw) {
+            super(msg, sw);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public Smartcard getCard() { return card; }
+
+    /** {@inheritDoc} */
+    public String getIFDName() { return card.getIFDName(); }
+
+    /** {@inheritDoc} */
+    public byte[] getATR() { return card.getATR(); }
+
+    /** {@inheritDoc} */
+    public synchronized APDURes transmit(byte[] apdu) throws SmartcardException {
+        APDURes res;
+        try {
+            res = card.transmit(apdu);
+        } catch (SmartcardException e) {
+            if (!autoRecover) {
+                throw e;
+            }
+            log.debug("transmit failed, recovering session", e);
+            recover();
+            if (!isIdempotent(apdu)) {
+                // may have been executed before the failure, caller decides
+                throw e;
+            }
+            res = card.transmit(apdu);
+        }
+        if (res.getSW() == 0x9000 || res.getSW1() == 0x61) {
+            update(apdu, res);
+        }
+        return res;
+    }
+
+    /** {@inheritDoc} */
+    public String transmith(String hexApdu) throws SmartcardException {
+        return transmit(HexCommandCache.decode(hexApdu)).toString();
+    }
+
+    /** {@inheritDoc} */
+    public APDURes transmit(int cla, int ins, int p1, int p2, byte[] data, Integer le) throws SmartcardException {
+        return transmit(SmartcardUtil.formatAPDU(cla, ins, p1, p2, data, le));
+    }
+
+    /** {@inheritDoc} */
+    public void disconnect(boolean reset) throws SmartcardException {
+        card.disconnect(reset);
+    }
+}
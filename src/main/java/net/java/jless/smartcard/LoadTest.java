@@ -0,0 +1,480 @@
+/*
+ * Copyright 2009-2011 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.java.jless.smartcard;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals;
+import javax.smartcardio.TerminalFactory;
+
+/**
+ * Load and soak test for any {@link Smartcard}.  Each card is driven by
+ * its own thread sending a weighted random mix of commands.
+ * <p>
+ * In the closed model ({@link #setRate(double)} 0) each thread sends the
+ * next command as soon as the last returns.  In the open model commands
+ * are scheduled at a fixed rate and latency is measured from the
+ * scheduled time, not the send time, so time spent queued behind a slow
+ * command is counted (coordinated omission correction).
+ * <pre>
+ * LoadTest test = new LoadTest();
+ * test.addCommand(Hex.s2b("00a4040007a0000000041010"), 1, 0x9000);
+ * test.addCommand(Hex.s2b("00b2010c00"), 5, 0x9000);
+ * test.setDurationMillis(60000);
+ * test.setRate(200);
+ * LoadTest.Result result = test.run(cards);
+ * System.out.println(result);
+ * List&lt;String&gt; regressions = result.compare(LoadTest.loadBaseline(file), 10);
+ * </pre>
+ */
+public class LoadTest {
+    private List<byte[]> commands = new ArrayList<byte[]>();
+    private List<Integer> expectedSWs = new ArrayList<Integer>();
+    private int[] cumulativeWeights = new int[0];
+    private long durationMillis = 10000;
+    private long warmupMillis = 1000;
+    private double rate;
+
+    /**
+     * Add command to mix.
+     * @param apdu command
+     * @param weight relative frequency
+     * @param expectedSW expected status word, others counted as errors
+     */
+    public void addCommand(byte[] apdu, int weight, int expectedSW) {
+        commands.add(apdu);
+        expectedSWs.add(expectedSW);
+        int[] cw = new int[cumulativeWeights.length + 1];
+        System.arraycopy(cumulativeWeights, 0, cw, 0, cumulativeWeights.length);
+        cw[cw.length - 1] = (cw.length > 1 ? cw[cw.length - 2] : 0) + weight;
+        cumulativeWeights = cw;
+    }
+
+    /** @param durationMillis measured duration, default 10s */
+    public void setDurationMillis(long durationMillis) { this.durationMillis = durationMillis; }
+
+    /** @param warmupMillis unmeasured warm up before duration, default 1s */
+    public void setWarmupMillis(long warmupMillis) { this.warmupMillis = warmupMillis; }
+
+    /** @param rate total commands per second across all cards for open model, 0 (default) for closed model */
+    public void setRate(double rate) { this.rate = rate; }
+
+    /**
+     * Run test.
+     * @param cards cards, one thread each
+     * @return result
+     * @throws InterruptedException if interrupted
+     */
+    public Result run(List<? extends Smartcard> cards) throws InterruptedException {
+        if (commands.isEmpty()) {
+            throw new IllegalStateException("no commands added");
+        }
+        final Result result = new Result();
+        final long start = System.nanoTime() + 10000000L; // all threads start together
+        final long measureStart = start + warmupMillis * 1000000L;
+        final long end = measureStart + durationMillis * 1000000L;
+        final long interval = rate > 0 ? (long) (1e9 * cards.size() / rate) : 0;
+        final CountDownLatch done = new CountDownLatch(cards.size());
+        for (int i = 0; i < cards.size(); i++) {
+            final Smartcard card = cards.get(i);
+            final Random random = new Random(i);
+            Thread t = new Thread("smartcard-loadtest-" + i) {
+                public void run() {
+                    try {
+                        drive(card, random, result, start, measureStart, end, interval);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            };
+            t.setDaemon(true);
+            t.start();
+        }
+        done.await();
+        result.durationMillis = durationMillis;
+        result.cards = cards.size();
+        return result;
+    }
+
+    private void drive(Smartcard card, Random random, Result result, long start, long measureStart, long end,
+            long interval) {
+        Histogram latency = new Histogram();
+        Map<SmartcardException.Type, Long> errors = new EnumMap<SmartcardException.Type, Long>(
+                SmartcardException.Type.class);
+        long unexpectedSW = 0;
+        long count = 0;
+        long allocStart = -1;
+        long intended = start;
+        int total = cumulativeWeights[cumulativeWeights.length - 1];
+        while (true) {
+            long now = System.nanoTime();
+            if (interval > 0) {
+                // open model, wait for schedule but never skip commands that are late
+                intended += interval;
+                while ((now = System.nanoTime()) < intended) {
+                    long sleep = (intended - now) / 1000000L;
+                    if (sleep > 1) {
+                        sleepMillis(sleep - 1);
+                    } else {
+                        Thread.yield();
+                    }
+                }
+            } else {
+                intended = now;
+            }
+            if (intended >= end) {
+                break;
+            }
+            boolean measured = intended >= measureStart;
+            if (measured && allocStart < 0) {
+                allocStart = allocatedBytes();
+            }
+            int w = random.nextInt(total);
+            int cmd = 0;
+            while (cumulativeWeights[cmd] <= w) {
+                cmd++;
+            }
+            try {
+                APDURes res = card.transmit(commands.get(cmd));
+                if (measured && res.getSW() != expectedSWs.get(cmd).intValue()) {
+                    unexpectedSW++;
+                }
+            } catch (SmartcardException e) {
+                if (measured) {
+                    Long n = errors.get(e.getType());
+                    errors.put(e.getType(), n == null ? 1L : n + 1);
+                }
+            }
+            if (measured) {
+                latency.record(System.nanoTime() - intended);
+                count++;
+            }
+        }
+        long alloc = allocStart < 0 ? -1 : allocatedBytes();
+        result.add(latency, errors, unexpectedSW, count, alloc < 0 || allocStart < 0 ? -1 : alloc - allocStart);
+    }
+
+    private static void sleepMillis(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static Method allocatedBytes;
+    static {
+        try {
+            Class<?> c = Class.forName("com.sun.management.ThreadMXBean");
+            if (c.isInstance(ManagementFactory.getThreadMXBean())) {
+                allocatedBytes = c.getMethod("getThreadAllocatedBytes", long.class);
+            }
+        } catch (Exception e) {
+            // not available on this VM
+        }
+    }
+
+    // bytes allocated by current thread, -1 if not supported
+    private static long allocatedBytes() {
+        if (allocatedBytes == null) {
+            return -1;
+        }
+        try {
+            return (Long) allocatedBytes.invoke(ManagementFactory.getThreadMXBean(), Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Log-linear latency histogram, 32 sub-buckets per power of 2 so
+     * percentiles are within about 3%.
+     */
+    static class Histogram {
+        private static final int SUB = 32;
+        private long[] counts = new long[64 * SUB];
+        private long total;
+        private long max;
+
+        private static int index(long v) {
+            if (v < 2 * SUB) {
+                return (int) Math.max(v, 0);
+            }
+            int exp = 63 - Long.numberOfLeadingZeros(v) - 5; // v >> exp in [32, 64)
+            return exp * SUB + (int) (v >> exp);
+        }
+
+        private static long value(int index) {
+            if (index < 2 * SUB) {
+                return index;
+            }
+            int exp = index / SUB - 1;
+            long sub = index % SUB + SUB;
+            // upper end of bucket
+            return ((sub + 1) << exp) - 1;
+        }
+
+        void record(long v) {
+            counts[index(v)]++;
+            total++;
+            max = Math.max(max, v);
+        }
+
+        void add(Histogram h) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += h.counts[i];
+            }
+            total += h.total;
+            max = Math.max(max, h.max);
+        }
+
+        long percentile(double p) {
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(p / 100 * total);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(value(i), max);
+                }
+            }
+            return max;
+        }
+    }
+
+    /** Test result. */
+    public static class Result {
+        private Histogram latency = new Histogram();
+        private Map<SmartcardException.Type, Long> errors = new EnumMap<SmartcardException.Type, Long>(
+                SmartcardException.Type.class);
+        private long unexpectedSW;
+        private long count;
+        private long allocated;
+        private long durationMillis;
+        private int cards;
+
+        synchronized void add(Histogram h, Map<SmartcardException.Type, Long> e, long sw, long n, long alloc) {
+            latency.add(h);
+            for (Map.Entry<SmartcardException.Type, Long> entry : e.entrySet()) {
+                Long prev = errors.get(entry.getKey());
+                errors.put(entry.getKey(), (prev == null ? 0 : prev) + entry.getValue());
+            }
+            unexpectedSW += sw;
+            count += n;
+            allocated = alloc < 0 || allocated < 0 ? -1 : allocated + alloc;
+        }
+
+        /** @return commands measured. */
+        public synchronized long getCount() { return count; }
+
+        /** @return commands per second. */
+        public synchronized double getThroughput() { return count * 1000.0 / durationMillis; }
+
+        /**
+         * @param p percentile, e.g. 99.9
+         * @return latency in microseconds
+         */
+        public synchronized long getLatencyMicros(double p) { return latency.percentile(p) / 1000; }
+
+        /** @return exceptions and unexpected status words as fraction of commands. */
+        public synchronized double getErrorRate() {
+            long n = unexpectedSW;
+            for (Long e : errors.values()) {
+                n += e;
+            }
+            return count == 0 ? 0 : (double) n / count;
+        }
+
+        /** @return exceptions by type. */
+        public synchronized Map<SmartcardException.Type, Long> getErrors() {
+            return new EnumMap<SmartcardException.Type, Long>(errors);
+        }
+
+        /** @return bytes allocated per command by test threads, -1 if not supported by VM. */
+        public synchronized long getAllocatedBytesPerCommand() {
+            return allocated < 0 || count == 0 ? -1 : allocated / count;
+        }
+
+        /** @return result as properties for use as baseline. */
+        public synchronized Properties toProperties() {
+            Properties props = new Properties();
+            props.setProperty("throughput", String.format(Locale.ROOT, "%.1f", getThroughput()));
+            props.setProperty("p50", Long.toString(getLatencyMicros(50)));
+            props.setProperty("p99", Long.toString(getLatencyMicros(99)));
+            props.setProperty("p999", Long.toString(getLatencyMicros(99.9)));
+            props.setProperty("errorRate", String.format(Locale.ROOT, "%.6f", getErrorRate()));
+            props.setProperty("allocPerCommand", Long.toString(getAllocatedBytesPerCommand()));
+            return props;
+        }
+
+        /**
+         * Compare against baseline.
+         * @param baseline baseline from {@link #toProperties()}
+         * @param tolerancePercent allowed change before reporting
+         * @return regressions, empty if none
+         */
+        public List<String> compare(Properties baseline, double tolerancePercent) {
+            Properties now = toProperties();
+            List<String> regressions = new ArrayList<String>();
+            double tol = tolerancePercent / 100;
+            for (String key : new String[] {"throughput", "p50", "p99", "p999", "errorRate", "allocPerCommand"}) {
+                String base = baseline.getProperty(key);
+                if (base == null) {
+                    continue;
+                }
+                double b = parse(base);
+                double n = parse(now.getProperty(key));
+                if (b < 0 || n < 0) {
+                    continue;
+                }
+                boolean worse = key.equals("throughput") ? n < b * (1 - tol)
+                        : key.equals("errorRate") ? n > b + tol * Math.max(b, 0.001) : n > b * (1 + tol);
+                if (worse) {
+                    regressions.add(key + " " + base + " -> " + now.getProperty(key));
+                }
+            }
+            return regressions;
+        }
+
+        // baselines are written with Locale.ROOT, older ones may have a decimal comma
+        private static double parse(String value) {
+            return Double.parseDouble(value.trim().replace(',', '.'));
+        }
+
+        /** @return summary. */
+        public synchronized String toString() {
+            return String.format("cards=%d commands=%d throughput=%.1f/s latency(us) p50=%d p90=%d p99=%d p99.9=%d "
+                    + "max=%d errorRate=%.4f%% errors=%s unexpectedSW=%d alloc/command=%d",
+                    cards, count, getThroughput(), getLatencyMicros(50), getLatencyMicros(90), getLatencyMicros(99),
+                    getLatencyMicros(99.9), latency.max / 1000, getErrorRate() * 100, errors, unexpectedSW,
+                    getAllocatedBytesPerCommand());
+        }
+    }
+
+    /**
+     * Load baseline.
+     * @param file properties file
+     * @return baseline, empty if file does not exist
+     * @throws IOException if error reading
+     */
+    public static Properties loadBaseline(File file) throws IOException {
+        Properties props = new Properties();
+        if (file.exists()) {
+            InputStream in = new FileInputStream(file);
+            try {
+                props.load(in);
+            } finally {
+                in.close();
+            }
+        }
+        return props;
+    }
+
+    /**
+     * Save result as baseline.
+     * @param result result
+     * @param file properties file
+     * @throws IOException if error writing
+     */
+    public static void saveBaseline(Result result, File file) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            result.toProperties().store(out, "smartcard load test baseline");
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Run against all PC/SC readers with a card present.
+     * <pre>
+     * LoadTest commands.txt seconds [rate] [baseline.properties]
+     * </pre>
+     * Each line of commands.txt is <code>weight hexapdu [expectedsw]</code>.
+     * If baseline exists, regressions over 10% are printed and exit code is 1,
+     * otherwise result is saved as baseline.
+     * @param args args
+     * @throws Exception if error
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("usage: LoadTest commands.txt seconds [rate] [baseline.properties]");
+            System.exit(2);
+        }
+        LoadTest test = new LoadTest();
+        BufferedReader reader = new BufferedReader(new FileReader(args[0]));
+        try {
+            for (String line; (line = reader.readLine()) != null; ) {
+                String[] parts = line.trim().split("\\s+");
+                if (parts.length < 2 || parts[0].startsWith("#")) {
+                    continue;
+                }
+                int sw = parts.length > 2 ? Integer.parseInt(parts[2], 16) : 0x9000;
+                test.addCommand(Hex.s2b(parts[1]), Integer.parseInt(parts[0]), sw);
+            }
+        } finally {
+            reader.close();
+        }
+        test.setDurationMillis(Long.parseLong(args[1]) * 1000);
+        if (args.length > 2) {
+            test.setRate(Double.parseDouble(args[2]));
+        }
+        List<Smartcard> cards = new ArrayList<Smartcard>();
+        for (CardTerminal t : TerminalFactory.getDefault().terminals().list(CardTerminals.State.CARD_PRESENT)) {
+            cards.add(new SCIOSmartcard(t));
+        }
+        Result result = test.run(cards);
+        System.out.println(result);
+        if (args.length > 3) {
+            File file = new File(args[3]);
+            if (file.exists()) {
+                List<String> regressions = result.compare(loadBaseline(file), 10);
+                for (String r : regressions) {
+                    System.out.println("REGRESSION " + r);
+                }
+                System.exit(regressions.isEmpty() ? 0 : 1);
+            }
+            saveBaseline(result, file);
+        }
+    }
+}
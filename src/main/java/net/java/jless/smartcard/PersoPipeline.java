@@ -0,0 +1,375 @@
+/*
+ * Copyright 2009-2011 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.java.jless.smartcard;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Personalisation pipeline that prepares card data on worker threads
+ * while readers write previously prepared cards.
+ * <pre>
+ *  submit -&gt; [input queue] -&gt; preparers -&gt; [prepared queue] -&gt; reader threads -&gt; Listener
+ * </pre>
+ * Both queues are bounded, so {@link #submit(Object)} blocks when
+ * preparation is ahead of the readers and preparers block when the
+ * readers are ahead.  By default the prepared queue holds two jobs per
+ * reader so the next card's commands are always ready when a reader
+ * finishes.  Jobs complete in any order.
+ * <p>
+ * Before each job the reader's {@link Station} provides the card to
+ * write, e.g. waiting for the next card to be inserted and reconnecting,
+ * and after the job it is told the outcome.  A reader that fails with a
+ * transport error, timeout or removed card is taken out of rotation and
+ * its job is given to another reader; once no readers are left the
+ * remaining jobs fail.
+ * <pre>
+ * PersoPipeline&lt;Record&gt; pipeline = new PersoPipeline&lt;Record&gt;(new PersoPipeline.Preparer&lt;Record&gt;() {
+ *     public List&lt;byte[]&gt; prepare(Record r) throws Exception { ... derive keys, build DGIs ... }
+ * }, 4);
+ * pipeline.addReader(reader1);
+ * pipeline.addReader(reader2);
+ * pipeline.start();
+ * for (Record r : records) {
+ *     pipeline.submit(r);
+ * }
+ * pipeline.finish();
+ * </pre>
+ */
+public class PersoPipeline<T> {
+    private static final SmartcardLog log = SmartcardLog.getLog(PersoPipeline.class);
+
+    /** Prepares commands for a job, called on a worker thread. */
+    public interface Preparer<T> {
+        /**
+         * @param job job
+         * @return commands to send
+         * @throws Exception if job cannot be prepared
+         */
+        List<byte[]> prepare(T job) throws Exception;
+    }
+
+    /** Sends prepared commands to a card, called on the reader's thread. */
+    public interface Writer<T> {
+        /**
+         * @param card reader's card
+         * @param job job
+         * @param commands prepared commands
+         * @throws SmartcardException if card fails
+         */
+        void write(Smartcard card, T job, List<byte[]> commands) throws SmartcardException;
+    }
+
+    /** Card exchange for a reader, called on the reader's thread. */
+    public interface Station {
+        /**
+         * Provide card for next job, e.g. wait for card present and reconnect.
+         * @param reader reader added with {@link PersoPipeline#addReader(Smartcard)}
+         * @return card to write
+         * @throws SmartcardException if no card, reader is then taken out of rotation
+         */
+        Smartcard acquire(Smartcard reader) throws SmartcardException;
+
+        /**
+         * Job done on card, e.g. eject or sort.
+         * @param card card from {@link #acquire(Smartcard)}
+         * @param error error, or null if successful
+         */
+        void release(Smartcard card, Throwable error);
+    }
+
+    /** Told when each job is done. */
+    public interface Listener<T> {
+        /**
+         * @param job job
+         * @param card card written, or null if preparation failed or no readers left
+         * @param error error, or null if successful
+         */
+        void done(T job, Smartcard card, Throwable error);
+    }
+
+    private static class Prepared<T> {
+        private T job;
+        private List<byte[]> commands;
+        private Throwable error;
+        private boolean end;
+    }
+
+    private Preparer<T> preparer;
+    private int prepThreads;
+    private Writer<T> writer = new Writer<T>() {
+        public void write(Smartcard card, T job, List<byte[]> commands) throws SmartcardException {
+            for (byte[] apdu : commands) {
+                APDURes res = card.transmit(apdu);
+                if (res.getSW() != 0x9000) {
+                    throw new SmartcardException(String.format("command %s failed, sw %04x",
+                            Hex.b2s(apdu, 0, 4), res.getSW()), res.getSW());
+                }
+            }
+        }
+    };
+    private Station station = new Station() {
+        public Smartcard acquire(Smartcard reader) { return reader; }
+        public void release(Smartcard card, Throwable error) { }
+    };
+    private Listener<T> listener;
+    private List<Smartcard> readers = new ArrayList<Smartcard>();
+    private int inputSize = 16;
+    private int preparedPerReader = 2;
+    private BlockingQueue<Prepared<T>> input;
+    private BlockingQueue<Prepared<T>> prepared;
+    private CountDownLatch prepDone;
+    private CountDownLatch readersDone;
+    private AtomicInteger activeReaders = new AtomicInteger();
+    // jobs submitted but not yet passed to done()
+    private final Object idle = new Object();
+    private long pending;
+    private AtomicLong succeeded = new AtomicLong();
+    private AtomicLong failed = new AtomicLong();
+
+    /**
+     * Constructor.
+     * @param preparer preparer
+     * @param prepThreads number of preparation threads
+     */
+    public PersoPipeline(Preparer<T> preparer, int prepThreads) {
+        this.preparer = preparer;
+        this.prepThreads = prepThreads;
+    }
+
+    /** @param writer writer, default sends each command and requires 9000 */
+    public void setWriter(Writer<T> writer) { this.writer = writer; }
+
+    /** @param station card exchange, default writes every job to the reader's card as is */
+    public void setStation(Station station) { this.station = station; }
+
+    /** @param listener listener, called on preparer or reader threads */
+    public void setListener(Listener<T> listener) { this.listener = listener; }
+
+    /** @param inputSize jobs waiting for preparation before submit blocks, default 16 */
+    public void setInputSize(int inputSize) { this.inputSize = inputSize; }
+
+    /** @param preparedPerReader prepared jobs buffered per reader, default 2 */
+    public void setPreparedPerReader(int preparedPerReader) { this.preparedPerReader = preparedPerReader; }
+
+    /** @param card reader, each gets its own thread */
+    public void addReader(Smartcard card) { readers.add(card); }
+
+    /** @return jobs written successfully. */
+    public long getSucceeded() { return succeeded.get(); }
+
+    /** @return jobs failed in preparation or writing. */
+    public long getFailed() { return failed.get(); }
+
+    /** Start preparer and reader threads. */
+    public synchronized void start() {
+        if (readers.isEmpty()) {
+            throw new IllegalStateException("no readers added");
+        }
+        input = new ArrayBlockingQueue<Prepared<T>>(inputSize);
+        prepared = new ArrayBlockingQueue<Prepared<T>>(preparedPerReader * readers.size());
+        prepDone = new CountDownLatch(prepThreads);
+        readersDone = new CountDownLatch(readers.size());
+        activeReaders.set(readers.size());
+        for (int i = 0; i < prepThreads; i++) {
+            Thread t = new Thread("smartcard-perso-prep-" + i) {
+                public void run() {
+                    prepare();
+                }
+            };
+            t.setDaemon(true);
+            t.start();
+        }
+        for (final Smartcard card : readers) {
+            Thread t = new Thread("smartcard-perso-" + card.getIFDName()) {
+                public void run() {
+                    write(card);
+                }
+            };
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /**
+     * Add job, blocks while the input queue is full.
+     * @param job job
+     * @throws InterruptedException if interrupted
+     * @throws IllegalStateException if not started
+     */
+    public void submit(T job) throws InterruptedException {
+        if (input == null) {
+            throw new IllegalStateException("pipeline not started");
+        }
+        Prepared<T> p = new Prepared<T>();
+        p.job = job;
+        synchronized (idle) {
+            pending++;
+        }
+        input.put(p);
+    }
+
+    /**
+     * Wait until all submitted jobs are done, then stop threads.
+     * @throws InterruptedException if interrupted
+     */
+    public void finish() throws InterruptedException {
+        for (int i = 0; i < prepThreads; i++) {
+            input.put(end());
+        }
+        prepDone.await();
+        // jobs given back by a failed reader are still pending, readers stop only once all are done
+        synchronized (idle) {
+            while (pending > 0) {
+                idle.wait();
+            }
+        }
+        for (int i = 0; i < readers.size(); i++) {
+            prepared.put(end());
+        }
+        readersDone.await();
+    }
+
+    private Prepared<T> end() {
+        Prepared<T> p = new Prepared<T>();
+        p.end = true;
+        return p;
+    }
+
+    private void prepare() {
+        try {
+            while (true) {
+                Prepared<T> p = input.take();
+                if (p.end) {
+                    return;
+                }
+                try {
+                    p.commands = preparer.prepare(p.job);
+                } catch (Throwable e) {
+                    p.error = e;
+                    done(p.job, null, e);
+                    continue;
+                }
+                prepared.put(p);
+            }
+        } catch (InterruptedException e) {
+            log.debug("preparer interrupted");
+        } finally {
+            prepDone.countDown();
+        }
+    }
+
+    private void write(Smartcard reader) {
+        try {
+            while (true) {
+                Prepared<T> p = prepared.take();
+                if (p.end) {
+                    return;
+                }
+                Smartcard card;
+                try {
+                    card = station.acquire(reader);
+                } catch (Throwable e) {
+                    if (retire(reader, p, e)) {
+                        return;
+                    }
+                    continue;
+                }
+                Throwable error = null;
+                try {
+                    writer.write(card, p.job, p.commands);
+                } catch (Throwable e) {
+                    error = e;
+                }
+                station.release(card, error);
+                if (error != null && isReaderFailure(error)) {
+                    if (retire(reader, p, error)) {
+                        return;
+                    }
+                    continue;
+                }
+                done(p.job, card, error);
+            }
+        } catch (InterruptedException e) {
+            log.debug("writer interrupted");
+        } finally {
+            readersDone.countDown();
+        }
+    }
+
+    static boolean isReaderFailure(Throwable e) {
+        if (!(e instanceof SmartcardException)) {
+            return false;
+        }
+        SmartcardException.Type type = ((SmartcardException) e).getType();
+        return type == SmartcardException.Type.TRANSPORT || type == SmartcardException.Type.TIMEOUT
+                || type == SmartcardException.Type.CARD_REMOVED || type == SmartcardException.Type.CIRCUIT_OPEN;
+    }
+
+    // take reader out of rotation and give job to another reader, returns true if thread should stop
+    private boolean retire(Smartcard reader, Prepared<T> p, Throwable error) throws InterruptedException {
+        log.warn("reader " + reader.getIFDName() + " taken out of rotation", error);
+        if (activeReaders.decrementAndGet() > 0) {
+            prepared.put(p);
+            return true;
+        }
+        // last reader, fail this and all remaining jobs until finished
+        done(p.job, null, error);
+        while (true) {
+            Prepared<T> next = prepared.take();
+            if (next.end) {
+                return true;
+            }
+            done(next.job, null, new SmartcardException("no readers left", SmartcardException.Type.CIRCUIT_OPEN));
+        }
+    }
+
+    private void done(T job, Smartcard card, Throwable error) {
+        try {
+            if (error == null) {
+                succeeded.incrementAndGet();
+            } else {
+                failed.incrementAndGet();
+                log.warn("job failed on " + (card == null ? "no card" : card.getIFDName()), error);
+            }
+            if (listener != null) {
+                try {
+                    listener.done(job, card, error);
+                } catch (RuntimeException e) {
+                    log.warn("listener failed", e);
+                }
+            }
+        } finally {
+            synchronized (idle) {
+                if (--pending == 0) {
+                    idle.notifyAll();
+                }
+            }
+        }
+    }
+}
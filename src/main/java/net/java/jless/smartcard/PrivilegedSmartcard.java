@@ -29,21 +29,85 @@ import java.security.PrivilegedExceptionAction;
 /**
  * Executes all methods using {@link AccessController#doPrivileged(java.security.PrivilegedAction)}. This allows
  * Javascript to call Applet and use the signed applets security context.
+ * Use {@link #run(CardAction)} to send a sequence of commands in a single
+ * privileged call.  Use {@link #create(Smartcard)} to call the card
+ * directly when there is no SecurityManager.
  * @author Joel Hockey
  */
-public class PrivilegedSmartcard implements Smartcard {
+public class PrivilegedSmartcard implements SmartcardDecorator {
     private Smartcard card;
+    private boolean direct;
+
+    /** Commands to run in one privileged call. */
+    public interface CardAction<T> {
+        /**
+         * @param card base card, commands sent to it are not individually privileged
+         * @return result
+         * @throws SmartcardException if error
+         */
+        T run(Smartcard card) throws SmartcardException;
+    }
 
     /**
-     * Create privileged smartcard.
+     * Create privileged smartcard.  Every call uses doPrivileged.
      * @param card base card
      */
     public PrivilegedSmartcard(Smartcard card) {
+        this(card, false);
+    }
+
+    /**
+     * Create privileged smartcard.
+     * @param card base card
+     * @param direct if true, call card directly without doPrivileged
+     */
+    public PrivilegedSmartcard(Smartcard card, boolean direct) {
         this.card = card;
+        this.direct = direct;
+    }
+
+    /**
+     * Create privileged smartcard which calls the card directly if no
+     * SecurityManager is installed now.  The check is done once, a
+     * SecurityManager installed later is not seen.
+     * @param card base card
+     * @return privileged smartcard
+     */
+    @SuppressWarnings("removal")
+    public static PrivilegedSmartcard create(Smartcard card) {
+        return new PrivilegedSmartcard(card, System.getSecurityManager() == null);
+    }
+
+    /** @return true if card is called directly without doPrivileged. */
+    public boolean isDirect() { return direct; }
+
+    /**
+     * Run action in a single privileged call.
+     * @param action action
+     * @return result of action
+     * @throws SmartcardException if error
+     */
+    public <T> T run(final CardAction<T> action) throws SmartcardException {
+        if (direct) {
+            return action.run(card);
+        }
+        try {
+            return AccessController.doPrivileged(new PrivilegedExceptionAction<T>() {
+                public T run() throws SmartcardException {
+                    return action.run(card);
+                }
+            });
+        } catch (PrivilegedActionException pae) {
+            throw (SmartcardException) pae.getException();
+        }
     }
 
     /** {@inheritDoc}} */
     public void disconnect(final boolean reset) throws SmartcardException {
+        if (direct) {
+            card.disconnect(reset);
+            return;
+        }
         try {
             AccessController.doPrivileged(new PrivilegedExceptionAction() {
                 public Object run() throws SmartcardException {
@@ -56,6 +120,9 @@ public class PrivilegedSmartcard implements Smartcard {
         }
     }
 
+    /** {@inheritDoc} */
+    public Smartcard getCard() { return card; }
+
     /** {@inheritDoc}} */
     public String getIFDName() {
         return card.getIFDName();
@@ -63,6 +130,9 @@ public class PrivilegedSmartcard implements Smartcard {
 
     /** {@inheritDoc}} */
     public byte[] getATR() {
+        if (direct) {
+            return card.getATR();
+        }
         try {
             return AccessController.doPrivileged(new PrivilegedExceptionAction<byte[]>() {
                 public byte[] run() {
@@ -77,6 +147,9 @@ public class PrivilegedSmartcard implements Smartcard {
 
     /** {@inheritDoc}} */
     public APDURes transmit(final byte[] apdu) throws SmartcardException {
+        if (direct) {
+            return card.transmit(apdu);
+        }
         try {
             return AccessController.doPrivileged(new PrivilegedExceptionAction<APDURes>() {
                 public APDURes run() throws SmartcardException {
@@ -90,13 +163,16 @@ public class PrivilegedSmartcard implements Smartcard {
 
     /** {@inheritDoc} */
     public String transmith(String hexApdu) throws SmartcardException {
-        return transmit(Hex.s2b(hexApdu)).toString();
+        return transmit(HexCommandCache.decode(hexApdu)).toString();
     }
 
     /** {@inheritDoc}} */
     public APDURes transmit(final int cla, final int ins, final int p1, final int p2, final byte[] data, final Integer le)
             throws SmartcardException {
 
+        if (direct) {
+            return card.transmit(cla, ins, p1, p2, data, le);
+        }
         try {
             return AccessController.doPrivileged(new PrivilegedExceptionAction<APDURes>() {
                 public APDURes run() throws SmartcardException {
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2009-2011 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.java.jless.smartcard;
+
+/**
+ * Transfer sizes measured for a reader and card pair.
+ * Stored in {@link ReaderProfileCache} keyed by IFD name and ATR.
+ */
+public class ReaderProfile {
+    private String ifdName;
+    private String atr;
+    private int chainSize;
+    private int readSize;
+    private long rttMicros;
+
+    /**
+     * Constructor.
+     * @param ifdName IFD name
+     * @param atr hex ATR
+     * @param chainSize best data len for each chained command piece
+     * @param readSize best Le for each READ BINARY
+     * @param rttMicros round trip time of a minimal command in microseconds
+     */
+    public ReaderProfile(String ifdName, String atr, int chainSize, int readSize, long rttMicros) {
+        this.ifdName = ifdName;
+        this.atr = atr;
+        this.chainSize = chainSize;
+        this.readSize = readSize;
+        this.rttMicros = rttMicros;
+    }
+
+    /**
+     * Key for profile lookup.
+     * @param ifdName IFD name
+     * @param atr hex ATR
+     * @return key
+     */
+    public static String key(String ifdName, String atr) {
+        return ifdName + "|" + atr;
+    }
+
+    /** @return key of this profile. */
+    public String getKey() { return key(ifdName, atr); }
+    /** @return IFD name. */
+    public String getIFDName() { return ifdName; }
+    /** @return hex ATR. */
+    public String getATR() { return atr; }
+    /** @return best data len for each chained command piece. */
+    public int getChainSize() { return chainSize; }
+    /** @return best Le for each READ BINARY. */
+    public int getReadSize() { return readSize; }
+    /** @return round trip time of a minimal command in microseconds. */
+    public long getRttMicros() { return rttMicros; }
+
+    /** @return profile as string. */
+    public String toString() {
+        return "ReaderProfile [" + getKey() + "] chainSize=" + chainSize + ", readSize=" + readSize
+                + ", rtt=" + rttMicros + "us";
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2009-2011 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.java.jless.smartcard;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.Properties;
+
+/**
+ * On-disk cache of {@link ReaderProfile} stored as a properties file.
+ * <pre>
+ * &lt;ifdName&gt;|&lt;atr&gt;=&lt;chainSize&gt;,&lt;readSize&gt;,&lt;rttMicros&gt;
+ * </pre>
+ */
+public class ReaderProfileCache {
+    private static final SmartcardLog log = SmartcardLog.getLog(ReaderProfileCache.class);
+
+    private File file;
+    private Properties props = new Properties();
+
+    /**
+     * Constructor using <code>~/.smartcard/readers.properties</code>.
+     */
+    public ReaderProfileCache() {
+        this(new File(new File(System.getProperty("user.home"), ".smartcard"), "readers.properties"));
+    }
+
+    /**
+     * Constructor.  Loads existing profiles from file if it exists.
+     * @param file properties file
+     */
+    public ReaderProfileCache(File file) {
+        this.file = file;
+        if (!file.exists()) {
+            return;
+        }
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            props.load(in);
+        } catch (IOException e) {
+            log.warn("could not load reader profiles from " + file, e);
+        } finally {
+            close(in);
+        }
+    }
+
+    /** @return file where profiles are stored. */
+    public File getFile() { return file; }
+
+    /**
+     * Get profile.
+     * @param ifdName IFD name
+     * @param atr hex ATR
+     * @return profile or null if none stored or stored value is invalid
+     */
+    public synchronized ReaderProfile get(String ifdName, String atr) {
+        String value = props.getProperty(ReaderProfile.key(ifdName, atr));
+        if (value == null) {
+            return null;
+        }
+        String[] parts = value.split(",");
+        try {
+            return new ReaderProfile(ifdName, atr, Integer.parseInt(parts[0].trim()),
+                    Integer.parseInt(parts[1].trim()), Long.parseLong(parts[2].trim()));
+        } catch (RuntimeException e) {
+            log.warn("ignoring invalid reader profile " + ReaderProfile.key(ifdName, atr) + "=" + value);
+            return null;
+        }
+    }
+
+    /**
+     * Store profile and save file.  The file is locked and read again
+     * before writing, so profiles saved by other processes are kept.
+     * @param profile profile
+     * @throws IOException if error writing file
+     */
+    public synchronized void put(ReaderProfile profile) throws IOException {
+        String key = profile.getKey();
+        String value = profile.getChainSize() + "," + profile.getReadSize() + "," + profile.getRttMicros();
+        props.setProperty(key, value);
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs()) {
+            throw new IOException("could not create dir " + dir);
+        }
+        RandomAccessFile lockFile = new RandomAccessFile(new File(dir, file.getName() + ".lock"), "rw");
+        try {
+            FileLock lock = lockFile.getChannel().lock();
+            try {
+                // merge with profiles written by others since load
+                Properties merged = new Properties();
+                if (file.exists()) {
+                    InputStream in = new FileInputStream(file);
+                    try {
+                        merged.load(in);
+                    } finally {
+                        close(in);
+                    }
+                }
+                for (String name : merged.stringPropertyNames()) {
+                    if (!props.containsKey(name)) {
+                        props.setProperty(name, merged.getProperty(name));
+                    }
+                }
+                merged.setProperty(key, value);
+                save(merged, dir);
+            } finally {
+                lock.release();
+            }
+        } finally {
+            close(lockFile);
+        }
+    }
+
+    // write to tmp file then rename so readers never see partial file
+    private void save(Properties p, File dir) throws IOException {
+        File tmp = new File(dir, file.getName() + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            p.store(out, "smartcard reader profiles");
+        } finally {
+            close(out);
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("could not rename " + tmp + " to " + file);
+            }
+        }
+    }
+
+    private static void close(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2009-2011 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.java.jless.smartcard;
+
+import java.io.IOException;
+
+/**
+ * Measures chained command and READ BINARY throughput for several data
+ * sizes the first time a reader and card pair is seen, and stores the
+ * best sizes in a {@link ReaderProfileCache}.
+ * <p>
+ * Write sizes are measured by sending {@link #setWriteProbe(byte[]) write probe}
+ * commands with {@link #getPayloadLen()} bytes of data, read sizes by
+ * reading the EF selected by the {@link #setReadProbe(byte[]) read probe}.
+ * Probes must be safe to repeat on the card.  Sizes that are not measured
+ * use defaults from the ATR.
+ */
+public class ReaderTuner {
+    private static final SmartcardLog log = SmartcardLog.getLog(ReaderTuner.class);
+
+    /** Chain piece data sizes tried by default. */
+    public static final int[] DEFAULT_CHAIN_SIZES = {32, 64, 128, 192, 224, 255};
+    /** READ BINARY Le sizes tried by default.  Sizes above 256 only if card supports extended length. */
+    public static final int[] DEFAULT_READ_SIZES = {64, 128, 256, 1024, 4096, 65536};
+
+    private ReaderProfileCache cache;
+    private int[] chainSizes = DEFAULT_CHAIN_SIZES;
+    private int[] readSizes = DEFAULT_READ_SIZES;
+    private byte[] writeProbe;
+    private byte[] readProbe;
+    private int payloadLen = 1024;
+    private int repeat = 3;
+
+    /**
+     * Constructor.
+     * @param cache profile cache
+     */
+    public ReaderTuner(ReaderProfileCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Set command used to measure chaining.  Data of {@link #getPayloadLen()}
+     * bytes is appended and sent as an extended APDU split by {@link ChainingSmartcard}.
+     * @param header4 CLA|INS|P1|P2 of command that accepts chained data
+     */
+    public void setWriteProbe(byte[] header4) { this.writeProbe = Buf.substring(header4, 0, 4); }
+
+    /**
+     * Set command used to select an EF of at least {@link #getPayloadLen()} bytes
+     * for measuring READ BINARY.
+     * @param selectApdu SELECT command
+     */
+    public void setReadProbe(byte[] selectApdu) { this.readProbe = selectApdu; }
+
+    /** @param chainSizes chain piece data sizes to try (1 to 255) */
+    public void setChainSizes(int... chainSizes) { this.chainSizes = chainSizes; }
+    /** @param readSizes READ BINARY Le sizes to try */
+    public void setReadSizes(int... readSizes) { this.readSizes = readSizes; }
+    /** @return bytes transferred for each measurement. */
+    public int getPayloadLen() { return payloadLen; }
+    /** @param payloadLen bytes transferred for each measurement */
+    public void setPayloadLen(int payloadLen) { this.payloadLen = payloadLen; }
+    /** @param repeat number of times each size is measured, best time is used */
+    public void setRepeat(int repeat) { this.repeat = repeat; }
+
+    /**
+     * Get profile from cache, or tune and store if reader and card pair not seen before.
+     * Without probes nothing is measured, ATR defaults are returned and not stored.
+     * @param card card
+     * @return profile
+     * @throws SmartcardException if error
+     */
+    public ReaderProfile getProfile(Smartcard card) throws SmartcardException {
+        String atr = Hex.b2s(card.getATR());
+        ReaderProfile profile = cache.get(card.getIFDName(), atr);
+        if (profile != null) {
+            return profile;
+        }
+        profile = tune(card);
+        if (writeProbe == null && readProbe == null) {
+            return profile;
+        }
+        try {
+            cache.put(profile);
+        } catch (IOException e) {
+            log.warn("could not save reader profile to " + cache.getFile(), e);
+        }
+        return profile;
+    }
+
+    /**
+     * Wrap card in {@link ChainingSmartcard} using profile chain size.
+     * @param card card
+     * @return chaining card
+     * @throws SmartcardException if error
+     */
+    public ChainingSmartcard chaining(Smartcard card) throws SmartcardException {
+        return new ChainingSmartcard(card, getProfile(card).getChainSize());
+    }
+
+    /**
+     * Read transparent EF using profile read size.
+     * @param card card with EF already selected
+     * @param offset offset to start reading (0..0x7fff)
+     * @param len number of bytes to read
+     * @return data, may be shorter than len if end of file reached
+     * @throws SmartcardException if error
+     * @see SmartcardUtil#readBinary(Smartcard, int, int, ReaderProfile)
+     */
+    public byte[] readBinary(Smartcard card, int offset, int len) throws SmartcardException {
+        return SmartcardUtil.readBinary(card, offset, len, getProfile(card));
+    }
+
+    /**
+     * Measure sizes for card.
+     * @param card card
+     * @return profile
+     * @throws SmartcardException if error
+     */
+    public ReaderProfile tune(Smartcard card) throws SmartcardException {
+        int maxResponse = 256;
+        try {
+            maxResponse = new ATR(card.getATR()).getMaxResponseDataLen();
+        } catch (IllegalArgumentException e) {
+            // unparseable ATR, use short Le
+        }
+
+        // round trip of select, or write probe header without data
+        long rtt = 0;
+        byte[] ping = readProbe != null ? readProbe : writeProbe;
+        if (ping != null) {
+            rtt = Long.MAX_VALUE;
+            for (int i = 0; i < repeat; i++) {
+                long start = System.nanoTime();
+                card.transmit(ping);
+                rtt = Math.min(rtt, System.nanoTime() - start);
+            }
+        }
+
+        int chainSize = 255;
+        if (writeProbe != null) {
+            byte[] apdu = Buf.cat(writeProbe, new byte[] {0, (byte) (payloadLen >> 8), (byte) payloadLen},
+                    Buf.random(payloadLen));
+            long best = Long.MAX_VALUE;
+            for (int size : chainSizes) {
+                long t = Long.MAX_VALUE;
+                for (int i = 0; i < repeat; i++) {
+                    long start = System.nanoTime();
+                    APDURes res = ChainingSmartcard.transmitChain(card, apdu, size);
+                    t = Math.min(t, System.nanoTime() - start);
+                    if (res.getSW() != 0x9000) {
+                        throw new SmartcardException(String.format("write probe failed with chain size %d, sw=%04x",
+                                size, res.getSW()), res.getSW());
+                    }
+                }
+                if (log.isDebugEnabled()) {
+                    log.debug("chain size " + size + ": " + (t / 1000) + "us for " + payloadLen + " bytes");
+                }
+                if (t < best) {
+                    best = t;
+                    chainSize = size;
+                }
+            }
+        }
+
+        int readSize = maxResponse;
+        if (readProbe != null) {
+            long best = Long.MAX_VALUE;
+            for (int size : readSizes) {
+                if (size > maxResponse) {
+                    continue;
+                }
+                long t = Long.MAX_VALUE;
+                for (int i = 0; i < repeat; i++) {
+                    card.transmit(readProbe);
+                    long start = System.nanoTime();
+                    SmartcardUtil.readBinary(card, 0, payloadLen, size);
+                    t = Math.min(t, System.nanoTime() - start);
+                }
+                if (log.isDebugEnabled()) {
+                    log.debug("read size " + size + ": " + (t / 1000) + "us for " + payloadLen + " bytes");
+                }
+                if (t < best) {
+                    best = t;
+                    readSize = size;
+                }
+            }
+        }
+
+        ReaderProfile profile = new ReaderProfile(card.getIFDName(), Hex.b2s(card.getATR()), chainSize, readSize,
+                rtt / 1000);
+        log.info("tuned " + profile);
+        return profile;
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2009-2011 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.java.jless.smartcard;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Reads records of a linear or cyclic EF with READ RECORD, fetching the
+ * next record in the background while the caller handles the current
+ * one.  Iteration ends at SW 6a83 (record not found) or after a record
+ * returned with 6282 (end of file).
+ * <pre>
+ * RecordIterator records = new RecordIterator(card, 2);
+ * for (byte[] rec; (rec = records.nextRecord()) != null; ) {
+ *     ...
+ * }
+ * byte[] aip = new RecordIterator(card, 1).find(new RecordIterator.Filter() {
+ *     public boolean accept(int recordNum, byte[] record) { return BerTlv.find(record, 0, record.length, 0x70, 0x5a) != null; }
+ * });
+ * </pre>
+ * The card must not be used by others while records are being read.  Call
+ * {@link #close()} when stopping early, it waits for any prefetch still at
+ * the card.
+ */
+public class RecordIterator {
+    private static final ExecutorService PREFETCH = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "smartcard-records");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /** Selects records. */
+    public interface Filter {
+        /**
+         * @param recordNum record number from 1
+         * @param record record data
+         * @return true if wanted
+         */
+        boolean accept(int recordNum, byte[] record);
+    }
+
+    private Smartcard card;
+    private int cla;
+    private int p2;
+    private int recordNum;
+    // Le from last 6Cxx, fixed length records then need one command each
+    private int le;
+    private Future<byte[]> next;
+    private boolean last;
+    // another record may follow the last one taken
+    private boolean more = true;
+
+    /**
+     * Constructor.
+     * @param card card
+     * @param sfi short file identifier, or 0 for current EF
+     */
+    public RecordIterator(Smartcard card, int sfi) {
+        this(card, 0x00, sfi);
+    }
+
+    /**
+     * Constructor.
+     * @param card card
+     * @param cla class byte
+     * @param sfi short file identifier, or 0 for current EF
+     */
+    public RecordIterator(Smartcard card, int cla, int sfi) {
+        this.card = card;
+        this.cla = cla;
+        this.p2 = (sfi << 3) | 0x04;
+        prefetch(1);
+    }
+
+    private void prefetch(final int num) {
+        next = PREFETCH.submit(new Callable<byte[]>() {
+            public byte[] call() throws SmartcardException {
+                return read(num);
+            }
+        });
+    }
+
+    private byte[] read(int num) throws SmartcardException {
+        byte[] apdu = {(byte) cla, (byte) 0xb2, (byte) num, (byte) p2, (byte) le};
+        APDURes res = card.transmit(apdu);
+        if (res.getSW1() == 0x6c) {
+            le = res.getSW2();
+            apdu[4] = (byte) le;
+            res = card.transmit(apdu);
+        }
+        switch (res.getSW()) {
+            case 0x9000:
+                return res.getData();
+            case 0x6282:
+                last = true;
+                return res.getData();
+            case 0x6a83:
+                return null;
+            default:
+                throw new SmartcardException(String.format("READ RECORD %d failed, sw %04x", num, res.getSW()),
+                        res.getSW());
+        }
+    }
+
+    /**
+     * Next record.
+     * @return record, or null when there are no more records
+     * @throws SmartcardException if card returns an error
+     */
+    public byte[] nextRecord() throws SmartcardException {
+        byte[] record = take();
+        if (more) {
+            prefetch(recordNum + 1);
+        }
+        return record;
+    }
+
+    // wait for record already requested, or read it now, without reading ahead
+    private byte[] take() throws SmartcardException {
+        if (next == null) {
+            if (!more) {
+                return null;
+            }
+            prefetch(recordNum + 1);
+        }
+        byte[] record;
+        try {
+            record = next.get();
+        } catch (InterruptedException e) {
+            close();
+            Thread.currentThread().interrupt();
+            throw new SmartcardException(e);
+        } catch (ExecutionException e) {
+            next = null;
+            more = false;
+            if (e.getCause() instanceof SmartcardException) {
+                throw (SmartcardException) e.getCause();
+            }
+            throw new SmartcardException(e.getCause());
+        }
+        next = null;
+        if (record != null) {
+            recordNum++;
+        }
+        more = record != null && !last && recordNum < 0xfe;
+        return record;
+    }
+
+    /** @return number of record last returned by {@link #nextRecord()}, from 1. */
+    public int getRecordNum() { return recordNum; }
+
+    /**
+     * Return first record accepted by filter.  Records after it are not
+     * read, so each record is only requested after the previous one is
+     * rejected.
+     * @param filter filter
+     * @return record, or null if none accepted
+     * @throws SmartcardException if card returns an error
+     */
+    public byte[] find(Filter filter) throws SmartcardException {
+        try {
+            for (byte[] record; (record = take()) != null; ) {
+                if (filter.accept(recordNum, record)) {
+                    return record;
+                }
+            }
+            return null;
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Stop reading.  Waits for a prefetch already sent to the card, so the
+     * card is free for other commands when this returns.
+     */
+    public void close() {
+        Future<byte[]> f = next;
+        next = null;
+        more = false;
+        if (f == null) {
+            return;
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                f.get();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            } catch (ExecutionException e) {
+                break; // result discarded
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
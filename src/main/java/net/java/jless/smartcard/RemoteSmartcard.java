@@ -0,0 +1,242 @@
+/*
+ * Copyright 2009-2011 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.java.jless.smartcard;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Card served by a {@link SmartcardServer} on another host.
+ * <pre>
+ * RemoteSmartcard.Connection conn = RemoteSmartcard.connect("readerhost", 7816);
+ * Smartcard card0 = conn.getCard(0);
+ * Smartcard card1 = conn.getCard(1);
+ * </pre>
+ * All cards from a connection share one socket.  Any number of threads
+ * may transmit at once, requests are pipelined and matched to responses
+ * by request id.
+ */
+public class RemoteSmartcard implements Smartcard {
+    private Connection conn;
+    private int channel;
+    private byte[] atr;
+    private String ifdName;
+
+    private RemoteSmartcard(Connection conn, int channel, byte[] info) {
+        this.conn = conn;
+        this.channel = channel;
+        int atrLen = ((info[0] & 0xff) << 8) | (info[1] & 0xff);
+        atr = Buf.substring(info, 2, atrLen);
+        ifdName = new String(info, 2 + atrLen, info.length - 2 - atrLen, SmartcardServer.UTF8);
+    }
+
+    /**
+     * Connect to server.
+     * @param host host
+     * @param port port
+     * @return connection
+     * @throws SmartcardException if error
+     */
+    public static Connection connect(String host, int port) throws SmartcardException {
+        try {
+            return new Connection(host, port);
+        } catch (IOException e) {
+            throw new SmartcardException(e, SmartcardException.Type.TRANSPORT);
+        }
+    }
+
+    /** @return connection. */
+    public Connection getConnection() { return conn; }
+
+    /** @return channel on server. */
+    public int getChannel() { return channel; }
+
+    /** {@inheritDoc} */
+    public String getIFDName() { return ifdName; }
+
+    /** {@inheritDoc} */
+    public byte[] getATR() { return atr; }
+
+    /** {@inheritDoc} */
+    public APDURes transmit(byte[] apdu) throws SmartcardException {
+        return new APDURes(conn.call(channel, SmartcardServer.OP_TRANSMIT, apdu));
+    }
+
+    /** {@inheritDoc} */
+    public String transmith(String hexApdu) throws SmartcardException {
+        return transmit(HexCommandCache.decode(hexApdu)).toString();
+    }
+
+    /** {@inheritDoc} */
+    public APDURes transmit(int cla, int ins, int p1, int p2, byte[] data, Integer le) throws SmartcardException {
+        return transmit(SmartcardUtil.formatAPDU(cla, ins, p1, p2, data, le));
+    }
+
+    /**
+     * {@inheritDoc}
+     * Only ends this client's use of the card, the server does not
+     * disconnect or reset a card shared with other clients.
+     */
+    public void disconnect(boolean reset) throws SmartcardException {
+        conn.call(channel, SmartcardServer.OP_DISCONNECT, new byte[] {(byte) (reset ? 1 : 0)});
+    }
+
+    /** Socket to a server, shared by all cards on it. */
+    public static class Connection implements Runnable {
+        private static final SmartcardLog log = SmartcardLog.getLog(Connection.class);
+
+        private Socket socket;
+        private DataOutputStream out;
+        private DataInputStream in;
+        private AtomicInteger ids = new AtomicInteger();
+        private Map<Integer, Call> calls = new ConcurrentHashMap<Integer, Call>();
+        private long timeoutMillis = 60000;
+        private volatile SmartcardException closed;
+
+        Connection(String host, int port) throws IOException {
+            socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(host, port));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            Thread reader = new Thread(this, "smartcard-remote-" + host + ":" + port);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        /**
+         * Get card on channel.
+         * @param channel channel
+         * @return card
+         * @throws SmartcardException if no card on channel or error
+         */
+        public RemoteSmartcard getCard(int channel) throws SmartcardException {
+            return new RemoteSmartcard(this, channel, call(channel, SmartcardServer.OP_INFO, new byte[0]));
+        }
+
+        /** @param timeoutMillis max wait for each response, default 60s */
+        public void setTimeoutMillis(long timeoutMillis) { this.timeoutMillis = timeoutMillis; }
+
+        /** Close socket, outstanding calls fail. */
+        public void close() {
+            fail(new SmartcardException("connection closed", SmartcardException.Type.TRANSPORT));
+            try {
+                socket.close();
+            } catch (IOException e) {
+                log.debug("error closing", e);
+            }
+        }
+
+        byte[] call(int channel, int op, byte[] payload) throws SmartcardException {
+            if (closed != null) {
+                throw closed;
+            }
+            int id = ids.incrementAndGet();
+            Call call = new Call();
+            calls.put(id, call);
+            try {
+                synchronized (out) {
+                    out.writeInt(SmartcardServer.HEADER_LEN + payload.length);
+                    out.writeInt(id);
+                    out.writeByte(channel);
+                    out.writeByte(op);
+                    out.write(payload);
+                    out.flush();
+                }
+                if (!call.done.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                    throw new SmartcardTimeoutException("no response from " + socket.getRemoteSocketAddress()
+                            + " after " + timeoutMillis + "ms");
+                }
+            } catch (IOException e) {
+                close();
+                throw new SmartcardException(e, SmartcardException.Type.TRANSPORT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SmartcardException(e);
+            } finally {
+                calls.remove(id);
+            }
+            if (call.error != null) {
+                throw call.error;
+            }
+            return call.payload;
+        }
+
+        /** Read responses. */
+        public void run() {
+            try {
+                while (true) {
+                    int len = in.readInt();
+                    if (len < SmartcardServer.HEADER_LEN || len > SmartcardServer.MAX_FRAME_LEN) {
+                        throw new IOException("invalid frame len: " + len);
+                    }
+                    int id = in.readInt();
+                    in.readUnsignedByte(); // channel
+                    int op = in.readUnsignedByte();
+                    byte[] payload = new byte[len - SmartcardServer.HEADER_LEN];
+                    in.readFully(payload);
+                    Call call = calls.get(id);
+                    if (call == null) {
+                        log.debug("dropping response for unknown or timed out request " + id);
+                        continue;
+                    }
+                    if (op == SmartcardServer.OP_ERROR) {
+                        call.error = SmartcardServer.parseError(payload);
+                    } else {
+                        call.payload = payload;
+                    }
+                    call.done.countDown();
+                }
+            } catch (IOException e) {
+                if (closed == null) {
+                    log.debug("connection failed", e);
+                    fail(new SmartcardException(e, SmartcardException.Type.TRANSPORT));
+                }
+            }
+        }
+
+        private void fail(SmartcardException e) {
+            closed = e;
+            for (Call call : calls.values()) {
+                call.error = e;
+                call.done.countDown();
+            }
+        }
+    }
+
+    private static class Call {
+        private CountDownLatch done = new CountDownLatch(1);
+        private volatile byte[] payload;
+        private volatile SmartcardException error;
+    }
+}
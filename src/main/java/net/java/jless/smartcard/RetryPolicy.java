@@ -0,0 +1,196 @@
+/*
+ * Copyright 2009-2011 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.java.jless.smartcard;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+
+/**
+ * Which failures {@link RetryingSmartcard} retries and how long it waits.
+ * <pre>
+ * RetryPolicy policy = new RetryPolicy()
+ *     .retryOn(SmartcardException.Type.TRANSPORT, SmartcardException.Type.TIMEOUT)
+ *     .retryOnSW(0x6f00, 0xffff)
+ *     .setMaxAttempts(3)
+ *     .setBackoff(10, 2.0, 500);
+ * </pre>
+ * Default retries transport errors and timeouts up to 3 attempts,
+ * waiting 10ms then doubling up to 1s.  Only commands that do not change
+ * card state are retried by default (SELECT, READ BINARY, READ RECORD,
+ * GET DATA, GET RESPONSE), since a write such as PUT DATA, INSTALL or
+ * VERIFY may have been executed before the failure.  Use
+ * {@link #retryCommands(int...)} or {@link #retryAllCommands()} to change this.
+ */
+public class RetryPolicy {
+    private int maxAttempts = 3;
+    private long initialBackoffMillis = 10;
+    private double multiplier = 2.0;
+    private long maxBackoffMillis = 1000;
+    private EnumSet<SmartcardException.Type> types = EnumSet.of(SmartcardException.Type.TRANSPORT,
+            SmartcardException.Type.TIMEOUT);
+    private List<Class<? extends Throwable>> causes = new ArrayList<Class<? extends Throwable>>();
+    // pairs of (sw, mask)
+    private int[] sws = new int[0];
+    // retryable INS, null if all
+    private boolean[] ins = insSet(0xa4, 0xb0, 0xb1, 0xb2, 0xb3, 0xca, 0xcb, 0xc0);
+
+    private static boolean[] insSet(int... values) {
+        boolean[] result = new boolean[256];
+        for (int i : values) {
+            result[i & 0xff] = true;
+        }
+        return result;
+    }
+
+    /**
+     * Only retry commands with given INS, replacing previous INS.
+     * @param ins INS values that are safe to send again
+     * @return this
+     */
+    public RetryPolicy retryCommands(int... ins) {
+        this.ins = insSet(ins);
+        return this;
+    }
+
+    /**
+     * Retry all commands, including those that change card state.
+     * @return this
+     */
+    public RetryPolicy retryAllCommands() {
+        this.ins = null;
+        return this;
+    }
+
+    /**
+     * @param apdu command
+     * @return true if command may be sent again after a failure
+     */
+    public boolean isRetryable(byte[] apdu) {
+        return ins == null || (apdu.length >= 2 && ins[apdu[1] & 0xff]);
+    }
+
+    /**
+     * Retry exceptions of given types, replacing previous types.
+     * @param types types
+     * @return this
+     */
+    public RetryPolicy retryOn(SmartcardException.Type... types) {
+        this.types = types.length == 0 ? EnumSet.noneOf(SmartcardException.Type.class)
+                : EnumSet.copyOf(Arrays.asList(types));
+        return this;
+    }
+
+    /**
+     * Also retry exceptions caused by given exception class.
+     * @param cause cause class, e.g. javax.smartcardio.CardException
+     * @return this
+     */
+    public RetryPolicy retryOnCause(Class<? extends Throwable> cause) {
+        causes.add(cause);
+        return this;
+    }
+
+    /**
+     * Retry responses with status word matching (sw &amp; mask) == expected.
+     * @param sw status word
+     * @param mask mask, e.g. 0xff00 to match any sw2
+     * @return this
+     */
+    public RetryPolicy retryOnSW(int sw, int mask) {
+        sws = Arrays.copyOf(sws, sws.length + 2);
+        sws[sws.length - 2] = sw & mask;
+        sws[sws.length - 1] = mask;
+        return this;
+    }
+
+    /**
+     * @param maxAttempts max attempts including first, 1 means no retry
+     * @return this
+     */
+    public RetryPolicy setMaxAttempts(int maxAttempts) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be at least 1, got: " + maxAttempts);
+        }
+        this.maxAttempts = maxAttempts;
+        return this;
+    }
+
+    /**
+     * Exponential backoff between attempts.
+     * @param initialMillis wait before first retry
+     * @param multiplier multiplier for each further retry
+     * @param maxMillis max wait
+     * @return this
+     */
+    public RetryPolicy setBackoff(long initialMillis, double multiplier, long maxMillis) {
+        this.initialBackoffMillis = initialMillis;
+        this.multiplier = multiplier;
+        this.maxBackoffMillis = maxMillis;
+        return this;
+    }
+
+    /** @return max attempts including first. */
+    public int getMaxAttempts() { return maxAttempts; }
+
+    /**
+     * @param e exception
+     * @return true if exception should be retried
+     */
+    public boolean shouldRetry(SmartcardException e) {
+        if (types.contains(e.getType())) {
+            return true;
+        }
+        for (Throwable t = e.getCause(); t != null; t = t.getCause()) {
+            for (Class<? extends Throwable> c : causes) {
+                if (c.isInstance(t)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param sw status word
+     * @return true if response should be retried
+     */
+    public boolean shouldRetry(int sw) {
+        for (int i = 0; i < sws.length; i += 2) {
+            if ((sw & sws[i + 1]) == sws[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param retry retry number starting at 1
+     * @return millis to wait before retry
+     */
+    public long getBackoffMillis(int retry) {
+        double wait = initialBackoffMillis * Math.pow(multiplier, retry - 1);
+        return (long) Math.min(wait, maxBackoffMillis);
+    }
+}
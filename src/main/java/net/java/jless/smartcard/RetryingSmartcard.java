@@ -0,0 +1,147 @@
+/*
+ * Copyright 2009-2011 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.java.jless.smartcard;
+
+/**
+ * Retries commands according to a {@link RetryPolicy} and stops sending
+ * to the reader while its {@link CircuitBreaker} is open.  Only reader
+ * failures (transport errors, timeouts, card removed) count towards the
+ * breaker; status words returned by the card do not.  Which commands
+ * may be sent again is decided by {@link RetryPolicy#isRetryable(byte[])}.
+ */
+public class RetryingSmartcard implements SmartcardDecorator {
+    private static final SmartcardLog log = SmartcardLog.getLog(RetryingSmartcard.class);
+
+    private Smartcard card;
+    private RetryPolicy policy;
+    private CircuitBreaker breaker;
+
+    /**
+     * Constructor using shared breaker for the reader.
+     * @param card base card
+     * @param policy retry policy
+     */
+    public RetryingSmartcard(Smartcard card, RetryPolicy policy) {
+        this(card, policy, CircuitBreaker.forReader(card.getIFDName()));
+    }
+
+    /**
+     * Constructor.
+     * @param card base card
+     * @param policy retry policy
+     * @param breaker circuit breaker
+     */
+    public RetryingSmartcard(Smartcard card, RetryPolicy policy, CircuitBreaker breaker) {
+        this.card = card;
+        this.policy = policy;
+        this.breaker = breaker;
+    }
+
+    /** @return circuit breaker. */
+    public CircuitBreaker getCircuitBreaker() { return breaker; }
+
+    /** {@inheritDoc} */
+    public Smartcard getCard() { return card; }
+
+    /** {@inheritDoc} */
+    public String getIFDName() { return card.getIFDName(); }
+
+    /** {@inheritDoc} */
+    public byte[] getATR() { return card.getATR(); }
+
+    /** {@inheritDoc} */
+    public APDURes transmit(byte[] apdu) throws SmartcardException {
+        boolean retryable = policy.isRetryable(apdu);
+        for (int attempt = 1; ; attempt++) {
+            if (!breaker.allow()) {
+                throw breaker.getOpenException();
+            }
+            APDURes res = null;
+            SmartcardException error = null;
+            boolean recorded = false;
+            try {
+                res = card.transmit(apdu);
+                breaker.onSuccess();
+                recorded = true;
+            } catch (SmartcardException e) {
+                SmartcardException.Type type = e.getType();
+                if (type == SmartcardException.Type.TRANSPORT || type == SmartcardException.Type.TIMEOUT
+                        || type == SmartcardException.Type.CARD_REMOVED) {
+                    breaker.onFailure();
+                    recorded = true;
+                }
+                error = e;
+            } finally {
+                // rejected, unknown or runtime errors must still release a half open trial
+                if (!recorded) {
+                    breaker.onIgnored();
+                }
+            }
+            boolean more = retryable && attempt < policy.getMaxAttempts();
+            if (error != null) {
+                if (!more || !policy.shouldRetry(error)) {
+                    throw error;
+                }
+                log.debug("retrying after attempt " + attempt, error);
+                backoff(attempt);
+                continue;
+            }
+            if (more && policy.shouldRetry(res.getSW())) {
+                if (log.isDebugEnabled()) {
+                    log.debug(String.format("retrying sw %04x after attempt %d", res.getSW(), attempt));
+                }
+                backoff(attempt);
+                continue;
+            }
+            return res;
+        }
+    }
+
+    private void backoff(int attempt) throws SmartcardException {
+        long wait = policy.getBackoffMillis(attempt);
+        if (wait <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(wait);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SmartcardException(e);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public String transmith(String hexApdu) throws SmartcardException {
+        return transmit(HexCommandCache.decode(hexApdu)).toString();
+    }
+
+    /** {@inheritDoc} */
+    public APDURes transmit(int cla, int ins, int p1, int p2, byte[] data, Integer le) throws SmartcardException {
+        return transmit(SmartcardUtil.formatAPDU(cla, ins, p1, p2, data, le));
+    }
+
+    /** {@inheritDoc} */
+    public void disconnect(boolean reset) throws SmartcardException {
+        card.disconnect(reset);
+    }
+}
@@ -22,25 +22,30 @@
 
 package net.java.jless.smartcard;
 
+import java.nio.ByteBuffer;
+
 import javax.smartcardio.Card;
 import javax.smartcardio.CardException;
+import javax.smartcardio.CardNotPresentException;
 import javax.smartcardio.CardTerminal;
-import javax.smartcardio.CommandAPDU;
-
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
 
 /**
  * Implements {@link Smartcard} interface using
  * {@link javax.smartcardio.Card}.
  * @author Joel Hockey
  */
-public class SCIOSmartcard implements Smartcard {
-    private static final Log log = LogFactory.getLog(SCIOSmartcard.class);
+public class SCIOSmartcard implements ReconnectableSmartcard {
+    private static final SmartcardLog log = SmartcardLog.getLog(SCIOSmartcard.class);
+    // min response buffer accepted by CardChannel, max for a short Le
+    private static final int SHORT_RES_LEN = 258;
+    private static final int EXTENDED_RES_LEN = 65538;
 
     private String ifdName;
-    private Card card;
+    private CardTerminal terminal;
+    // swapped by reconnect, read once per call
+    private volatile Card card;
     private boolean debug = false;
+    private final Object connectLock = new Object();
 
     /**
      * Constructor taking {@link javax.smartcardio.Card}.
@@ -62,12 +67,48 @@ public class SCIOSmartcard implements Smartcard {
 
     /**
      * Constructor taking {@link javax.smartcardio.CardTerminal }.
-     * Calls {@link CardTerminal#connect(String)} with <code>"*"</code>.
+     * Connects using protocol chosen by {@link #connect(CardTerminal)}.
      * @param terminal card terminal
      * @throws CardException if error connecting
      */
     public SCIOSmartcard(CardTerminal terminal) throws CardException {
-        this(terminal.connect("*"), terminal.getName());
+        this(connect(terminal), terminal.getName());
+        this.terminal = terminal;
+    }
+
+    /**
+     * Connect to terminal using preferred protocol from ATR.
+     * Calls {@link CardTerminal#connect(String)} with <code>"*"</code>
+     * and reconnects if the protocol chosen by the reader is not
+     * {@link ATR#getPreferredProtocol()}.
+     * @param terminal card terminal
+     * @return card
+     * @throws CardException if error connecting
+     */
+    public static Card connect(CardTerminal terminal) throws CardException {
+        Card card = terminal.connect("*");
+        String protocol;
+        try {
+            ATR atr = new ATR(card.getATR().getBytes());
+            protocol = atr.getPreferredProtocol();
+            if (log.isDebugEnabled()) {
+                log.debug("ATR " + atr + " protocol=" + protocol + " Fi=" + atr.getFi() + " Di=" + atr.getDi()
+                        + " fmax=" + atr.getFmaxKHz() + "kHz");
+            }
+        } catch (IllegalArgumentException e) {
+            log.debug("could not parse ATR, using protocol " + card.getProtocol(), e);
+            return card;
+        }
+        if ("*".equals(protocol) || protocol.equals(card.getProtocol())) {
+            return card;
+        }
+        card.disconnect(false);
+        try {
+            return terminal.connect(protocol);
+        } catch (CardException e) {
+            log.debug("could not connect with " + protocol + ", using *", e);
+            return terminal.connect("*");
+        }
     }
 
     /**
@@ -88,29 +129,41 @@ public class SCIOSmartcard implements Smartcard {
     /** {@inheritDoc} */
     public byte[] getATR() { return card.getATR().getBytes(); }
 
-    /** {@inheritDoc} */
+    /**
+     * {@inheritDoc}
+     * Uses {@link javax.smartcardio.CardChannel#transmit(ByteBuffer, ByteBuffer)}
+     * with the APDU wrapped, so no CommandAPDU or ResponseAPDU is created.
+     * The response buffer is sized for a short Le unless the command is
+     * extended length.  No lock is held, so a
+     * thread stuck in the driver does not block {@link #reconnect(boolean)}.
+     */
     public APDURes transmit(byte[] apdu) throws SmartcardException {
+        Card card = this.card;
         try {
-            CommandAPDU req = new CommandAPDU(apdu);
             long start = 0;
             if (debug && log.isDebugEnabled()) {
                 start = System.currentTimeMillis();
                 log.debug("apdu > (len=" + apdu.length + ") " + Hex.b2s(apdu));
             }
-            APDURes res = new APDURes(card.getBasicChannel().transmit(req).getBytes());
+            boolean extended = apdu.length >= 7 && apdu[4] == 0;
+            ByteBuffer resBuf = ByteBuffer.allocate(extended ? EXTENDED_RES_LEN : SHORT_RES_LEN);
+            int len = card.getBasicChannel().transmit(ByteBuffer.wrap(apdu), resBuf);
+            byte[] resBytes = new byte[len];
+            System.arraycopy(resBuf.array(), 0, resBytes, 0, len);
+            APDURes res = new APDURes(resBytes);
             if (debug && log.isDebugEnabled()) {
                 long timeTaken = System.currentTimeMillis() - start;
                 log.debug("apdu < (len=" + res.getBytes().length + ", time=" + timeTaken + " ms) " + Hex.b2s(res.getBytes()));
             }
             return res;
         } catch (CardException e) {
-            throw new SmartcardException(e);
+            throw wrap(e);
         }
     }
 
     /** {@inheritDoc} */
     public String transmith(String hexApdu) throws SmartcardException {
-        return transmit(Hex.s2b(hexApdu)).toString();
+        return transmit(HexCommandCache.decode(hexApdu)).toString();
     }
     /** {@inheritDoc} */
     public APDURes transmit(int cla, int ins, int p1, int p2, byte[] data, Integer le) throws SmartcardException {
@@ -119,16 +172,49 @@ public class SCIOSmartcard implements Smartcard {
 
     /** {@inheritDoc} */
     public void disconnect(boolean reset) throws SmartcardException {
+        Card card = this.card;
         try {
             if (debug && log.isDebugEnabled()) {
                 log.debug("disconnect reset=" + reset);
             }
             card.disconnect(reset);
         } catch (CardException e) {
-            throw new SmartcardException(e);
+            throw wrap(e);
         }
     }
 
+    /**
+     * {@inheritDoc}
+     * Only available if constructed with {@link CardTerminal}.
+     */
+    public void reconnect(boolean reset) throws SmartcardException {
+        if (terminal == null) {
+            throw new SmartcardException("cannot reconnect, no CardTerminal for " + ifdName);
+        }
+        if (debug && log.isDebugEnabled()) {
+            log.debug("reconnect reset=" + reset);
+        }
+        synchronized (connectLock) {
+            try {
+                card.disconnect(reset);
+            } catch (CardException e) {
+                log.debug("ignoring error disconnecting", e);
+            } catch (IllegalStateException e) {
+                // already disconnected
+            }
+            try {
+                card = connect(terminal);
+            } catch (CardException e) {
+                throw wrap(e);
+            }
+        }
+    }
+
+    private static SmartcardException wrap(CardException e) {
+        return new SmartcardException(e, e instanceof CardNotPresentException
+                ? SmartcardException.Type.CARD_REMOVED : SmartcardException.Type.TRANSPORT);
+    }
+
     /** {@inheritDoc} */
     public String toString() { return card.toString(); }
 }
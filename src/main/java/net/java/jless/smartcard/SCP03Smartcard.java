@@ -0,0 +1,469 @@
+/*
+ * Copyright 2009-2011 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.java.jless.smartcard;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * GlobalPlatform SCP03 secure messaging.  Session keys, AES ciphers and
+ * CMAC subkeys are set up once in {@link #open(int, int)}; each command
+ * is then wrapped with a single allocation, encrypting and MACing in
+ * place in the outgoing buffer.  CBC and CMAC are done over ECB ciphers
+ * initialised once, so no cipher is re-initialised per command.
+ * <pre>
+ * SCP03Smartcard scp = new SCP03Smartcard(card, kEnc, kMac);
+ * scp.transmith("00a4040008a000000151000000");
+ * scp.open(0x30, SCP03Smartcard.C_MAC | SCP03Smartcard.C_DECRYPTION | SCP03Smartcard.R_MAC);
+ * Smartcard chained = scp.chaining(); // long commands are chained then each piece wrapped
+ * </pre>
+ * Commands before {@link #open(int, int)} are sent unwrapped.
+ */
+public class SCP03Smartcard implements SmartcardDecorator {
+    /** Security level command MAC. */
+    public static final int C_MAC = 0x01;
+    /** Security level command encryption. */
+    public static final int C_DECRYPTION = 0x02;
+    /** Security level response MAC. */
+    public static final int R_MAC = 0x10;
+    /** Security level response encryption. */
+    public static final int R_ENCRYPTION = 0x20;
+
+    // KDF derivation constants
+    private static final int CARD_CRYPTOGRAM = 0x00;
+    private static final int HOST_CRYPTOGRAM = 0x01;
+    private static final int S_ENC = 0x04;
+    private static final int S_MAC = 0x06;
+    private static final int S_RMAC = 0x07;
+
+    private Smartcard card;
+    private byte[] kEnc;
+    private byte[] kMac;
+    private int securityLevel;
+    private boolean open;
+    private Cipher enc;
+    private Cipher dec;
+    private Cmac cmac;
+    private Cmac rmac;
+    private byte[] chaining = new byte[16];
+    private byte[] counter = new byte[16];
+    private byte[] iv = new byte[16];
+    private byte[] block = new byte[16];
+
+    /**
+     * Constructor.
+     * @param card base card
+     * @param kEnc static ENC key (16, 24 or 32 bytes)
+     * @param kMac static MAC key
+     */
+    public SCP03Smartcard(Smartcard card, byte[] kEnc, byte[] kMac) {
+        this.card = card;
+        this.kEnc = kEnc;
+        this.kMac = kMac;
+    }
+
+    /**
+     * Open secure channel with INITIALIZE UPDATE and EXTERNAL AUTHENTICATE.
+     * @param keyVersion key version number, 0 for first available
+     * @param securityLevel combination of {@link #C_MAC}, {@link #C_DECRYPTION}, {@link #R_MAC}, {@link #R_ENCRYPTION}
+     * @throws SmartcardException if card rejects or card cryptogram is wrong
+     */
+    public synchronized void open(int keyVersion, int securityLevel) throws SmartcardException {
+        open = false;
+        byte[] hostChallenge = Buf.random(8);
+        APDURes res = card.transmit(SmartcardUtil.formatAPDU(0x80, 0x50, keyVersion, 0x00, hostChallenge, 0));
+        if (res.getSW() != 0x9000) {
+            throw new SmartcardException(String.format("INITIALIZE UPDATE failed, sw %04x", res.getSW()), res.getSW());
+        }
+        byte[] d = res.getData();
+        if (d.length < 29 || d[11] != 0x03) {
+            throw new SmartcardException("INITIALIZE UPDATE response is not SCP03: " + Hex.b2s(d));
+        }
+        byte[] context = Buf.cat(hostChallenge, Buf.substring(d, 13, 8));
+        byte[] sEnc = kdf(kEnc, S_ENC, kEnc.length * 8, context);
+        byte[] sMac = kdf(kMac, S_MAC, kMac.length * 8, context);
+        byte[] sRmac = kdf(kMac, S_RMAC, kMac.length * 8, context);
+        byte[] expected = kdf(sMac, CARD_CRYPTOGRAM, 64, context);
+        if (!equals(expected, 0, d, 21, 8)) {
+            throw new SmartcardException("card cryptogram mismatch, wrong keys for version " + keyVersion);
+        }
+        try {
+            SecretKeySpec key = new SecretKeySpec(sEnc, "AES");
+            enc = Cipher.getInstance("AES/ECB/NoPadding");
+            enc.init(Cipher.ENCRYPT_MODE, key);
+            dec = Cipher.getInstance("AES/ECB/NoPadding");
+            dec.init(Cipher.DECRYPT_MODE, key);
+        } catch (GeneralSecurityException e) {
+            throw new SmartcardException(e);
+        }
+        cmac = new Cmac(sMac);
+        rmac = new Cmac(sRmac);
+
+        // EXTERNAL AUTHENTICATE is MACed only
+        Arrays.fill(chaining, (byte) 0);
+        Arrays.fill(counter, (byte) 0);
+        this.securityLevel = C_MAC;
+        byte[] ea = Buf.cat(new byte[] {(byte) 0x80, (byte) 0x82, (byte) securityLevel, 0x00, 0x08},
+                kdf(sMac, HOST_CRYPTOGRAM, 64, context));
+        res = card.transmit(wrap(ea));
+        if (res.getSW() != 0x9000) {
+            throw new SmartcardException(String.format("EXTERNAL AUTHENTICATE failed, sw %04x", res.getSW()),
+                    res.getSW());
+        }
+        Arrays.fill(counter, (byte) 0);
+        this.securityLevel = securityLevel;
+        open = true;
+    }
+
+    /** @return true if secure channel is open. */
+    public synchronized boolean isOpen() { return open; }
+
+    /**
+     * Max plain data per command so that the wrapped command fits a short APDU.
+     * @return 239 with command encryption, else 247
+     */
+    public int getMaxDataLen() {
+        return getMaxDataLen(255);
+    }
+
+    /**
+     * Max plain data per command so that the wrapped command data fits maxWrappedLen.
+     * @param maxWrappedLen max data len of wrapped command
+     * @return max plain data len at the current security level
+     */
+    public synchronized int getMaxDataLen(int maxWrappedLen) {
+        return maxDataLen(maxWrappedLen, (securityLevel & C_DECRYPTION) != 0);
+    }
+
+    /**
+     * @param maxWrappedLen max data len of wrapped command
+     * @param encrypted true if command data is encrypted
+     * @return max plain data len, encrypted data is padded to 16 bytes, then 8 byte MAC is added
+     */
+    static int maxDataLen(int maxWrappedLen, boolean encrypted) {
+        return encrypted ? (maxWrappedLen - 8) / 16 * 16 - 1 : maxWrappedLen - 8;
+    }
+
+    /** @return chaining card that splits long commands into pieces which are then wrapped individually. */
+    public ChainingSmartcard chaining() {
+        return new ChainingSmartcard(this, getMaxDataLen());
+    }
+
+    /**
+     * Wrap command.  Short or extended APDU in, short APDU out unless
+     * input is extended or wrapped data exceeds 255.
+     * @param apdu command
+     * @return wrapped command
+     */
+    byte[] wrap(byte[] apdu) {
+        int lc = 0;
+        int dataOff = 4;
+        int le = -1;
+        boolean ext = false;
+        if (apdu.length == 5) { // 2s
+            le = apdu[4] == 0 ? 256 : apdu[4] & 0xff;
+        } else if (apdu.length > 5 && apdu[4] != 0) { // 3s, 4s
+            lc = apdu[4] & 0xff;
+            dataOff = 5;
+            if (apdu.length == 6 + lc) {
+                le = apdu[5 + lc] == 0 ? 256 : apdu[5 + lc] & 0xff;
+            }
+        } else if (apdu.length > 5) { // 2e, 3e, 4e
+            ext = true;
+            int n = ((apdu[5] & 0xff) << 8) | (apdu[6] & 0xff);
+            if (apdu.length == 7) {
+                le = n == 0 ? 65536 : n;
+            } else {
+                lc = n;
+                dataOff = 7;
+                if (apdu.length == 9 + lc) {
+                    n = ((apdu[7 + lc] & 0xff) << 8) | (apdu[8 + lc] & 0xff);
+                    le = n == 0 ? 65536 : n;
+                }
+            }
+        }
+        boolean encrypt = (securityLevel & C_DECRYPTION) != 0 && lc > 0;
+        int encLen = encrypt ? (lc / 16 + 1) * 16 : lc;
+        int newLc = encLen + 8;
+        boolean outExt = ext || newLc > 255;
+
+        byte[] out = new byte[4 + (outExt ? 3 : 1) + newLc + (le < 0 ? 0 : outExt ? 2 : 1)];
+        out[0] = (byte) (apdu[0] | 0x04);
+        out[1] = apdu[1];
+        out[2] = apdu[2];
+        out[3] = apdu[3];
+        int p = 4;
+        if (outExt) {
+            out[p++] = 0;
+            out[p++] = (byte) (newLc >> 8);
+        }
+        out[p++] = (byte) newLc;
+        System.arraycopy(apdu, dataOff, out, p, lc);
+
+        increment(counter);
+        if (encrypt) {
+            out[p + lc] = (byte) 0x80;
+            ecb(enc, counter, 0, iv, 0);
+            cbcEncrypt(out, p, encLen);
+        }
+        cmac.update(chaining, 0, 16);
+        cmac.update(out, 0, p + encLen);
+        cmac.doFinal(chaining, 0, 16);
+        System.arraycopy(chaining, 0, out, p + encLen, 8);
+        if (le >= 0) {
+            if (outExt) {
+                out[out.length - 2] = (byte) (le >> 8);
+            }
+            out[out.length - 1] = (byte) le;
+        }
+        return out;
+    }
+
+    /**
+     * Verify R-MAC and decrypt response.
+     * @param r response
+     * @return plain response
+     * @throws SmartcardException if R-MAC is wrong
+     */
+    byte[] unwrap(byte[] r) throws SmartcardException {
+        int dataLen = r.length - 2;
+        if ((securityLevel & R_MAC) == 0) {
+            return r;
+        }
+        if (dataLen < 8) {
+            // errors may be returned without R-MAC
+            if ((r[dataLen] & 0xff) == 0x90 || (r[dataLen] & 0xff) == 0x61) {
+                throw new SmartcardException("response missing R-MAC: " + Hex.b2s(r));
+            }
+            return r;
+        }
+        dataLen -= 8;
+        rmac.update(chaining, 0, 16);
+        rmac.update(r, 0, dataLen);
+        rmac.update(r, r.length - 2, 2);
+        rmac.doFinal(block, 0, 16);
+        if (!equals(block, 0, r, dataLen, 8)) {
+            throw new SmartcardException("R-MAC mismatch: " + Hex.b2s(r));
+        }
+        if ((securityLevel & R_ENCRYPTION) == 0 || dataLen == 0) {
+            byte[] result = new byte[dataLen + 2];
+            System.arraycopy(r, 0, result, 0, dataLen);
+            System.arraycopy(r, r.length - 2, result, dataLen, 2);
+            return result;
+        }
+        if (dataLen % 16 != 0) {
+            throw new SmartcardException("encrypted response not multiple of 16: " + Hex.b2s(r));
+        }
+        System.arraycopy(counter, 0, block, 0, 16);
+        block[0] = (byte) 0x80;
+        ecb(enc, block, 0, iv, 0);
+        byte[] plain = new byte[dataLen];
+        for (int i = 0; i < dataLen; i += 16) {
+            ecb(dec, r, i, plain, i);
+            for (int j = 0; j < 16; j++) {
+                plain[i + j] ^= iv[j];
+            }
+            System.arraycopy(r, i, iv, 0, 16);
+        }
+        int padStart = dataLen - 1;
+        while (padStart > 0 && plain[padStart] == 0) {
+            padStart--;
+        }
+        if ((plain[padStart] & 0xff) != 0x80) {
+            throw new SmartcardException("invalid padding in decrypted response");
+        }
+        byte[] result = new byte[padStart + 2];
+        System.arraycopy(plain, 0, result, 0, padStart);
+        System.arraycopy(r, r.length - 2, result, padStart, 2);
+        return result;
+    }
+
+    // CBC encrypt in place with IV in iv
+    private void cbcEncrypt(byte[] buf, int off, int len) {
+        byte[] prev = iv;
+        int prevOff = 0;
+        for (int i = off; i < off + len; i += 16) {
+            for (int j = 0; j < 16; j++) {
+                buf[i + j] ^= prev[prevOff + j];
+            }
+            ecb(enc, buf, i, buf, i);
+            prev = buf;
+            prevOff = i;
+        }
+    }
+
+    private static void ecb(Cipher cipher, byte[] in, int inOff, byte[] out, int outOff) {
+        try {
+            cipher.update(in, inOff, 16, out, outOff);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void increment(byte[] buf) {
+        for (int i = buf.length - 1; i >= 0 && ++buf[i] == 0; i--) {
+            // carry
+        }
+    }
+
+    private static boolean equals(byte[] a, int aOff, byte[] b, int bOff, int len) {
+        int diff = 0;
+        for (int i = 0; i < len; i++) {
+            diff |= a[aOff + i] ^ b[bOff + i];
+        }
+        return diff == 0;
+    }
+
+    /**
+     * NIST SP800-108 KDF in counter mode with AES-CMAC as used by SCP03.
+     * @param key key
+     * @param constant derivation constant
+     * @param bits output length in bits
+     * @param context host challenge | card challenge
+     * @return derived bytes
+     */
+    static byte[] kdf(byte[] key, int constant, int bits, byte[] context) {
+        Cmac mac = new Cmac(key);
+        byte[] out = new byte[bits / 8];
+        byte[] block = new byte[16];
+        for (int i = 1, pos = 0; pos < out.length; i++, pos += 16) {
+            mac.update(new byte[11], 0, 11);
+            mac.update(new byte[] {(byte) constant, 0x00, (byte) (bits >> 8), (byte) bits, (byte) i}, 0, 5);
+            mac.update(context, 0, context.length);
+            mac.doFinal(block, 0, 16);
+            System.arraycopy(block, 0, out, pos, Math.min(16, out.length - pos));
+        }
+        return out;
+    }
+
+    /** {@inheritDoc} */
+    public Smartcard getCard() { return card; }
+
+    /** {@inheritDoc} */
+    public String getIFDName() { return card.getIFDName(); }
+
+    /** {@inheritDoc} */
+    public byte[] getATR() { return card.getATR(); }
+
+    /** {@inheritDoc} */
+    public synchronized APDURes transmit(byte[] apdu) throws SmartcardException {
+        if (!open) {
+            return card.transmit(apdu);
+        }
+        try {
+            return new APDURes(unwrap(card.transmit(wrap(apdu)).getBytes()));
+        } catch (SmartcardException e) {
+            // MAC chaining is lost, channel must be reopened
+            open = false;
+            throw e;
+        }
+    }
+
+    /** {@inheritDoc} */
+    public String transmith(String hexApdu) throws SmartcardException {
+        return transmit(HexCommandCache.decode(hexApdu)).toString();
+    }
+
+    /** {@inheritDoc} */
+    public APDURes transmit(int cla, int ins, int p1, int p2, byte[] data, Integer le) throws SmartcardException {
+        return transmit(SmartcardUtil.formatAPDU(cla, ins, p1, p2, data, le));
+    }
+
+    /** {@inheritDoc} */
+    public synchronized void disconnect(boolean reset) throws SmartcardException {
+        open = false;
+        card.disconnect(reset);
+    }
+
+    /** Incremental AES-CMAC (RFC 4493) over an ECB cipher initialised once. */
+    static class Cmac {
+        private Cipher ecb;
+        private byte[] k1 = new byte[16];
+        private byte[] k2 = new byte[16];
+        private byte[] x = new byte[16];
+        private byte[] buf = new byte[16];
+        private int bufLen;
+
+        Cmac(byte[] key) {
+            try {
+                ecb = Cipher.getInstance("AES/ECB/NoPadding");
+                ecb.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"));
+            } catch (GeneralSecurityException e) {
+                throw new IllegalArgumentException("invalid AES key", e);
+            }
+            byte[] l = new byte[16];
+            ecb(ecb, l, 0, l, 0);
+            dbl(l, k1);
+            dbl(k1, k2);
+        }
+
+        private static void dbl(byte[] in, byte[] out) {
+            int carry = 0;
+            for (int i = 15; i >= 0; i--) {
+                int b = (in[i] & 0xff) << 1 | carry;
+                out[i] = (byte) b;
+                carry = b >> 8;
+            }
+            if ((in[0] & 0x80) != 0) {
+                out[15] ^= (byte) 0x87;
+            }
+        }
+
+        void update(byte[] data, int off, int len) {
+            while (len > 0) {
+                // last block is held back until doFinal
+                if (bufLen == 16) {
+                    for (int i = 0; i < 16; i++) {
+                        x[i] ^= buf[i];
+                    }
+                    ecb(ecb, x, 0, x, 0);
+                    bufLen = 0;
+                }
+                int n = Math.min(16 - bufLen, len);
+                System.arraycopy(data, off, buf, bufLen, n);
+                bufLen += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        void doFinal(byte[] out, int off, int len) {
+            byte[] k = k1;
+            if (bufLen < 16) {
+                buf[bufLen] = (byte) 0x80;
+                Arrays.fill(buf, bufLen + 1, 16, (byte) 0);
+                k = k2;
+            }
+            for (int i = 0; i < 16; i++) {
+                x[i] ^= buf[i] ^ k[i];
+            }
+            ecb(ecb, x, 0, x, 0);
+            System.arraycopy(x, 0, out, off, len);
+            Arrays.fill(x, (byte) 0);
+            bufLen = 0;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2009-2011 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.java.jless.smartcard;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs an {@link APDUScript} on several cards in parallel, one thread per card.
+ * A failure on one card does not affect the others.
+ */
+public class ScriptRunner {
+    private APDUScript script;
+
+    /** Result for a single card. */
+    public static class Result {
+        private Smartcard card;
+        private APDURes[] responses;
+        private Throwable error;
+        private long nanos;
+
+        /** @return card. */
+        public Smartcard getCard() { return card; }
+        /** @return responses, null if error. */
+        public APDURes[] getResponses() { return responses; }
+        /** @return error or null if script succeeded. */
+        public Throwable getError() { return error; }
+        /** @return true if script succeeded. */
+        public boolean isSuccess() { return error == null; }
+        /** @return time taken in nanos. */
+        public long getNanos() { return nanos; }
+
+        /** @return result as string. */
+        public String toString() {
+            return card.getIFDName() + ": " + (error == null ? "ok" : error.toString()) + " (" + nanos / 1000000 + " ms)";
+        }
+    }
+
+    /** Results for all cards. */
+    public static class Report {
+        private List<Result> results;
+        private long nanos;
+        private int commands;
+
+        /** @return results in same order as cards. */
+        public List<Result> getResults() { return results; }
+        /** @return wall clock time in nanos. */
+        public long getNanos() { return nanos; }
+        /** @return number of successful cards. */
+        public int getSuccessCount() {
+            int count = 0;
+            for (Result r : results) {
+                count += r.isSuccess() ? 1 : 0;
+            }
+            return count;
+        }
+        /** @return number of failed cards. */
+        public int getFailureCount() { return results.size() - getSuccessCount(); }
+        /** @return commands per second over all successful cards. */
+        public double getCommandsPerSecond() {
+            return nanos == 0 ? 0 : getSuccessCount() * (double) commands * 1e9 / nanos;
+        }
+
+        /** @return report as string. */
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("%d cards, %d ok, %d failed, %d ms, %.1f apdu/s", results.size(),
+                    getSuccessCount(), getFailureCount(), nanos / 1000000, getCommandsPerSecond()));
+            for (Result r : results) {
+                sb.append("\n  ").append(r);
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Constructor.
+     * @param script script
+     */
+    public ScriptRunner(APDUScript script) {
+        this.script = script;
+    }
+
+    /**
+     * Run script on all cards with the same variables.
+     * @param cards cards
+     * @param values variable values
+     * @return report
+     */
+    public Report run(List<? extends Smartcard> cards, Map<String, byte[]> values) {
+        return run(cards, Collections.nCopies(cards.size(), values));
+    }
+
+    /**
+     * Run script on all cards with variables for each card.
+     * @param cards cards
+     * @param values variable values for each card, same size as cards
+     * @return report
+     */
+    public Report run(List<? extends Smartcard> cards, List<Map<String, byte[]>> values) {
+        if (cards.size() != values.size()) {
+            throw new IllegalArgumentException("values size " + values.size() + " must equal cards size " + cards.size());
+        }
+        Report report = new Report();
+        report.commands = script.size();
+        report.results = new ArrayList<Result>(cards.size());
+        if (cards.isEmpty()) {
+            return report;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(cards.size());
+        long start = System.nanoTime();
+        try {
+            List<Future<Result>> futures = new ArrayList<Future<Result>>(cards.size());
+            for (int i = 0; i < cards.size(); i++) {
+                final Smartcard card = cards.get(i);
+                final Map<String, byte[]> cardValues = values.get(i);
+                futures.add(executor.submit(new Callable<Result>() {
+                    public Result call() {
+                        Result result = new Result();
+                        result.card = card;
+                        long cardStart = System.nanoTime();
+                        try {
+                            result.responses = script.run(card, cardValues);
+                        } catch (Throwable t) {
+                            result.error = t;
+                        }
+                        result.nanos = System.nanoTime() - cardStart;
+                        return result;
+                    }
+                }));
+            }
+            for (Future<Result> f : futures) {
+                try {
+                    report.results.add(f.get());
+                } catch (ExecutionException e) {
+                    // call() catches everything
+                    throw new RuntimeException(e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        report.nanos = System.nanoTime() - start;
+        return report;
+    }
+}
@@ -43,7 +43,9 @@ public interface Smartcard {
     APDURes transmit(byte[] apdu) throws SmartcardException;
 
     /**
-     * Send hex encoded apdu and return hex encoded response
+     * Send hex encoded apdu and return hex encoded response.  The whole
+     * response is encoded, {@link SmartcardUtil#transmitHex(Smartcard, String)}
+     * returns a view that encodes only what is read.
      * @param hexApdu apdu to send
      * @return response
      * @throws SmartcardException if error
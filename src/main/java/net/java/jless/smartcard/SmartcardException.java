@@ -26,6 +26,25 @@ public class SmartcardException extends Exception {
 
     private static final long serialVersionUID = 8301404007891564451L;
 
+    /** Failure category. */
+    public enum Type {
+        /** Reader or driver error, card may still be fine. */
+        TRANSPORT,
+        /** Card removed or not present. */
+        CARD_REMOVED,
+        /** Command did not complete before deadline. */
+        TIMEOUT,
+        /** Card returned an unexpected status word. */
+        REJECTED,
+        /** Reader not used because of earlier failures. */
+        CIRCUIT_OPEN,
+        /** Anything else. */
+        UNKNOWN
+    }
+
+    private Type type = Type.UNKNOWN;
+    private int sw = -1;
+
     public SmartcardException(Throwable cause) {
         super(cause);
     }
@@ -34,4 +53,57 @@ public class SmartcardException extends Exception {
         super(msg);
     }
 
+    public SmartcardException(Throwable cause, Type type) {
+        super(cause);
+        this.type = type;
+    }
+
+    public SmartcardException(String msg, Type type) {
+        super(msg);
+        this.type = type;
+    }
+
+    /**
+     * Card rejected command.
+     * @param msg message
+     * @param sw status word
+     */
+    public SmartcardException(String msg, int sw) {
+        super(msg);
+        this.type = Type.REJECTED;
+        this.sw = sw;
+    }
+
+    /**
+     * Exception without stack trace, for preallocating exceptions thrown
+     * repeatedly on hot paths.  Instances are shared so must not be modified.
+     * @param msg message
+     * @param type type
+     * @return exception
+     */
+    public static SmartcardException stackless(String msg, Type type) {
+        return new Stackless(msg, type);
+    }
+
+    private static class Stackless extends SmartcardException {
+        private static final long serialVersionUID = -5062462962381227338L;
+
+        Stackless(String msg, Type type) {
+            super(msg, type);
+        }
+
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+    /** @return failure category. */
+    public Type getType() { return type; }
+
+    /** @return status word if {@link Type#REJECTED}, else -1. */
+    public int getSW() { return sw; }
+
+    /** @return true if failure is in the reader rather than the card and command may succeed if retried. */
+    public boolean isTransient() { return type == Type.TRANSPORT || type == Type.TIMEOUT; }
+
 }
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2009-2011 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.java.jless.smartcard;
+
+/**
+ * Logging SPI with no dependencies.  Loggers returned by
+ * {@link #getLog(Class)} are cheap to create and only resolve their
+ * implementation from the current {@link Factory} when first used, so
+ * class initialisation does no logging framework discovery.
+ * <p>
+ * The default factory discards everything.  Set system property
+ * <code>net.java.jless.smartcard.log</code> to <code>commons</code> to use
+ * commons-logging, or to the class name of a {@link Factory} with a
+ * public no-arg constructor.  A factory that cannot be created is ignored
+ * and nothing is logged.  Alternatively call {@link #setFactory(Factory)}.
+ * @author Joel Hockey
+ */
+public abstract class SmartcardLog {
+    /** System property used to choose the factory. */
+    public static final String FACTORY_PROPERTY = "net.java.jless.smartcard.log";
+
+    /** Creates logs. */
+    public interface Factory {
+        /**
+         * @param name log name, usually class name
+         * @return log
+         */
+        SmartcardLog getLog(String name);
+    }
+
+    /** Log that discards everything. */
+    public static final SmartcardLog NOOP = new SmartcardLog() {
+        public boolean isDebugEnabled() { return false; }
+        public void debug(Object msg, Throwable t) { }
+        public void info(Object msg, Throwable t) { }
+        public void warn(Object msg, Throwable t) { }
+        public void error(Object msg, Throwable t) { }
+    };
+
+    private static volatile Factory factory;
+
+    /**
+     * Return log which resolves its implementation on first use.
+     * @param c class
+     * @return log
+     */
+    public static SmartcardLog getLog(Class<?> c) {
+        return new LazyLog(c.getName());
+    }
+
+    /**
+     * Set factory.  Existing logs switch to the new factory on next use.
+     * @param f factory, null to resolve from system property again
+     */
+    public static void setFactory(Factory f) { factory = f; }
+
+    /** @return current factory, resolved from system property if not set. */
+    public static Factory getFactory() {
+        Factory f = factory;
+        if (f == null) {
+            f = createFactory(System.getProperty(FACTORY_PROPERTY));
+            factory = f;
+        }
+        return f;
+    }
+
+    static Factory createFactory(String name) {
+        if (name == null || name.length() == 0 || "none".equals(name)) {
+            return new NoopFactory();
+        }
+        if ("commons".equals(name)) {
+            return new CommonsFactory();
+        }
+        try {
+            return (Factory) Class.forName(name).getDeclaredConstructor().newInstance();
+        } catch (Exception e) {
+            // no logging is the default, an unusable factory is treated the same
+            return new NoopFactory();
+        }
+    }
+
+    /** @return true if debug messages are logged. */
+    public abstract boolean isDebugEnabled();
+
+    /**
+     * @param msg message
+     * @param t throwable, may be null
+     */
+    public abstract void debug(Object msg, Throwable t);
+    /**
+     * @param msg message
+     * @param t throwable, may be null
+     */
+    public abstract void info(Object msg, Throwable t);
+    /**
+     * @param msg message
+     * @param t throwable, may be null
+     */
+    public abstract void warn(Object msg, Throwable t);
+    /**
+     * @param msg message
+     * @param t throwable, may be null
+     */
+    public abstract void error(Object msg, Throwable t);
+
+    /** @param msg message */
+    public void debug(Object msg) { debug(msg, null); }
+    /** @param msg message */
+    public void info(Object msg) { info(msg, null); }
+    /** @param msg message */
+    public void warn(Object msg) { warn(msg, null); }
+    /** @param msg message */
+    public void error(Object msg) { error(msg, null); }
+
+    /** Delegates to log from the factory current at time of use. */
+    static class LazyLog extends SmartcardLog {
+        private String name;
+        private volatile Factory resolvedFrom;
+        private volatile SmartcardLog delegate;
+
+        LazyLog(String name) { this.name = name; }
+
+        SmartcardLog delegate() {
+            Factory f = getFactory();
+            SmartcardLog d = delegate;
+            if (d == null || resolvedFrom != f) {
+                d = f.getLog(name);
+                delegate = d;
+                resolvedFrom = f;
+            }
+            return d;
+        }
+
+        public boolean isDebugEnabled() { return delegate().isDebugEnabled(); }
+        public void debug(Object msg, Throwable t) { delegate().debug(msg, t); }
+        public void info(Object msg, Throwable t) { delegate().info(msg, t); }
+        public void warn(Object msg, Throwable t) { delegate().warn(msg, t); }
+        public void error(Object msg, Throwable t) { delegate().error(msg, t); }
+    }
+
+    static class NoopFactory implements Factory {
+        public SmartcardLog getLog(String name) { return NOOP; }
+    }
+
+    // only loaded when chosen, so commons-logging is not needed otherwise
+    static class CommonsFactory implements Factory {
+        public SmartcardLog getLog(String name) {
+            final org.apache.commons.logging.Log log = org.apache.commons.logging.LogFactory.getLog(name);
+            return new SmartcardLog() {
+                public boolean isDebugEnabled() { return log.isDebugEnabled(); }
+                public void debug(Object msg, Throwable t) { log.debug(msg, t); }
+                public void info(Object msg, Throwable t) { log.info(msg, t); }
+                public void warn(Object msg, Throwable t) { log.warn(msg, t); }
+                public void error(Object msg, Throwable t) { log.error(msg, t); }
+            };
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2009-2011 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.java.jless.smartcard;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool of cards holding the same keys.  Each card keeps its application
+ * selected and PIN verified between operations so callers only pay for
+ * the commands that do the work.  Concurrent callers are spread over
+ * whichever cards are idle.
+ * <pre>
+ * SmartcardPool pool = new SmartcardPool(Hex.s2b("00a4040006d27600012401"), Hex.s2b("0020008206313233343536"));
+ * pool.add(card1);
+ * pool.add(card2);
+ * APDURes sig = pool.execute(mse, pso);
+ * </pre>
+ * A card that fails with anything other than an error status word is
+ * reconnected with reset if it is a {@link ReconnectableSmartcard}, else it
+ * is removed from the pool.  A card rejecting VERIFY is also removed so
+ * its PIN is not blocked by repeated tries.
+ */
+public class SmartcardPool {
+    private static final SmartcardLog log = SmartcardLog.getLog(SmartcardPool.class);
+    private static final int SW_SECURITY_STATUS = 0x6982;
+
+    private byte[] select;
+    private byte[] verify;
+    private long timeoutMillis = 30000;
+    private BlockingQueue<Session> idle = new LinkedBlockingQueue<Session>();
+    private int size;
+
+    /**
+     * Constructor.
+     * @param select SELECT command sent once per session, or null
+     * @param verify VERIFY command sent once per session and after 6982, or null
+     */
+    public SmartcardPool(byte[] select, byte[] verify) {
+        this.select = select;
+        this.verify = verify;
+    }
+
+    /**
+     * Add card to pool.  Commands longer than 255 bytes are chained.
+     * @param card card
+     */
+    public synchronized void add(Smartcard card) {
+        idle.add(new Session(card));
+        size++;
+    }
+
+    /** @return number of cards in pool. */
+    public synchronized int size() { return size; }
+
+    /** @param timeoutMillis max wait for an idle card, default 30s */
+    public void setTimeoutMillis(long timeoutMillis) { this.timeoutMillis = timeoutMillis; }
+
+    /**
+     * Send commands on one card, re-verifying PIN if the card returns 6982.
+     * @param apdus commands, each must return 9000
+     * @return response to last command
+     * @throws SmartcardException if no card available, error, or sw not 9000
+     */
+    public APDURes execute(byte[]... apdus) throws SmartcardException {
+        Session session;
+        try {
+            session = idle.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SmartcardException(e);
+        }
+        if (session == null) {
+            throw new SmartcardTimeoutException("no card available in pool after " + timeoutMillis + "ms");
+        }
+        boolean ok = false;
+        try {
+            APDURes res = session.execute(apdus);
+            ok = true;
+            return res;
+        } catch (SmartcardException e) {
+            ok = session.open && e.getType() == SmartcardException.Type.REJECTED;
+            throw e;
+        } finally {
+            if (!session.verifyRejected && (ok || session.reconnect())) {
+                idle.add(session);
+            } else {
+                retire(session);
+            }
+        }
+    }
+
+    private synchronized void retire(Session session) {
+        size--;
+        log.warn("removed " + session.card.getIFDName() + " from pool, " + size + " cards left");
+    }
+
+    private class Session {
+        private Smartcard base;
+        private Smartcard card;
+        private boolean open;
+        private boolean verifyRejected;
+
+        Session(Smartcard base) {
+            this.base = base;
+            this.card = new ChainingSmartcard(base);
+        }
+
+        // true if session can be used again after failure
+        boolean reconnect() {
+            if (!(base instanceof ReconnectableSmartcard)) {
+                return false;
+            }
+            open = false;
+            try {
+                ((ReconnectableSmartcard) base).reconnect(true);
+                return true;
+            } catch (SmartcardException e) {
+                log.debug("reconnect failed on " + base.getIFDName(), e);
+                return false;
+            }
+        }
+
+        APDURes execute(byte[][] apdus) throws SmartcardException {
+            if (!open) {
+                if (select != null) {
+                    check(card.transmit(select), select);
+                }
+                login();
+                open = true;
+            }
+            APDURes res = null;
+            for (byte[] apdu : apdus) {
+                res = card.transmit(apdu);
+                if (res.getSW() == SW_SECURITY_STATUS && verify != null) {
+                    log.debug("PIN no longer verified on " + card.getIFDName());
+                    login();
+                    res = card.transmit(apdu);
+                }
+                check(res, apdu);
+            }
+            return res;
+        }
+
+        private void login() throws SmartcardException {
+            if (verify != null) {
+                APDURes res = card.transmit(verify);
+                if (res.getSW() != 0x9000) {
+                    verifyRejected = true;
+                    // do not include PIN in message
+                    throw new SmartcardException(String.format("VERIFY failed on %s, sw %04x",
+                            card.getIFDName(), res.getSW()), res.getSW());
+                }
+            }
+        }
+
+        private void check(APDURes res, byte[] apdu) throws SmartcardException {
+            if (res.getSW() != 0x9000) {
+                throw new SmartcardException(String.format("command %s failed on %s, sw %04x",
+                        Hex.b2s(Buf.substring(apdu, 0, 4)), card.getIFDName(), res.getSW()), res.getSW());
+            }
+        }
+    }
+}
@@ -0,0 +1,417 @@
+/*
+ * Copyright 2009-2011 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.java.jless.smartcard;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.AlgorithmParameters;
+import java.security.InvalidKeyException;
+import java.security.InvalidParameterException;
+import java.security.Key;
+import java.security.KeyStoreException;
+import java.security.KeyStoreSpi;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.Provider;
+import java.security.ProviderException;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.SignatureException;
+import java.security.SignatureSpi;
+import java.security.cert.Certificate;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.CipherSpi;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+
+/**
+ * JCA provider for keys on cards.  Signatures use ISO 7816-8 MSE SET DST
+ * and PSO COMPUTE DIGITAL SIGNATURE, RSA decryption uses MSE SET CT and
+ * PSO DECIPHER.  Operations run on whichever card in the key's
+ * {@link SmartcardPool} is idle, with the application already selected
+ * and PIN verified.
+ * <pre>
+ * SmartcardProvider provider = new SmartcardProvider();
+ * provider.addKey("sign", new CardKey("RSA", 0x81, pool, cert));
+ * KeyStore ks = KeyStore.getInstance("Smartcard", provider);
+ * ks.load(null, null);
+ * Signature sig = Signature.getInstance("SHA256withRSA", provider);
+ * sig.initSign((PrivateKey) ks.getKey("sign", null));
+ * </pre>
+ * Only private key operations are provided, verify and encrypt with the
+ * public key from the certificate using the default providers.  JDKs that
+ * require signed JCE providers will refuse the Cipher.
+ */
+public class SmartcardProvider extends Provider {
+    private static final long serialVersionUID = -7007880758911331147L;
+
+    /** Provider name. */
+    public static final String NAME = "Smartcard";
+
+    // DigestInfo prefixes from PKCS#1
+    private static final Map<String, byte[]> DIGEST_INFO = new HashMap<String, byte[]>();
+    static {
+        DIGEST_INFO.put("SHA-1", Hex.s2b("3021300906052b0e03021a05000414"));
+        DIGEST_INFO.put("SHA-256", Hex.s2b("3031300d060960864801650304020105000420"));
+        DIGEST_INFO.put("SHA-384", Hex.s2b("3041300d060960864801650304020205000430"));
+        DIGEST_INFO.put("SHA-512", Hex.s2b("3051300d060960864801650304020305000440"));
+    }
+
+    private transient Map<String, CardKey> keys = new ConcurrentHashMap<String, CardKey>();
+
+    /** Constructor. */
+    // Provider(String, String, String) is Java 9+, the double version is deprecated there but needed for Java 5
+    @SuppressWarnings("deprecation")
+    public SmartcardProvider() {
+        super(NAME, 1.0, "Smartcard provider (PSO signature and decipher)");
+        Map<String, String> attrs = Collections.singletonMap("SupportedKeyClasses", CardKey.class.getName());
+        for (String digest : new String[] {"NONE", "SHA1", "SHA256", "SHA384", "SHA512"}) {
+            putService(new CardService(this, "Signature", digest + "withRSA", attrs));
+            putService(new CardService(this, "Signature", digest + "withECDSA", attrs));
+        }
+        putService(new CardService(this, "Cipher", "RSA/ECB/PKCS1Padding", attrs));
+        putService(new CardService(this, "KeyStore", NAME, null));
+        putService(new CardService(this, "SecureRandom", "CardRandom", null));
+    }
+
+    /**
+     * Make key available in KeyStore.
+     * @param alias alias
+     * @param key key
+     */
+    public void addKey(String alias, CardKey key) {
+        keys.put(alias, key);
+    }
+
+    private static class CardService extends Provider.Service {
+        CardService(SmartcardProvider provider, String type, String algorithm, Map<String, String> attrs) {
+            super(provider, type, algorithm, SmartcardProvider.class.getName() + "$" + type, null, attrs);
+        }
+
+        public Object newInstance(Object param) throws NoSuchAlgorithmException {
+            String type = getType();
+            if ("Signature".equals(type)) {
+                String alg = getAlgorithm();
+                int i = alg.indexOf("with");
+                String digest = alg.substring(0, i).replace("SHA", "SHA-");
+                return new CardSignature("NONE".equals(digest) ? null : digest, alg.endsWith("ECDSA"));
+            } else if ("Cipher".equals(type)) {
+                return new CardCipher();
+            } else if ("KeyStore".equals(type)) {
+                return new CardKeyStore(((SmartcardProvider) getProvider()).keys);
+            } else if ("SecureRandom".equals(type)) {
+                return new CardEntropy.Spi();
+            }
+            throw new NoSuchAlgorithmException(type + "." + getAlgorithm());
+        }
+    }
+
+    /**
+     * MSE SET for key.
+     * @param crt control reference template, 0xb6 DST or 0xb8 CT
+     * @param key key
+     * @return apdu
+     */
+    static byte[] mse(int crt, CardKey key) {
+        return TlvWriter.forAPDU(0x00, 0x22, 0x41, crt).addByte(0x84, key.getKeyRef()).toAPDU(null);
+    }
+
+    /**
+     * Convert raw r|s signature to DER SEQUENCE {INTEGER r, INTEGER s}.
+     * @param rs r and s of equal length
+     * @return DER signature
+     */
+    static byte[] rsToDer(byte[] rs) {
+        int n = rs.length / 2;
+        TlvWriter w = new TlvWriter(rs.length + 16).start(0x30);
+        w.add(0x02, new BigInteger(1, Buf.substring(rs, 0, n)).toByteArray());
+        w.add(0x02, new BigInteger(1, Buf.substring(rs, n, n)).toByteArray());
+        return w.end().toByteArray();
+    }
+
+    static class CardSignature extends SignatureSpi {
+        private MessageDigest md;
+        private byte[] digestInfo;
+        private boolean ec;
+        private ByteArrayOutputStream data = new ByteArrayOutputStream();
+        private CardKey key;
+
+        CardSignature(String digest, boolean ec) throws NoSuchAlgorithmException {
+            if (digest != null) {
+                md = MessageDigest.getInstance(digest);
+                digestInfo = DIGEST_INFO.get(digest);
+            }
+            this.ec = ec;
+        }
+
+        protected void engineInitVerify(PublicKey publicKey) throws InvalidKeyException {
+            throw new InvalidKeyException("verify using public key with another provider");
+        }
+
+        protected void engineInitSign(PrivateKey privateKey) throws InvalidKeyException {
+            if (!(privateKey instanceof CardKey)) {
+                throw new InvalidKeyException("expected CardKey, got: " + privateKey);
+            }
+            CardKey k = (CardKey) privateKey;
+            if (k.getAlgorithm().equals("EC") != ec) {
+                throw new InvalidKeyException("key algorithm " + k.getAlgorithm() + " does not match signature");
+            }
+            key = k;
+            reset();
+        }
+
+        private void reset() {
+            if (md != null) {
+                md.reset();
+            }
+            data.reset();
+        }
+
+        protected void engineUpdate(byte b) {
+            if (md != null) {
+                md.update(b);
+            } else {
+                data.write(b);
+            }
+        }
+
+        protected void engineUpdate(byte[] b, int off, int len) {
+            if (md != null) {
+                md.update(b, off, len);
+            } else {
+                data.write(b, off, len);
+            }
+        }
+
+        protected byte[] engineSign() throws SignatureException {
+            if (key == null) {
+                throw new SignatureException("not initialized for signing");
+            }
+            byte[] input = md != null ? md.digest() : data.toByteArray();
+            reset();
+            if (digestInfo != null && !ec) {
+                input = Buf.cat(digestInfo, input);
+            }
+            byte[] pso = SmartcardUtil.formatAPDU(0x00, 0x2a, 0x9e, 0x9a, input, 0);
+            try {
+                byte[] sig = key.getPool().execute(mse(0xb6, key), pso).getData();
+                return ec ? rsToDer(sig) : sig;
+            } catch (SmartcardException e) {
+                throw new SignatureException(e);
+            }
+        }
+
+        protected boolean engineVerify(byte[] sigBytes) throws SignatureException {
+            throw new SignatureException("verify not supported");
+        }
+
+        @Deprecated
+        protected void engineSetParameter(String param, Object value) {
+            throw new InvalidParameterException("no parameters");
+        }
+
+        @Deprecated
+        protected Object engineGetParameter(String param) {
+            throw new InvalidParameterException("no parameters");
+        }
+    }
+
+    static class CardCipher extends CipherSpi {
+        private ByteArrayOutputStream data = new ByteArrayOutputStream();
+        private CardKey key;
+
+        protected void engineSetMode(String mode) throws NoSuchAlgorithmException {
+            if (!"ECB".equalsIgnoreCase(mode)) {
+                throw new NoSuchAlgorithmException("only ECB supported, got: " + mode);
+            }
+        }
+
+        protected void engineSetPadding(String padding) throws NoSuchPaddingException {
+            if (!"PKCS1Padding".equalsIgnoreCase(padding)) {
+                throw new NoSuchPaddingException("only PKCS1Padding supported, got: " + padding);
+            }
+        }
+
+        protected int engineGetBlockSize() { return 0; }
+
+        protected int engineGetOutputSize(int inputLen) { return data.size() + inputLen; }
+
+        protected byte[] engineGetIV() { return null; }
+
+        protected AlgorithmParameters engineGetParameters() { return null; }
+
+        protected void engineInit(int opmode, Key k, SecureRandom random) throws InvalidKeyException {
+            if (opmode != Cipher.DECRYPT_MODE && opmode != Cipher.UNWRAP_MODE) {
+                throw new InvalidKeyException("only decrypt supported, encrypt using public key with another provider");
+            }
+            if (!(k instanceof CardKey) || !"RSA".equals(k.getAlgorithm())) {
+                throw new InvalidKeyException("expected RSA CardKey, got: " + k);
+            }
+            key = (CardKey) k;
+            data.reset();
+        }
+
+        protected void engineInit(int opmode, Key k, AlgorithmParameterSpec params, SecureRandom random)
+                throws InvalidKeyException {
+            engineInit(opmode, k, random);
+        }
+
+        protected void engineInit(int opmode, Key k, AlgorithmParameters params, SecureRandom random)
+                throws InvalidKeyException {
+            engineInit(opmode, k, random);
+        }
+
+        protected byte[] engineUpdate(byte[] input, int off, int len) {
+            data.write(input, off, len);
+            return new byte[0];
+        }
+
+        protected int engineUpdate(byte[] input, int off, int len, byte[] output, int outOff) {
+            data.write(input, off, len);
+            return 0;
+        }
+
+        protected byte[] engineDoFinal(byte[] input, int off, int len)
+                throws IllegalBlockSizeException, BadPaddingException {
+            if (input != null) {
+                data.write(input, off, len);
+            }
+            // padding indicator 00 then cryptogram
+            byte[] cryptogram = Buf.cat(new byte[1], data.toByteArray());
+            data.reset();
+            byte[] pso = SmartcardUtil.formatAPDU(0x00, 0x2a, 0x80, 0x86, cryptogram, 0);
+            try {
+                return key.getPool().execute(mse(0xb8, key), pso).getData();
+            } catch (SmartcardException e) {
+                if (e.getType() == SmartcardException.Type.REJECTED) {
+                    BadPaddingException bpe = new BadPaddingException(e.getMessage());
+                    bpe.initCause(e);
+                    throw bpe;
+                }
+                throw new ProviderException(e);
+            }
+        }
+
+        protected int engineDoFinal(byte[] input, int off, int len, byte[] output, int outOff)
+                throws ShortBufferException, IllegalBlockSizeException, BadPaddingException {
+            byte[] result = engineDoFinal(input, off, len);
+            if (output.length - outOff < result.length) {
+                throw new ShortBufferException("need " + result.length + " bytes");
+            }
+            System.arraycopy(result, 0, output, outOff, result.length);
+            return result.length;
+        }
+
+        protected Key engineUnwrap(byte[] wrapped, String algorithm, int type)
+                throws InvalidKeyException, NoSuchAlgorithmException {
+            if (type != Cipher.SECRET_KEY) {
+                throw new InvalidKeyException("only secret keys can be unwrapped");
+            }
+            try {
+                return new javax.crypto.spec.SecretKeySpec(engineDoFinal(wrapped, 0, wrapped.length), algorithm);
+            } catch (Exception e) {
+                throw new InvalidKeyException(e);
+            }
+        }
+    }
+
+    static class CardKeyStore extends KeyStoreSpi {
+        private Map<String, CardKey> keys;
+
+        CardKeyStore(Map<String, CardKey> keys) {
+            this.keys = keys;
+        }
+
+        public Key engineGetKey(String alias, char[] password) { return keys.get(alias); }
+
+        public Certificate[] engineGetCertificateChain(String alias) {
+            Certificate cert = engineGetCertificate(alias);
+            return cert == null ? null : new Certificate[] {cert};
+        }
+
+        public Certificate engineGetCertificate(String alias) {
+            CardKey key = keys.get(alias);
+            return key == null ? null : key.getCertificate();
+        }
+
+        public Date engineGetCreationDate(String alias) { return null; }
+
+        public void engineSetKeyEntry(String alias, Key key, char[] password, Certificate[] chain)
+                throws KeyStoreException {
+            if (!(key instanceof CardKey)) {
+                throw new KeyStoreException("only CardKey can be stored");
+            }
+            keys.put(alias, (CardKey) key);
+        }
+
+        public void engineSetKeyEntry(String alias, byte[] key, Certificate[] chain) throws KeyStoreException {
+            throw new KeyStoreException("keys are generated on card");
+        }
+
+        public void engineSetCertificateEntry(String alias, Certificate cert) throws KeyStoreException {
+            throw new KeyStoreException("certificates are stored with keys");
+        }
+
+        public void engineDeleteEntry(String alias) { keys.remove(alias); }
+
+        public Enumeration<String> engineAliases() { return Collections.enumeration(keys.keySet()); }
+
+        public boolean engineContainsAlias(String alias) { return keys.containsKey(alias); }
+
+        public int engineSize() { return keys.size(); }
+
+        public boolean engineIsKeyEntry(String alias) { return keys.containsKey(alias); }
+
+        public boolean engineIsCertificateEntry(String alias) { return false; }
+
+        public String engineGetCertificateAlias(Certificate cert) {
+            for (Map.Entry<String, CardKey> entry : keys.entrySet()) {
+                if (cert.equals(entry.getValue().getCertificate())) {
+                    return entry.getKey();
+                }
+            }
+            return null;
+        }
+
+        public void engineStore(OutputStream stream, char[] password) {
+            // keys live on card
+        }
+
+        public void engineLoad(InputStream stream, char[] password) {
+            // keys are added with SmartcardProvider.addKey
+        }
+    }
+}
@@ -0,0 +1,472 @@
+/*
+ * Copyright 2009-2011 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.java.jless.smartcard;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals;
+import javax.smartcardio.TerminalFactory;
+
+/**
+ * Serves {@link Smartcard}s over TCP to {@link RemoteSmartcard} clients.
+ * Each card is registered on a channel number and a single connection
+ * can use any number of channels.  A single selector thread handles all
+ * connections, commands for each channel run in order on the channel's
+ * own thread.
+ * <p>
+ * Card state such as the selected application is not kept per client, so
+ * a channel is used by one connection at a time.  The first connection
+ * sending a request on a channel owns it until it sends
+ * {@link #OP_DISCONNECT} or closes, requests from other connections are
+ * answered with a {@link SmartcardException.Type#REJECTED} error.  At most
+ * {@link #setQueueSize(int)} requests wait for each channel, further
+ * requests are also rejected.
+ * <p>
+ * Frames are binary, all integers big-endian:
+ * <pre>
+ * |len(4)|id(4)|channel(1)|op(1)|payload...|
+ * </pre>
+ * len covers everything after the len field.  Responses echo id and
+ * channel with op | 0x80, or {@link #OP_ERROR} with payload
+ * |type(1)|sw(4)|UTF-8 message|.  Clients may send several requests
+ * without waiting, responses for different channels may arrive out of order.
+ */
+public class SmartcardServer implements Runnable {
+    private static final SmartcardLog log = SmartcardLog.getLog(SmartcardServer.class);
+
+    /** Transmit, payload is APDU, response payload is R-APDU. */
+    public static final int OP_TRANSMIT = 0x01;
+    /** Card info, response payload is |atrlen(2)|ATR|UTF-8 IFD name|. */
+    public static final int OP_INFO = 0x02;
+    /**
+     * Disconnect, payload is 1 byte reset flag.  Ends the client's use of
+     * the channel only, the shared card is not disconnected or reset.
+     */
+    public static final int OP_DISCONNECT = 0x03;
+    /** Response flag. */
+    public static final int OP_RESPONSE = 0x80;
+    /** Error response. */
+    public static final int OP_ERROR = 0xff;
+    /** Frame header length after len field. */
+    static final int HEADER_LEN = 6;
+    /** Max frame len, enough for extended length APDUs. */
+    static final int MAX_FRAME_LEN = 0x20000;
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private InetSocketAddress address;
+    private Map<Integer, Smartcard> cards = new ConcurrentHashMap<Integer, Smartcard>();
+    private Map<Integer, ExecutorService> executors = new ConcurrentHashMap<Integer, ExecutorService>();
+    private ConcurrentMap<Integer, Connection> owners = new ConcurrentHashMap<Integer, Connection>();
+    private int queueSize = 64;
+    private Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<Connection>();
+    private ServerSocketChannel server;
+    private Selector selector;
+    private Thread thread;
+    private volatile boolean running;
+
+    /**
+     * Constructor listening on loopback only.
+     * @param port port, 0 for any free port
+     */
+    public SmartcardServer(int port) {
+        this(new InetSocketAddress("127.0.0.1", port));
+    }
+
+    /**
+     * Constructor.  There is no authentication, any client that can
+     * connect can send any command to the cards, so only listen on
+     * interfaces other than loopback on a trusted network.
+     * @param address address to listen on
+     */
+    public SmartcardServer(InetSocketAddress address) {
+        this.address = address;
+    }
+
+    /**
+     * Set max requests waiting for each channel, applies to cards added
+     * after this call.  Default is 64.
+     * @param queueSize max waiting requests, at least 1
+     */
+    public void setQueueSize(int queueSize) {
+        if (queueSize < 1) {
+            throw new IllegalArgumentException("queueSize must be at least 1, got: " + queueSize);
+        }
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * Register card on channel.
+     * @param channel channel 0-255
+     * @param card card
+     */
+    public void addCard(int channel, Smartcard card) {
+        if (channel < 0 || channel > 255) {
+            throw new IllegalArgumentException("channel must be 0-255, got: " + channel);
+        }
+        final String name = "smartcard-server-" + channel;
+        // one thread, bounded queue, full queue throws RejectedExecutionException
+        ExecutorService old = executors.put(channel, new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            }
+        }));
+        if (old != null) {
+            old.shutdown();
+        }
+        cards.put(channel, card);
+    }
+
+    /**
+     * Start listening.
+     * @throws IOException if error
+     */
+    public synchronized void start() throws IOException {
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.socket().setReuseAddress(true);
+        server.socket().bind(address);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+        thread = new Thread(this, "smartcard-server-" + getPort());
+        thread.setDaemon(true);
+        thread.start();
+        log.info("listening on " + server.socket().getLocalSocketAddress());
+    }
+
+    /** @return port listening on, or -1 if not started. */
+    public int getPort() {
+        return server == null ? -1 : server.socket().getLocalPort();
+    }
+
+    /** Stop listening, close connections and stop channel threads. Cards are not disconnected. */
+    public synchronized void stop() {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+        try {
+            if (thread != null) {
+                thread.join(5000);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (ExecutorService executor : executors.values()) {
+            executor.shutdownNow();
+        }
+    }
+
+    /** Selector loop. */
+    public void run() {
+        try {
+            while (running) {
+                selector.select();
+                for (Connection conn; (conn = pendingWrites.poll()) != null; ) {
+                    if (conn.key.isValid()) {
+                        conn.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    }
+                }
+                for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); ) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    try {
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            Connection conn = (Connection) key.attachment();
+                            if (key.isReadable()) {
+                                conn.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                conn.write();
+                            }
+                        }
+                    } catch (IOException e) {
+                        log.debug("closing connection", e);
+                        close(key);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            log.error("selector failed", e);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                close(key);
+            }
+            try {
+                selector.close();
+                server.close();
+            } catch (IOException e) {
+                log.debug("error closing", e);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel ch = server.accept();
+        if (ch == null) {
+            return;
+        }
+        ch.configureBlocking(false);
+        ch.socket().setTcpNoDelay(true);
+        Connection conn = new Connection(ch);
+        conn.key = ch.register(selector, SelectionKey.OP_READ, conn);
+        log.debug("accepted " + ch.socket().getRemoteSocketAddress());
+    }
+
+    private void close(SelectionKey key) {
+        if (key.attachment() instanceof Connection) {
+            Connection conn = (Connection) key.attachment();
+            owners.values().removeAll(Collections.singleton(conn));
+        }
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            log.debug("error closing", e);
+        }
+    }
+
+    /**
+     * Run request on card.
+     * @param card card
+     * @param op op
+     * @param payload payload
+     * @return response payload
+     * @throws SmartcardException if error
+     */
+    private static byte[] execute(Smartcard card, int op, byte[] payload) throws SmartcardException {
+        switch (op) {
+            case OP_TRANSMIT:
+                return card.transmit(payload).getBytes();
+            case OP_INFO:
+                byte[] atr = card.getATR();
+                byte[] ifd = String.valueOf(card.getIFDName()).getBytes(UTF8);
+                byte[] info = new byte[2 + atr.length + ifd.length];
+                Buf.s2b(info, 0, (short) atr.length);
+                System.arraycopy(atr, 0, info, 2, atr.length);
+                System.arraycopy(ifd, 0, info, 2 + atr.length, ifd.length);
+                return info;
+            case OP_DISCONNECT:
+                // card is shared by all clients, do not disconnect it for one
+                return new byte[0];
+            default:
+                throw new SmartcardException(String.format("unknown op %02x", op));
+        }
+    }
+
+    /**
+     * Build frame.
+     * @param id request id
+     * @param channel channel
+     * @param op op
+     * @param payload payload
+     * @return frame including len
+     */
+    static ByteBuffer frame(int id, int channel, int op, byte[] payload) {
+        ByteBuffer buf = ByteBuffer.allocate(4 + HEADER_LEN + payload.length);
+        buf.putInt(HEADER_LEN + payload.length).putInt(id).put((byte) channel).put((byte) op).put(payload);
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Build error payload.
+     * @param e exception
+     * @return |type(1)|sw(4)|UTF-8 message|
+     */
+    static byte[] errorPayload(SmartcardException e) {
+        byte[] msg = String.valueOf(e.getMessage()).getBytes(UTF8);
+        ByteBuffer buf = ByteBuffer.allocate(5 + msg.length);
+        buf.put((byte) e.getType().ordinal()).putInt(e.getSW()).put(msg);
+        return buf.array();
+    }
+
+    /**
+     * Parse error payload.
+     * @param payload payload from {@link #errorPayload(SmartcardException)}
+     * @return exception
+     */
+    static SmartcardException parseError(byte[] payload) {
+        ByteBuffer buf = ByteBuffer.wrap(payload);
+        SmartcardException.Type[] types = SmartcardException.Type.values();
+        int t = buf.get() & 0xff;
+        SmartcardException.Type type = t < types.length ? types[t] : SmartcardException.Type.UNKNOWN;
+        int sw = buf.getInt();
+        String msg = new String(payload, 5, payload.length - 5, UTF8);
+        return sw >= 0 ? new SmartcardException(msg, sw) : new SmartcardException(msg, type);
+    }
+
+    private class Connection {
+        private SocketChannel ch;
+        private SelectionKey key;
+        private ByteBuffer in = ByteBuffer.allocate(4096);
+        private Queue<ByteBuffer> out = new ConcurrentLinkedQueue<ByteBuffer>();
+
+        Connection(SocketChannel ch) {
+            this.ch = ch;
+        }
+
+        void read() throws IOException {
+            if (ch.read(in) < 0) {
+                throw new IOException("connection closed by client");
+            }
+            in.flip();
+            while (in.remaining() >= 4) {
+                int len = in.getInt(in.position());
+                if (len < HEADER_LEN || len > MAX_FRAME_LEN) {
+                    throw new IOException("invalid frame len: " + len);
+                }
+                if (in.remaining() < 4 + len) {
+                    if (in.capacity() < 4 + len) {
+                        ByteBuffer bigger = ByteBuffer.allocate(4 + len);
+                        bigger.put(in);
+                        in = bigger;
+                        return;
+                    }
+                    break;
+                }
+                in.getInt();
+                int id = in.getInt();
+                int channel = in.get() & 0xff;
+                int op = in.get() & 0xff;
+                byte[] payload = new byte[len - HEADER_LEN];
+                in.get(payload);
+                dispatch(id, channel, op, payload);
+            }
+            in.compact();
+        }
+
+        void dispatch(final int id, final int channel, final int op, final byte[] payload) {
+            final Smartcard card = cards.get(channel);
+            ExecutorService executor = executors.get(channel);
+            if (card == null || executor == null) {
+                send(frame(id, channel, OP_ERROR, errorPayload(new SmartcardException("no card on channel " + channel,
+                        SmartcardException.Type.CARD_REMOVED))));
+                return;
+            }
+            Connection owner = owners.putIfAbsent(channel, this);
+            if (owner != null && owner != this) {
+                send(frame(id, channel, OP_ERROR, errorPayload(new SmartcardException("channel " + channel
+                        + " in use by another client", SmartcardException.Type.REJECTED))));
+                return;
+            }
+            final Connection conn = this;
+            Runnable task = new Runnable() {
+                public void run() {
+                    if (op == OP_DISCONNECT) {
+                        owners.remove(channel, conn);
+                    }
+                    ByteBuffer res;
+                    try {
+                        res = frame(id, channel, op | OP_RESPONSE, execute(card, op, payload));
+                    } catch (SmartcardException e) {
+                        res = frame(id, channel, OP_ERROR, errorPayload(e));
+                    } catch (RuntimeException e) {
+                        log.warn("error executing op " + op + " on channel " + channel, e);
+                        res = frame(id, channel, OP_ERROR, errorPayload(new SmartcardException(e.toString())));
+                    }
+                    send(res);
+                }
+            };
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                send(frame(id, channel, OP_ERROR, errorPayload(new SmartcardException("channel " + channel
+                        + " busy", SmartcardException.Type.REJECTED))));
+            }
+        }
+
+        void send(ByteBuffer frame) {
+            out.add(frame);
+            pendingWrites.add(this);
+            selector.wakeup();
+        }
+
+        void write() throws IOException {
+            for (ByteBuffer buf; (buf = out.peek()) != null; ) {
+                ch.write(buf);
+                if (buf.hasRemaining()) {
+                    return;
+                }
+                out.poll();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            // frame may have been queued after the peek returned null
+            if (!out.isEmpty()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    /**
+     * Serve all PC/SC readers with a card present, on channels 0, 1, ...
+     * Listens on loopback unless an address is given, e.g. 0.0.0.0 for
+     * all interfaces.  Logs with commons-logging unless
+     * {@link SmartcardLog#FACTORY_PROPERTY} is set.
+     * @param args [port [address]]
+     * @throws Exception if error
+     */
+    public static void main(String[] args) throws Exception {
+        if (System.getProperty(SmartcardLog.FACTORY_PROPERTY) == null) {
+            SmartcardLog.setFactory(SmartcardLog.createFactory("commons"));
+        }
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 7816;
+        SmartcardServer server = args.length > 1 ? new SmartcardServer(new InetSocketAddress(args[1], port))
+                : new SmartcardServer(port);
+        List<CardTerminal> terminals = TerminalFactory.getDefault().terminals().list(CardTerminals.State.CARD_PRESENT);
+        for (int i = 0; i < terminals.size(); i++) {
+            SCIOSmartcard card = new SCIOSmartcard(terminals.get(i));
+            server.addCard(i, card);
+            log.info("channel " + i + ": " + card.getIFDName() + " " + Hex.b2s(card.getATR()));
+        }
+        server.start();
+        Thread.currentThread().join();
+    }
+}
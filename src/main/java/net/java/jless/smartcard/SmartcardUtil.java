@@ -24,6 +24,20 @@ package net.java.jless.smartcard;
 
 public class SmartcardUtil {
 
+    /**
+     * Send hex command and return lazy hex response.  Commands are decoded
+     * through {@link HexCommandCache} and the response is only encoded as
+     * far as it is read, so callers that check the status word pay little
+     * more than the byte[] API.
+     * @param card card
+     * @param hexApdu hex command
+     * @return hex response view
+     * @throws SmartcardException if error
+     */
+    public static CharSequence transmitHex(Smartcard card, String hexApdu) throws SmartcardException {
+        return card.transmit(HexCommandCache.decode(hexApdu)).toHex();
+    }
+
     /**
      * Format APDU.
      * @param cla cla
@@ -149,4 +163,107 @@ public class SmartcardUtil {
         java.lang.System.arraycopy(apdu, 7, data, 0, data.length);
         return card.transmit(cla, ins, p1, p2, data, le);
     }
-}
\ No newline at end of file
+
+    /**
+     * Find card of given type in a stack of {@link SmartcardDecorator}s.
+     * @param card outermost card
+     * @param type type to find
+     * @return card itself or first decorated card of type, null if none
+     */
+    public static <T extends Smartcard> T find(Smartcard card, Class<T> type) {
+        Smartcard c = card;
+        while (!type.isInstance(c) && c instanceof SmartcardDecorator) {
+            c = ((SmartcardDecorator) c).getCard();
+        }
+        return type.isInstance(c) ? type.cast(c) : null;
+    }
+
+    /**
+     * @param card outermost card
+     * @return innermost card of a stack of {@link SmartcardDecorator}s
+     */
+    public static Smartcard base(Smartcard card) {
+        Smartcard c = card;
+        while (c instanceof SmartcardDecorator) {
+            c = ((SmartcardDecorator) c).getCard();
+        }
+        return c;
+    }
+
+    /**
+     * Read transparent EF using READ BINARY.  Response size for each
+     * command is taken from the card ATR, so cards indicating extended
+     * length are read with a single extended Le where possible.
+     * @param card card with EF already selected
+     * @param offset offset to start reading (0..0x7fff)
+     * @param len number of bytes to read
+     * @return data, may be shorter than len if end of file reached
+     * @throws SmartcardException if error
+     */
+    public static byte[] readBinary(Smartcard card, int offset, int len) throws SmartcardException {
+        int maxLe = 256;
+        try {
+            maxLe = new ATR(card.getATR()).getMaxResponseDataLen();
+        } catch (IllegalArgumentException e) {
+            // unparseable ATR, use short Le
+        }
+        return readBinary(card, offset, len, maxLe);
+    }
+
+    /**
+     * Read transparent EF using READ BINARY with the read size measured
+     * for this reader by {@link ReaderTuner}.
+     * @param card card with EF already selected
+     * @param offset offset to start reading (0..0x7fff)
+     * @param len number of bytes to read
+     * @param profile reader profile
+     * @return data, may be shorter than len if end of file reached
+     * @throws SmartcardException if error
+     */
+    public static byte[] readBinary(Smartcard card, int offset, int len, ReaderProfile profile)
+            throws SmartcardException {
+        return readBinary(card, offset, len, profile.getReadSize());
+    }
+
+    /**
+     * Read transparent EF using READ BINARY with at most maxLe bytes per command.
+     * Stops early with SW 6282 (end of file reached) or 6b00 (offset outside EF).
+     * @param card card with EF already selected
+     * @param offset offset to start reading (0..0x7fff)
+     * @param len number of bytes to read
+     * @param maxLe max bytes in each response (1..65536)
+     * @return data, may be shorter than len if end of file reached
+     * @throws SmartcardException if error
+     */
+    public static byte[] readBinary(Smartcard card, int offset, int len, int maxLe) throws SmartcardException {
+        byte[] result = new byte[len];
+        int read = 0;
+        while (read < len) {
+            int pos = offset + read;
+            if (pos > 0x7fff) {
+                throw new SmartcardException("READ BINARY offset must be at most 0x7fff, got: " + pos);
+            }
+            int le = Math.min(maxLe, len - read);
+            APDURes res = card.transmit(0, 0xb0, pos >> 8, pos & 0xff, null, le);
+            // wrong Le, card tells us how many bytes are available
+            if (res.getSW1() == 0x6c) {
+                le = res.getSW2() == 0 ? 256 : res.getSW2();
+                res = card.transmit(0, 0xb0, pos >> 8, pos & 0xff, null, le);
+            }
+            int sw = res.getSW();
+            if (sw == 0x6b00) {
+                break;
+            }
+            if (sw != 0x9000 && sw != 0x6282) {
+                throw new SmartcardException(String.format("READ BINARY error at offset %d, sw=%04x", pos, sw), sw);
+            }
+            int dataLen = Math.min(res.getBytes().length - 2, len - read);
+            System.arraycopy(res.getBytes(), 0, result, read, dataLen);
+            read += dataLen;
+            if (sw == 0x6282 || dataLen == 0) {
+                break;
+            }
+        }
+        return read == len ? result : Buf.substring(result, 0, read);
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2009-2011 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.java.jless.smartcard;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals;
+import javax.smartcardio.TerminalFactory;
+
+/**
+ * Reports card insertion and removal on a background thread.  Blocks
+ * in {@link CardTerminals#waitForChange(long)} (SCardGetStatusChange)
+ * rather than polling, so events arrive as soon as PC/SC sees them.
+ * <pre>
+ * TerminalMonitor monitor = new TerminalMonitor();
+ * monitor.addListener(new TerminalMonitor.Listener() {
+ *     public void cardInserted(CardTerminal terminal) { ... }
+ *     public void cardRemoved(CardTerminal terminal) { ... }
+ * });
+ * monitor.start();
+ * </pre>
+ */
+public class TerminalMonitor implements Runnable {
+    private static final SmartcardLog log = SmartcardLog.getLog(TerminalMonitor.class);
+
+    /** Receives events on the monitor thread. */
+    public interface Listener {
+        /** @param terminal terminal where card was inserted */
+        void cardInserted(CardTerminal terminal);
+        /** @param terminal terminal where card was removed */
+        void cardRemoved(CardTerminal terminal);
+    }
+
+    private CardTerminals terminals;
+    private List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private long timeoutMillis = 1000;
+    private volatile Thread thread;
+
+    /** Constructor using default PC/SC terminals. */
+    public TerminalMonitor() {
+        this(TerminalFactory.getDefault().terminals());
+    }
+
+    /**
+     * Constructor.
+     * @param terminals terminals to monitor
+     */
+    public TerminalMonitor(CardTerminals terminals) {
+        this.terminals = terminals;
+    }
+
+    /** @param listener listener */
+    public void addListener(Listener listener) { listeners.add(listener); }
+
+    /** @param listener listener */
+    public void removeListener(Listener listener) { listeners.remove(listener); }
+
+    /** @param timeoutMillis max time blocked in each wait, bounds how long {@link #stop()} takes, default 1s */
+    public void setTimeoutMillis(long timeoutMillis) { this.timeoutMillis = timeoutMillis; }
+
+    /** Start monitor thread.  Cards already present are reported as inserted. */
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        thread = new Thread(this, "smartcard-monitor");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Stop monitor thread. */
+    public synchronized void stop() {
+        thread = null;
+    }
+
+    /** Monitor loop. */
+    public void run() {
+        Thread self = Thread.currentThread();
+        while (thread == self) {
+            try {
+                for (CardTerminal t : terminals.list(CardTerminals.State.CARD_INSERTION)) {
+                    for (Listener l : listeners) {
+                        fire(l, t, true);
+                    }
+                }
+                for (CardTerminal t : terminals.list(CardTerminals.State.CARD_REMOVAL)) {
+                    for (Listener l : listeners) {
+                        fire(l, t, false);
+                    }
+                }
+                terminals.waitForChange(timeoutMillis);
+            } catch (CardException e) {
+                // no readers, or PC/SC service restarted
+                log.debug("error waiting for change", e);
+                try {
+                    Thread.sleep(timeoutMillis);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // a failing listener must not stop others or skip waitForChange
+    private static void fire(Listener l, CardTerminal t, boolean inserted) {
+        try {
+            if (inserted) {
+                l.cardInserted(t);
+            } else {
+                l.cardRemoved(t);
+            }
+        } catch (RuntimeException e) {
+            log.warn("listener failed for " + t.getName(), e);
+        }
+    }
+}
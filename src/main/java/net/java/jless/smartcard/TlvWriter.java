@@ -0,0 +1,357 @@
+/*
+ * Copyright 2009-2011 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.java.jless.smartcard;
+
+import java.util.Arrays;
+
+/**
+ * Writes BER-TLV and DGI structures into a single buffer.  Lengths of
+ * constructed TLVs are back-patched by {@link #end()}, moving the value
+ * only when the length needs more than 1 byte.  A writer created with
+ * {@link #forAPDU(int, int, int, int)} reserves room for the command
+ * header and Lc so {@link #toAPDU(Integer)} needs no concatenation.
+ * <pre>
+ * byte[] apdu = TlvWriter.forAPDU(0x00, 0xda, 0x3f, 0xff)
+ *     .start(0x70)
+ *         .add(0x5f20, name)
+ *         .add(0x5a, pan)
+ *     .end()
+ *     .toAPDU(null);
+ * </pre>
+ */
+public class TlvWriter {
+    private static final int APDU_HEADER = 7; // CLA|INS|P1|P2|00|LC1|LC2
+    private static final int DGI = 1;
+
+    private byte[] buf;
+    private int start;
+    private int pos;
+    private boolean growable;
+    private int cla = -1;
+    private int ins;
+    private int p1;
+    private int p2;
+    // pairs of (position of length byte, kind) for open TLVs
+    private int[] stack = new int[16];
+    private int depth;
+
+    /** Constructor with growable buffer. */
+    public TlvWriter() {
+        this(256);
+    }
+
+    /**
+     * Constructor with growable buffer.
+     * @param capacity initial capacity
+     */
+    public TlvWriter(int capacity) {
+        buf = new byte[capacity];
+        growable = true;
+    }
+
+    /**
+     * Constructor writing into caller buffer.  Buffer does not grow.
+     * @param buf buffer
+     * @param offset offset to start writing
+     */
+    public TlvWriter(byte[] buf, int offset) {
+        this.buf = buf;
+        this.start = offset;
+        this.pos = offset;
+    }
+
+    /**
+     * Writer for command data with room reserved for header and Lc.
+     * @param cla cla
+     * @param ins ins
+     * @param p1 p1
+     * @param p2 p2
+     * @return writer
+     */
+    public static TlvWriter forAPDU(int cla, int ins, int p1, int p2) {
+        TlvWriter w = new TlvWriter(APDU_HEADER + 256);
+        w.start = w.pos = APDU_HEADER;
+        w.cla = cla;
+        w.ins = ins;
+        w.p1 = p1;
+        w.p2 = p2;
+        return w;
+    }
+
+    private void ensure(int n) {
+        if (pos + n <= buf.length) {
+            return;
+        }
+        if (!growable) {
+            throw new IllegalStateException("buffer full, need " + (pos + n) + " bytes, have " + buf.length);
+        }
+        buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n + 2));
+    }
+
+    private void writeTag(int tag) {
+        int n = (tag & 0xff000000) != 0 ? 4 : (tag & 0xff0000) != 0 ? 3 : (tag & 0xff00) != 0 ? 2 : 1;
+        ensure(n);
+        for (int shift = (n - 1) * 8; shift >= 0; shift -= 8) {
+            buf[pos++] = (byte) (tag >> shift);
+        }
+    }
+
+    private void writeLen(int len) {
+        ensure(4);
+        if (len < 0x80) {
+            buf[pos++] = (byte) len;
+        } else if (len <= 0xff) {
+            buf[pos++] = (byte) 0x81;
+            buf[pos++] = (byte) len;
+        } else if (len <= 0xffff) {
+            buf[pos++] = (byte) 0x82;
+            buf[pos++] = (byte) (len >> 8);
+            buf[pos++] = (byte) len;
+        } else {
+            buf[pos++] = (byte) 0x83;
+            buf[pos++] = (byte) (len >> 16);
+            buf[pos++] = (byte) (len >> 8);
+            buf[pos++] = (byte) len;
+        }
+    }
+
+    /**
+     * Write primitive TLV.
+     * @param tag tag, e.g. 0x9f38
+     * @param value value
+     * @return this
+     */
+    public TlvWriter add(int tag, byte[] value) {
+        return add(tag, value, 0, value.length);
+    }
+
+    /**
+     * Write primitive TLV.
+     * @param tag tag, e.g. 0x9f38
+     * @param value buf containing value
+     * @param offset offset of value
+     * @param len len of value
+     * @return this
+     */
+    public TlvWriter add(int tag, byte[] value, int offset, int len) {
+        writeTag(tag);
+        writeLen(len);
+        return raw(value, offset, len);
+    }
+
+    /**
+     * Write primitive TLV with single byte value.
+     * @param tag tag
+     * @param value byte value
+     * @return this
+     */
+    public TlvWriter addByte(int tag, int value) {
+        writeTag(tag);
+        ensure(2);
+        buf[pos++] = 1;
+        buf[pos++] = (byte) value;
+        return this;
+    }
+
+    /**
+     * Write raw bytes.
+     * @param data data
+     * @return this
+     */
+    public TlvWriter raw(byte[] data) {
+        return raw(data, 0, data.length);
+    }
+
+    /**
+     * Write raw bytes.
+     * @param data buf containing data
+     * @param offset offset of data
+     * @param len len of data
+     * @return this
+     */
+    public TlvWriter raw(byte[] data, int offset, int len) {
+        ensure(len);
+        System.arraycopy(data, offset, buf, pos, len);
+        pos += len;
+        return this;
+    }
+
+    /**
+     * Start constructed TLV, must be closed with {@link #end()}.
+     * @param tag tag
+     * @return this
+     */
+    public TlvWriter start(int tag) {
+        writeTag(tag);
+        return push(0);
+    }
+
+    /**
+     * Start DGI (2 byte tag, length 1 byte or ff followed by 2 bytes),
+     * must be closed with {@link #end()}.
+     * @param dgi DGI
+     * @return this
+     */
+    public TlvWriter startDGI(int dgi) {
+        ensure(2);
+        buf[pos++] = (byte) (dgi >> 8);
+        buf[pos++] = (byte) dgi;
+        return push(DGI);
+    }
+
+    private TlvWriter push(int kind) {
+        if (depth + 2 > stack.length) {
+            stack = Arrays.copyOf(stack, stack.length * 2);
+        }
+        ensure(1);
+        stack[depth++] = pos++; // reserve 1 length byte
+        stack[depth++] = kind;
+        return this;
+    }
+
+    /**
+     * End most recent {@link #start(int)} or {@link #startDGI(int)} and back-patch its length.
+     * @return this
+     */
+    public TlvWriter end() {
+        if (depth == 0) {
+            throw new IllegalStateException("end() without start()");
+        }
+        int kind = stack[--depth];
+        int lenPos = stack[--depth];
+        int len = pos - lenPos - 1;
+        int extra;
+        if (kind == DGI) {
+            extra = len < 0xff ? 0 : 2;
+        } else {
+            extra = len < 0x80 ? 0 : len <= 0xff ? 1 : len <= 0xffff ? 2 : 3;
+        }
+        if (extra > 0) {
+            ensure(extra);
+            System.arraycopy(buf, lenPos + 1, buf, lenPos + 1 + extra, len);
+            pos += extra;
+        }
+        if (kind == DGI) {
+            if (extra == 0) {
+                buf[lenPos] = (byte) len;
+            } else {
+                buf[lenPos] = (byte) 0xff;
+                buf[lenPos + 1] = (byte) (len >> 8);
+                buf[lenPos + 2] = (byte) len;
+            }
+        } else if (extra == 0) {
+            buf[lenPos] = (byte) len;
+        } else {
+            buf[lenPos] = (byte) (0x80 | extra);
+            for (int i = extra; i > 0; i--) {
+                buf[lenPos + i] = (byte) len;
+                len >>= 8;
+            }
+        }
+        return this;
+    }
+
+    /** @return number of bytes written (excluding reserved header). */
+    public int size() { return pos - start; }
+
+    /** Discard everything written. */
+    public void reset() {
+        pos = start;
+        depth = 0;
+    }
+
+    /** @return copy of bytes written. */
+    public byte[] toByteArray() {
+        checkClosed();
+        return Arrays.copyOfRange(buf, start, pos);
+    }
+
+    private void checkClosed() {
+        if (depth > 0) {
+            throw new IllegalStateException((depth / 2) + " TLVs not ended");
+        }
+    }
+
+    /**
+     * Fill reserved header and Lc, append Le and return APDU.
+     * Uses the same Lc and Le encoding as {@link SmartcardUtil#formatAPDU(int, int, int, int, byte[], Integer)}.
+     * The only copy made is the final copy to exact size, so the writer
+     * can be reset and reused without changing returned APDUs.
+     * @param le le or null
+     * @return apdu
+     * @throws IllegalStateException if writer not created with {@link #forAPDU(int, int, int, int)}
+     */
+    public byte[] toAPDU(Integer le) {
+        if (cla < 0) {
+            throw new IllegalStateException("writer not created with forAPDU()");
+        }
+        checkClosed();
+        int lc = size();
+        int apduStart;
+        int end = pos;
+        ensure(3);
+        if (lc == 0) {
+            apduStart = APDU_HEADER - 4;
+            if (le != null) {
+                if (le.intValue() <= 256) {
+                    buf[end++] = (byte) le.intValue();
+                } else {
+                    buf[end++] = 0;
+                    buf[end++] = (byte) (le.intValue() >> 8);
+                    buf[end++] = (byte) le.intValue();
+                }
+            }
+        } else if (lc <= 255) {
+            apduStart = APDU_HEADER - 5;
+            buf[APDU_HEADER - 1] = (byte) lc;
+            if (le != null) {
+                buf[end++] = (byte) le.intValue();
+            }
+        } else {
+            apduStart = 0;
+            buf[APDU_HEADER - 3] = 0;
+            buf[APDU_HEADER - 2] = (byte) (lc >> 8);
+            buf[APDU_HEADER - 1] = (byte) lc;
+            if (le != null) {
+                buf[end++] = (byte) (le.intValue() >> 8);
+                buf[end++] = (byte) le.intValue();
+            }
+        }
+        buf[apduStart] = (byte) cla;
+        buf[apduStart + 1] = (byte) ins;
+        buf[apduStart + 2] = (byte) p1;
+        buf[apduStart + 3] = (byte) p2;
+        return Arrays.copyOfRange(buf, apduStart, end);
+    }
+
+    /**
+     * Transmit APDU built by {@link #toAPDU(Integer)}.
+     * @param card card
+     * @param le le or null
+     * @return response
+     * @throws SmartcardException if error
+     */
+    public APDURes transmit(Smartcard card, Integer le) throws SmartcardException {
+        return card.transmit(toAPDU(le));
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2009-2011 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.java.jless.smartcard;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Enforces deadlines on commands.  Commands run on a worker thread for the
+ * reader while the caller waits at most until the deadline.  On timeout
+ * the card is reset from another thread, the caller gets a
+ * {@link SmartcardTimeoutException} and the reader is quarantined: calls
+ * fail immediately until the quarantine period ends, after which a
+ * {@link ReconnectableSmartcard} is reconnected on the worker, under its
+ * own deadline, before the next command.  Callers are served one at a
+ * time and the deadline only starts once a caller has the card.
+ */
+public class WatchdogSmartcard implements SmartcardDecorator {
+    private static final SmartcardLog log = SmartcardLog.getLog(WatchdogSmartcard.class);
+    private static final ConcurrentMap<String, AtomicLong> TIMEOUTS = new ConcurrentHashMap<String, AtomicLong>();
+
+    private Smartcard card;
+    private long timeoutMillis;
+    private long quarantineMillis = 30000;
+    private ExecutorService executor;
+    private long quarantinedUntil;
+    private boolean reconnect;
+    private SmartcardException quarantined;
+
+    /**
+     * Constructor.
+     * @param card base card
+     * @param timeoutMillis default deadline for each command
+     */
+    public WatchdogSmartcard(Smartcard card, long timeoutMillis) {
+        this.card = card;
+        this.timeoutMillis = timeoutMillis;
+        this.executor = newExecutor();
+        this.quarantined = SmartcardException.stackless("reader quarantined after timeout: " + card.getIFDName(),
+                SmartcardException.Type.CIRCUIT_OPEN);
+    }
+
+    private ExecutorService newExecutor() {
+        final String name = "smartcard-watchdog-" + card.getIFDName();
+        return Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Number of timeouts for each reader since startup.
+     * @return map of IFD name to timeout count
+     */
+    public static Map<String, Long> getTimeoutCounts() {
+        Map<String, Long> result = new HashMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : TIMEOUTS.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().get());
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    /** @return number of timeouts for this reader since startup. */
+    public long getTimeoutCount() {
+        AtomicLong count = TIMEOUTS.get(String.valueOf(card.getIFDName()));
+        return count == null ? 0 : count.get();
+    }
+
+    /** @param quarantineMillis time reader is quarantined after a timeout, default 30s */
+    public void setQuarantineMillis(long quarantineMillis) { this.quarantineMillis = quarantineMillis; }
+
+    /** @return true if reader is quarantined. */
+    public synchronized boolean isQuarantined() { return System.currentTimeMillis() < quarantinedUntil; }
+
+    /** End quarantine early. */
+    public synchronized void release() { quarantinedUntil = 0; }
+
+    // deadline starts once this caller has the card, not while waiting for other callers
+    private synchronized <T> T call(Callable<T> task, long timeoutMillis) throws SmartcardException {
+        return callUntil(task, System.nanoTime() + timeoutMillis * 1000000);
+    }
+
+    // caller holds lock, deadline is System.nanoTime
+    private <T> T callUntil(Callable<T> task, long deadline) throws SmartcardException {
+        if (isQuarantined()) {
+            throw quarantined;
+        }
+        if (reconnect) {
+            // on the worker with its own deadline, since reconnect can hang too
+            if (card instanceof ReconnectableSmartcard) {
+                final ReconnectableSmartcard rc = (ReconnectableSmartcard) card;
+                run(new Callable<Object>() {
+                    public Object call() throws SmartcardException {
+                        rc.reconnect(true);
+                        return null;
+                    }
+                }, System.nanoTime() + timeoutMillis * 1000000);
+            }
+            reconnect = false;
+        }
+        return run(task, deadline);
+    }
+
+    private <T> T run(Callable<T> task, long deadline) throws SmartcardException {
+        Future<T> future = executor.submit(task);
+        try {
+            return future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            timeout();
+            throw new SmartcardTimeoutException("timeout on reader " + card.getIFDName());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.cancel(true);
+            throw new SmartcardException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SmartcardException) {
+                throw (SmartcardException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new SmartcardException(cause);
+        }
+    }
+
+    private void timeout() {
+        String ifdName = String.valueOf(card.getIFDName());
+        AtomicLong count = TIMEOUTS.get(ifdName);
+        if (count == null) {
+            TIMEOUTS.putIfAbsent(ifdName, new AtomicLong());
+            count = TIMEOUTS.get(ifdName);
+        }
+        count.incrementAndGet();
+        quarantinedUntil = System.currentTimeMillis() + quarantineMillis;
+        reconnect = true;
+        log.warn("timeout on reader " + ifdName + ", quarantined for " + quarantineMillis + " ms");
+
+        // worker may be blocked forever, abandon it and reset card from another thread
+        executor.shutdownNow();
+        executor = newExecutor();
+        Thread abort = new Thread("smartcard-abort-" + ifdName) {
+            public void run() {
+                try {
+                    card.disconnect(true);
+                } catch (Throwable t) {
+                    log.debug("error aborting card after timeout", t);
+                }
+            }
+        };
+        abort.setDaemon(true);
+        abort.start();
+    }
+
+    /** {@inheritDoc} */
+    public Smartcard getCard() { return card; }
+
+    /** {@inheritDoc} */
+    public String getIFDName() { return card.getIFDName(); }
+
+    /** {@inheritDoc} */
+    public byte[] getATR() { return card.getATR(); }
+
+    /** {@inheritDoc} */
+    public APDURes transmit(byte[] apdu) throws SmartcardException {
+        return transmit(apdu, timeoutMillis);
+    }
+
+    /**
+     * Transmit with deadline.
+     * @param apdu apdu
+     * @param timeoutMillis deadline for this command
+     * @return response
+     * @throws SmartcardTimeoutException if deadline passed
+     * @throws SmartcardException if error
+     */
+    public APDURes transmit(final byte[] apdu, long timeoutMillis) throws SmartcardException {
+        return call(new Callable<APDURes>() {
+            public APDURes call() throws SmartcardException {
+                return card.transmit(apdu);
+            }
+        }, timeoutMillis);
+    }
+
+    /**
+     * Transmit commands with a single deadline for the whole batch.
+     * Other callers wait until the batch is done.
+     * Stops at the first response that is not 9000 or 61xx.
+     * @param apdus commands
+     * @param timeoutMillis deadline for all commands
+     * @return responses, shorter than apdus if stopped early
+     * @throws SmartcardTimeoutException if deadline passed
+     * @throws SmartcardException if error
+     */
+    public synchronized APDURes[] transmitBatch(List<byte[]> apdus, long timeoutMillis) throws SmartcardException {
+        long deadline = System.nanoTime() + timeoutMillis * 1000000;
+        APDURes[] result = new APDURes[apdus.size()];
+        for (int i = 0; i < result.length; i++) {
+            final byte[] apdu = apdus.get(i);
+            result[i] = callUntil(new Callable<APDURes>() {
+                public APDURes call() throws SmartcardException {
+                    return card.transmit(apdu);
+                }
+            }, deadline);
+            if (result[i].getSW() != 0x9000 && result[i].getSW1() != 0x61) {
+                APDURes[] partial = new APDURes[i + 1];
+                System.arraycopy(result, 0, partial, 0, i + 1);
+                return partial;
+            }
+        }
+        return result;
+    }
+
+    /** {@inheritDoc} */
+    public String transmith(String hexApdu) throws SmartcardException {
+        return transmit(HexCommandCache.decode(hexApdu)).toString();
+    }
+
+    /** {@inheritDoc} */
+    public APDURes transmit(int cla, int ins, int p1, int p2, byte[] data, Integer le) throws SmartcardException {
+        return transmit(SmartcardUtil.formatAPDU(cla, ins, p1, p2, data, le));
+    }
+
+    /** {@inheritDoc} */
+    public void disconnect(final boolean reset) throws SmartcardException {
+        call(new Callable<Object>() {
+            public Object call() throws SmartcardException {
+                card.disconnect(reset);
+                return null;
+            }
+        }, timeoutMillis);
+    }
+}
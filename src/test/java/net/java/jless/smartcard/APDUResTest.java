@@ -0,0 +1,59 @@
+/*
+ * Copyright 2009 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ * THIS SOURCE CODE IS PROVIDED BY JOEL HOCKEY WITH A 30-DAY MONEY BACK
+ * GUARANTEE.  IF THIS CODE DOES NOT MEAN WHAT IT SAYS IT MEANS WITHIN THE
+ * FIRST 30 DAYS, SIMPLY RETURN THIS CODE IN ORIGINAL CONDITION FOR A PARTIAL
+ * REFUND.  IN ADDITION, I WILL REFORMAT THIS CODE USING YOUR PREFERRED
+ * BRACE-POSITIONING AND INDENTATION.  THIS WARRANTY IS VOID IF THE CODE IS
+ * FOUND TO HAVE BEEN COMPILED.  NO FURTHER WARRANTY IS OFFERED.
+ */
+
+package net.java.jless.smartcard;
+
+import junit.framework.TestCase;
+
+/**
+ * Test APDURes hex views and HexCommandCache.
+ */
+public class APDUResTest extends TestCase {
+
+    /** Test lazy hex view matches toString. */
+    public void testToHex() {
+        APDURes res = new APDURes("00ff1a2b9000");
+        CharSequence hex = res.toHex();
+        assertEquals(12, hex.length());
+        assertEquals('f', hex.charAt(2));
+        assertEquals('a', hex.charAt(5));
+        assertEquals("9000", hex.subSequence(8, 12).toString());
+        assertEquals("00ff1a2b9000", hex.toString());
+        assertSame(res.toString(), res.toHex());
+    }
+
+    /** Test cache returns copies and evicts least recently used. */
+    public void testCache() {
+        HexCommandCache cache = new HexCommandCache(2);
+        byte[] a = cache.get("00a40400");
+        assertEquals("00a40400", Hex.b2s(a));
+        // caller modifying its copy does not change the cache
+        a[0] = (byte) 0x80;
+        byte[] b = cache.get("00a40400");
+        assertNotSame(a, b);
+        assertEquals("00a40400", Hex.b2s(b));
+
+        cache.get("00b00000");
+        assertEquals(2, cache.size());
+        // 00a40400 used more recently than 00b00000
+        cache.get("00a40400");
+        cache.get("00b20104");
+        assertEquals(2, cache.size());
+        assertTrue(cache.contains("00a40400"));
+        assertTrue(cache.contains("00b20104"));
+        assertFalse(cache.contains("00b00000"));
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2009 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ * THIS SOURCE CODE IS PROVIDED BY JOEL HOCKEY WITH A 30-DAY MONEY BACK
+ * GUARANTEE.  IF THIS CODE DOES NOT MEAN WHAT IT SAYS IT MEANS WITHIN THE
+ * FIRST 30 DAYS, SIMPLY RETURN THIS CODE IN ORIGINAL CONDITION FOR A PARTIAL
+ * REFUND.  IN ADDITION, I WILL REFORMAT THIS CODE USING YOUR PREFERRED
+ * BRACE-POSITIONING AND INDENTATION.  THIS WARRANTY IS VOID IF THE CODE IS
+ * FOUND TO HAVE BEEN COMPILED.  NO FURTHER WARRANTY IS OFFERED.
+ */
+
+package net.java.jless.smartcard;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Test APDUScript and ScriptRunner.
+ */
+public class APDUScriptTest extends TestCase {
+    private static final String SCRIPT =
+          "# select and put key\n"
+        + "var KEY 4\n"
+        + "00a4040007 a0000000031010   : 9000\n"
+        + "\n"
+        + "80d8000006 8004 ${KEY}         # default sw 9000\n"
+        + "00c0000000                  : 61xx\n"
+        + "00b0000000                  : *\n";
+
+    /** Test compile and bind.  */
+    public void testCompile() {
+        APDUScript script = APDUScript.compile(SCRIPT);
+        assertEquals(4, script.size());
+        assertEquals(Integer.valueOf(4), script.getVars().get("KEY"));
+        assertEquals(3, script.getLineNum(0));
+        assertEquals(5, script.getLineNum(1));
+        assertTrue(script.isExpected(0, 0x9000));
+        assertFalse(script.isExpected(0, 0x6a82));
+        assertTrue(script.isExpected(2, 0x6110));
+        assertFalse(script.isExpected(2, 0x9000));
+        assertTrue(script.isExpected(3, 0x6a82));
+
+        Map<String, byte[]> values = new HashMap<String, byte[]>();
+        values.put("KEY", Hex.s2b("01020304"));
+        byte[][] apdus = script.bind(values);
+        assertEquals("00a4040007a0000000031010", Hex.b2s(apdus[0]));
+        assertEquals("80d8000006800401020304", Hex.b2s(apdus[1]));
+
+        values.put("KEY", Hex.s2b("010203"));
+        try {
+            script.bind(values);
+            fail("expected IllegalArgumentException for wrong var len");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /** Test compile errors.  */
+    public void testCompileErrors() {
+        String[] bad = {"var KEY\n", "00a4 ${KEY}\n", "00a4000\n", "00a40000 : 90\n", "00a40000 : 9g00\n", "00a4\n"};
+        for (String s : bad) {
+            try {
+                APDUScript.compile(s);
+                fail("expected IllegalArgumentException for " + s);
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("line 1: "));
+            }
+        }
+    }
+
+    /** Test run on multiple cards with failure isolation.  */
+    public void testRun() throws Exception {
+        APDUScript script = APDUScript.compile(SCRIPT);
+        Map<String, byte[]> values = new HashMap<String, byte[]>();
+        values.put("KEY", Hex.s2b("01020304"));
+
+        List<TestCard> cards = Arrays.asList(new TestCard("9000"), new TestCard("6a82"), new TestCard("9000"));
+        APDURes[] res = script.run(cards.get(0), values);
+        assertEquals(4, res.length);
+        assertEquals("6110", res[2].toString());
+
+        ScriptRunner.Report report = new ScriptRunner(script).run(cards, values);
+        assertEquals(3, report.getResults().size());
+        assertEquals(2, report.getSuccessCount());
+        assertFalse(report.getResults().get(1).isSuccess());
+        assertEquals("line 3: expected sw 9000/ffff, got 6a82", report.getResults().get(1).getError().getMessage());
+        assertEquals(4, report.getResults().get(2).getResponses().length);
+    }
+
+    /** Card returning 6110 to GET RESPONSE and given sw to everything else. */
+    static class TestCard implements Smartcard {
+        private String sw;
+
+        TestCard(String sw) {
+            this.sw = sw;
+        }
+
+        public String getIFDName() { return "test " + sw; }
+        public byte[] getATR() { return Hex.s2b("3b00"); }
+        public APDURes transmit(byte[] apdu) {
+            return new APDURes((apdu[1] & 0xff) == 0xc0 ? "6110" : sw);
+        }
+        public String transmith(String hexApdu) { return transmit(Hex.s2b(hexApdu)).toString(); }
+        public APDURes transmit(int cla, int ins, int p1, int p2, byte[] data, Integer le) {
+            return transmit(SmartcardUtil.formatAPDU(cla, ins, p1, p2, data, le));
+        }
+        public void disconnect(boolean reset) {}
+    }
+}
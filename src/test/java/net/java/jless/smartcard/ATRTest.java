@@ -0,0 +1,111 @@
+/*
+ * Copyright 2009 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ * THIS SOURCE CODE IS PROVIDED BY JOEL HOCKEY WITH A 30-DAY MONEY BACK
+ * GUARANTEE.  IF THIS CODE DOES NOT MEAN WHAT IT SAYS IT MEANS WITHIN THE
+ * FIRST 30 DAYS, SIMPLY RETURN THIS CODE IN ORIGINAL CONDITION FOR A PARTIAL
+ * REFUND.  IN ADDITION, I WILL REFORMAT THIS CODE USING YOUR PREFERRED
+ * BRACE-POSITIONING AND INDENTATION.  THIS WARRANTY IS VOID IF THE CODE IS
+ * FOUND TO HAVE BEEN COMPILED.  NO FURTHER WARRANTY IS OFFERED.
+ */
+
+package net.java.jless.smartcard;
+
+import junit.framework.TestCase;
+
+/**
+ * Test ATR.
+ */
+public class ATRTest extends TestCase {
+
+    /** Test interface bytes and T=1 parameters.  */
+    public void testInterfaceBytes() {
+        ATR atr = new ATR("3bf81300008131fe454a434f5076323431b7");
+        assertEquals(0x3b, atr.getTS());
+        assertEquals(0xf8, atr.getT0());
+        assertEquals(0x13, atr.getTA(1));
+        assertEquals(0x00, atr.getTB(1));
+        assertEquals(0x00, atr.getTC(1));
+        assertEquals(0x81, atr.getTD(1));
+        assertEquals(-1, atr.getTA(2));
+        assertEquals(0x31, atr.getTD(2));
+        assertEquals(0xfe, atr.getTA(3));
+        assertEquals(0x45, atr.getTB(3));
+        assertEquals(-1, atr.getTD(3));
+        assertEquals(0xb7, atr.getTCK());
+        assertEquals("JCOPv241", new String(atr.getHistoricalBytes()));
+        assertEquals(372, atr.getFi());
+        assertEquals(4, atr.getDi());
+        assertEquals(5000, atr.getFmaxKHz());
+        assertEquals(53763, atr.getBaudRate(5000));
+        assertEquals(254, atr.getIFSC());
+        assertFalse(atr.supportsProtocol(0));
+        assertTrue(atr.supportsProtocol(1));
+        assertFalse(atr.isSpecificMode());
+        assertEquals("T=1", atr.getPreferredProtocol());
+        assertFalse(atr.isExtendedLengthSupported());
+        assertEquals(255, atr.getMaxCommandDataLen());
+    }
+
+    /** Test defaults when no interface bytes.  */
+    public void testDefaults() {
+        ATR atr = new ATR("3b00");
+        assertEquals(372, atr.getFi());
+        assertEquals(1, atr.getDi());
+        assertTrue(atr.supportsProtocol(0));
+        assertEquals("T=0", atr.getPreferredProtocol());
+        assertEquals(-1, atr.getTCK());
+        assertEquals(0, atr.getHistoricalBytes().length);
+    }
+
+    /** Test card capabilities in historical bytes.  */
+    public void testCardCapabilities() {
+        ATR atr = new ATR("3b858001807300 00c037");
+        assertTrue(atr.supportsProtocol(0));
+        assertTrue(atr.supportsProtocol(1));
+        assertEquals("T=1", atr.getPreferredProtocol());
+        assertEquals(0xc0, atr.getCardCapabilities());
+        assertTrue(atr.isCommandChainingSupported());
+        assertTrue(atr.isExtendedLengthSupported());
+        assertEquals(65535, atr.getMaxCommandDataLen());
+        assertEquals(65536, atr.getMaxResponseDataLen());
+        assertEquals(0x37, atr.getTCK());
+    }
+
+    /** Test specific mode forces protocol.  */
+    public void testSpecificMode() {
+        ATR atr = new ATR("3b801001"); // TD1 offers T=0, TA2 specific T=1
+        assertTrue(atr.supportsProtocol(0));
+        assertTrue(atr.isSpecificMode());
+        assertEquals("T=1", atr.getPreferredProtocol());
+    }
+
+    /** Test IFSC is not taken from TA2.  */
+    public void testIFSCWithTA2() {
+        // TD1 T=1 with TA2 specific mode, TD2 T=1 with TA3 IFSC
+        ATR atr = new ATR("3b80918131fe4500");
+        assertEquals(0x81, atr.getTA(2));
+        assertEquals(254, atr.getIFSC());
+        // TA2 present but no TA3
+        atr = new ATR("3b8091810100");
+        assertEquals(0x81, atr.getTA(2));
+        assertEquals(32, atr.getIFSC());
+    }
+
+    /** Test malformed ATR.  */
+    public void testMalformed() {
+        for (String hex : new String[] {"", "3b", "0000", "3bf0", "3b05"}) {
+            try {
+                new ATR(hex);
+                fail("expected IllegalArgumentException for " + hex);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+}
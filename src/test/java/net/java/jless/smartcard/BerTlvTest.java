@@ -0,0 +1,100 @@
+/*
+ * Copyright 2009 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ * THIS SOURCE CODE IS PROVIDED BY JOEL HOCKEY WITH A 30-DAY MONEY BACK
+ * GUARANTEE.  IF THIS CODE DOES NOT MEAN WHAT IT SAYS IT MEANS WITHIN THE
+ * FIRST 30 DAYS, SIMPLY RETURN THIS CODE IN ORIGINAL CONDITION FOR A PARTIAL
+ * REFUND.  IN ADDITION, I WILL REFORMAT THIS CODE USING YOUR PREFERRED
+ * BRACE-POSITIONING AND INDENTATION.  THIS WARRANTY IS VOID IF THE CODE IS
+ * FOUND TO HAVE BEEN COMPILED.  NO FURTHER WARRANTY IS OFFERED.
+ */
+
+package net.java.jless.smartcard;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Test BerTlv.
+ */
+public class BerTlvTest extends TestCase {
+    // FCI with DF name, proprietary template containing label, priority and PDOL
+    private static final String FCI = "6f1f8407a0000000031010a514500456495341870101"
+        + "9f38069f1a029f3501" + "0000";
+
+    /** Test parse and find.  */
+    public void testFind() {
+        APDURes res = new APDURes(FCI + "9000");
+        BerTlv fci = BerTlv.parse(res);
+        assertSame(res.getBytes(), fci.getBuf());
+        assertEquals(0x6f, fci.getTag());
+        assertTrue(fci.isConstructed());
+        assertEquals(0x1f, fci.getLength());
+        assertEquals(2, fci.getValueOffset());
+
+        assertEquals("a0000000031010", Hex.b2s(fci.find(0x84).getValue()));
+        assertEquals("VISA", new String(fci.find(0xa5, 0x50).getValue()));
+        assertEquals(1, fci.find(0xa5, 0x87).getInt());
+        BerTlv pdol = fci.find(0xa5, 0x9f38);
+        assertEquals(0x9f38, pdol.getTag());
+        assertFalse(pdol.isConstructed());
+        assertEquals("9f1a029f3501", Hex.b2s(pdol.getValue()));
+        assertEquals(6, pdol.getValueBuffer().remaining());
+        assertNull(fci.find(0x88));
+        assertNull(fci.find(0x84, 0x50)); // 84 is primitive
+        assertNull(fci.find(0xa5, 0x9f39));
+
+        BerTlv viaStatic = BerTlv.find(res.getBytes(), 0, res.getBytes().length - 2, 0x6f, 0xa5, 0x9f38);
+        assertEquals(pdol.getOffset(), viaStatic.getOffset());
+
+        List<Integer> tags = new ArrayList<Integer>();
+        for (BerTlv child : fci.find(0xa5).children()) {
+            tags.add(child.getTag());
+        }
+        assertEquals("[80, 135, 40760]", tags.toString());
+    }
+
+    /** Test multi-byte lengths, padding and ByteBuffer.  */
+    public void testLengths() {
+        byte[] value = Buf.random(300);
+        byte[] buf = Buf.cat(Hex.s2b("00005f2d820" + "12c"), value, Hex.s2b("0000" + "5f20" + "8105"), Buf.random(5));
+        List<BerTlv> tlvs = new ArrayList<BerTlv>();
+        for (BerTlv tlv : BerTlv.iterate(buf, 0, buf.length)) {
+            tlvs.add(tlv);
+        }
+        assertEquals(2, tlvs.size());
+        assertEquals(0x5f2d, tlvs.get(0).getTag());
+        assertEquals(300, tlvs.get(0).getLength());
+        assertEquals(Hex.b2s(value), Hex.b2s(tlvs.get(0).getValue()));
+        assertEquals(0x5f20, tlvs.get(1).getTag());
+        assertEquals(5, tlvs.get(1).getLength());
+
+        ByteBuffer bb = ByteBuffer.wrap(buf);
+        bb.position(2);
+        assertEquals(0x5f2d, BerTlv.parse(bb).getTag());
+        assertEquals(2, bb.position());
+        ByteBuffer direct = ByteBuffer.allocateDirect(buf.length);
+        direct.put(buf).position(2);
+        assertEquals(300, BerTlv.parse(direct).getLength());
+    }
+
+    /** Test malformed.  */
+    public void testMalformed() {
+        for (String hex : new String[] {"", "9f", "84", "8402", "848101", "8480", "84850000000001", "9f9f9f9f0100"}) {
+            try {
+                BerTlv.parse(Hex.s2b(hex));
+                fail("expected IllegalArgumentException for " + hex);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+}
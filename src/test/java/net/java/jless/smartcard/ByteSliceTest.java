@@ -0,0 +1,75 @@
+/*
+ * Copyright 2009 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ * THIS SOURCE CODE IS PROVIDED BY JOEL HOCKEY WITH A 30-DAY MONEY BACK
+ * GUARANTEE.  IF THIS CODE DOES NOT MEAN WHAT IT SAYS IT MEANS WITHIN THE
+ * FIRST 30 DAYS, SIMPLY RETURN THIS CODE IN ORIGINAL CONDITION FOR A PARTIAL
+ * REFUND.  IN ADDITION, I WILL REFORMAT THIS CODE USING YOUR PREFERRED
+ * BRACE-POSITIONING AND INDENTATION.  THIS WARRANTY IS VOID IF THE CODE IS
+ * FOUND TO HAVE BEEN COMPILED.  NO FURTHER WARRANTY IS OFFERED.
+ */
+
+package net.java.jless.smartcard;
+
+import junit.framework.TestCase;
+
+/**
+ * Test ByteSlice and Buf encoders.
+ */
+public class ByteSliceTest extends TestCase {
+
+    /** Test slices match Buf.substring for all start and len combinations.  */
+    public void testMatchesSubstring() {
+        byte[] src = Hex.s2b("0102030405");
+        for (int start = -8; start <= 8; start++) {
+            for (int len = 0; len <= 8; len++) {
+                String expected = Hex.b2s(Buf.substring(src, start, len));
+                ByteSlice slice = ByteSlice.of(src, start, len);
+                assertEquals("start " + start + ", len " + len, expected, slice.toString());
+                assertEquals(len, slice.length());
+                for (int i = 0; i < len; i++) {
+                    assertEquals(expected.substring(i * 2, i * 2 + 2), Hex.b2s(new byte[] {slice.get(i)}));
+                }
+                // slice of padded slice is same as substring of substring
+                for (int s2 = -len; s2 < len; s2++) {
+                    String nested = Hex.b2s(Buf.substring(Hex.s2b(expected), s2, 3));
+                    assertEquals("start " + start + ", len " + len + ", s2 " + s2, nested, slice.slice(s2, 3).toString());
+                }
+            }
+        }
+        assertSame(src, ByteSlice.of(src).toByteArray());
+        assertEquals(5, ByteSlice.of(src).get(-1));
+    }
+
+    /** Test cat.  */
+    public void testCat() {
+        byte[] src = Hex.s2b("0102030405");
+        byte[] result = ByteSlice.cat(ByteSlice.of(src, 0, 2), null, ByteSlice.of(src, -1, 3), ByteSlice.of(src, 3));
+        assertEquals("010200000504 05", Hex.b2s(result).replaceAll("(.{12})", "$1 "));
+        assertEquals(9, ByteSlice.length(ByteSlice.of(src, 0, 2), ByteSlice.of(src, 1, 7)));
+    }
+
+    /** Test bulk encoders and decoders.  */
+    public void testEncoders() {
+        byte[] buf = new byte[13];
+        int pos = Buf.s2b(buf, 1, (short) 0x0102, (short) 0xfffe);
+        pos = Buf.i2b(buf, pos, 0x01020304, 0xfffefdfc);
+        assertEquals(13, pos);
+        assertEquals("000102fffe01020304fffefdfc", Hex.b2s(buf));
+        assertEquals("0102fffe", Hex.b2s(Buf.s2b((short) 0x0102, (short) 0xfffe)));
+
+        short[] sa = new short[2];
+        assertEquals(5, Buf.b2s(buf, 1, sa, 0, 2));
+        assertEquals((short) 0x0102, sa[0]);
+        assertEquals((short) 0xfffe, sa[1]);
+        int[] ia = Buf.b2i(Buf.substring(buf, 5));
+        assertEquals(2, ia.length);
+        assertEquals(0x01020304, ia[0]);
+        assertEquals(0xfffefdfc, ia[1]);
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2009 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ * THIS SOURCE CODE IS PROVIDED BY JOEL HOCKEY WITH A 30-DAY MONEY BACK
+ * GUARANTEE.  IF THIS CODE DOES NOT MEAN WHAT IT SAYS IT MEANS WITHIN THE
+ * FIRST 30 DAYS, SIMPLY RETURN THIS CODE IN ORIGINAL CONDITION FOR A PARTIAL
+ * REFUND.  IN ADDITION, I WILL REFORMAT THIS CODE USING YOUR PREFERRED
+ * BRACE-POSITIONING AND INDENTATION.  THIS WARRANTY IS VOID IF THE CODE IS
+ * FOUND TO HAVE BEEN COMPILED.  NO FURTHER WARRANTY IS OFFERED.
+ */
+
+package net.java.jless.smartcard;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Test CapLoader.
+ */
+public class CapLoaderTest extends TestCase {
+    private static final String AID = "a000000151";
+    // Header: tag, size, magic, versions, flags, package version, AID
+    private static final String HEADER = "01000f" + "decaffed" + "0102" + "00" + "0100" + "05" + AID;
+    private File file;
+
+    /** Records commands, all return 9000. */
+    static class RecordingCard implements Smartcard {
+        List<byte[]> sent = new ArrayList<byte[]>();
+
+        public String getIFDName() { return "recording"; }
+        public byte[] getATR() { return Hex.s2b("3b00"); }
+        public void disconnect(boolean reset) { }
+        public String transmith(String hexApdu) throws SmartcardException {
+            return transmit(Hex.s2b(hexApdu)).toString();
+        }
+        public APDURes transmit(int cla, int ins, int p1, int p2, byte[] data, Integer le) throws SmartcardException {
+            return transmit(SmartcardUtil.formatAPDU(cla, ins, p1, p2, data, le));
+        }
+        public synchronized APDURes transmit(byte[] apdu) {
+            sent.add(apdu);
+            return new APDURes("9000");
+        }
+    }
+
+    protected void setUp() throws IOException {
+        file = File.createTempFile("test", ".cap");
+    }
+
+    protected void tearDown() {
+        file.delete();
+    }
+
+    private void writeCap(String... entries) throws IOException {
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file));
+        try {
+            for (int i = 0; i < entries.length; i += 2) {
+                out.putNextEntry(new ZipEntry("com/example/javacard/" + entries[i] + ".cap"));
+                out.write(Hex.s2b(entries[i + 1]));
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /** Test components are loaded in order with C4 header and last block bit. */
+    public void testLoad() throws Exception {
+        String method = Hex.b2s(new byte[300]).replace("00", "07");
+        // zip order differs from load order, Descriptor is skipped
+        writeCap("Method", method, "Descriptor", "0b0001ff", "Header", HEADER, "Directory", "020002aabb");
+        CapLoader loader = new CapLoader(file);
+        assertEquals(AID, Hex.b2s(loader.getPackageAID()));
+        int len = (HEADER + "020002aabb" + method).length() / 2;
+        assertEquals(4 + len, loader.getLoadFileSize());
+
+        loader.setBlockSize(100);
+        RecordingCard card = new RecordingCard();
+        loader.load(card, null);
+        assertEquals(5, card.sent.size());
+        assertEquals("80e60200" + "0a05" + AID + "00" + "000000" + "00", Hex.b2s(card.sent.get(0)));
+
+        StringBuilder data = new StringBuilder();
+        for (int i = 1; i < card.sent.size(); i++) {
+            byte[] apdu = card.sent.get(i);
+            boolean last = i == card.sent.size() - 1;
+            assertEquals("80e8", Hex.b2s(apdu, 0, 2));
+            assertEquals(last ? 0x80 : 0x00, apdu[2] & 0xff);
+            assertEquals(i - 1, apdu[3]);
+            assertEquals(apdu.length - 5, apdu[4] & 0xff);
+            assertEquals(last ? 4 + len - 300 : 100, apdu.length - 5);
+            data.append(Hex.b2s(apdu, 5, apdu.length - 5));
+        }
+        assertEquals("c48201" + Hex.b2s(new byte[] {(byte) (len - 256)}) + HEADER + "020002aabb" + method,
+                data.toString());
+    }
+
+    /** Test block size from reader profile and secure channel in a stack of decorators. */
+    public void testBlockSize() throws Exception {
+        writeCap("Header", HEADER);
+        CapLoader loader = new CapLoader(file);
+        RecordingCard card = new RecordingCard();
+        assertEquals(CapLoader.DEFAULT_BLOCK_SIZE, loader.getBlockSize(card));
+
+        byte[] key = new byte[16];
+        Smartcard stack = new RetryingSmartcard(new SCP03Smartcard(card, key, key), new RetryPolicy());
+        // channel not open yet, MAC only overhead
+        assertEquals(247, loader.getBlockSize(stack));
+
+        File profiles = File.createTempFile("readers", ".properties");
+        try {
+            ReaderProfileCache cache = new ReaderProfileCache(profiles);
+            cache.put(new ReaderProfile("recording", "3b00", 128, 256, 100));
+            loader.setProfileCache(cache);
+            assertEquals(111, loader.getBlockSize(card));
+            assertEquals(120, loader.getBlockSize(stack));
+        } finally {
+            profiles.delete();
+            new File(profiles.getPath() + ".lock").delete();
+        }
+    }
+}
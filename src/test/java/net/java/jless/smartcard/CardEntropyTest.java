@@ -0,0 +1,100 @@
+/*
+ * Copyright 2009 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ * THIS SOURCE CODE IS PROVIDED BY JOEL HOCKEY WITH A 30-DAY MONEY BACK
+ * GUARANTEE.  IF THIS CODE DOES NOT MEAN WHAT IT SAYS IT MEANS WITHIN THE
+ * FIRST 30 DAYS, SIMPLY RETURN THIS CODE IN ORIGINAL CONDITION FOR A PARTIAL
+ * REFUND.  IN ADDITION, I WILL REFORMAT THIS CODE USING YOUR PREFERRED
+ * BRACE-POSITIONING AND INDENTATION.  THIS WARRANTY IS VOID IF THE CODE IS
+ * FOUND TO HAVE BEEN COMPILED.  NO FURTHER WARRANTY IS OFFERED.
+ */
+
+package net.java.jless.smartcard;
+
+import junit.framework.TestCase;
+
+/**
+ * Test CardEntropy.
+ */
+public class CardEntropyTest extends TestCase {
+
+    /** GET CHALLENGE returns bytes 1, 2, ... 255, 1, ... */
+    static class CountingCard implements Smartcard {
+        private int next;
+
+        public String getIFDName() { return "counting"; }
+        public byte[] getATR() { return Hex.s2b("3b00"); }
+        public void disconnect(boolean reset) { }
+        public String transmith(String hexApdu) throws SmartcardException {
+            return transmit(Hex.s2b(hexApdu)).toString();
+        }
+        public APDURes transmit(int cla, int ins, int p1, int p2, byte[] data, Integer le) throws SmartcardException {
+            return transmit(SmartcardUtil.formatAPDU(cla, ins, p1, p2, data, le));
+        }
+        public synchronized APDURes transmit(byte[] apdu) {
+            byte[] res = new byte[(apdu[4] & 0xff) + 2];
+            for (int i = 0; i < res.length - 2; i++) {
+                res[i] = (byte) (next++ % 255 + 1);
+            }
+            res[res.length - 2] = (byte) 0x90;
+            return new APDURes(res);
+        }
+    }
+
+    /** Test request larger than batch spans batches and is never padded. */
+    public void testTakeMoreThanBatch() throws Exception {
+        CardEntropy entropy = new CardEntropy();
+        entropy.setBatchSize(16);
+        entropy.start(new CountingCard());
+        try {
+            byte[] first = null;
+            for (int i = 0; i < 200 && first == null; i++) {
+                first = entropy.takeCardBytes(10);
+                Thread.sleep(10);
+            }
+            assertNotNull(first);
+            byte[] bytes = null;
+            for (int i = 0; i < 200 && bytes == null; i++) {
+                bytes = entropy.takeCardBytes(40);
+                Thread.sleep(10);
+            }
+            assertNotNull(bytes);
+            assertEquals(40, bytes.length);
+            for (int i = 0; i < bytes.length; i++) {
+                assertEquals(11 + i, bytes[i] & 0xff);
+            }
+            // more than can ever be queued is not available, not padded
+            assertNull(entropy.takeCardBytes(1000));
+        } finally {
+            entropy.stop();
+        }
+    }
+
+    /** Test seed waits for card bytes, else uses platform seed. */
+    public void testGenerateSeed() throws Exception {
+        CardEntropy entropy = new CardEntropy();
+        entropy.setBatchSize(16);
+        entropy.setSeedTimeoutMillis(5000);
+        // not started, platform seed
+        assertEquals(20, entropy.generateSeed(20).length);
+
+        entropy.start(new CountingCard());
+        try {
+            byte[] seed = entropy.generateSeed(20);
+            for (int i = 0; i < seed.length; i++) {
+                assertEquals(1 + i, seed[i] & 0xff);
+            }
+            // more than can be queued times out
+            entropy.setSeedTimeoutMillis(50);
+            assertEquals(1000, entropy.generateSeed(1000).length);
+            assertNull(entropy.takeCardBytes(1000, 50));
+        } finally {
+            entropy.stop();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2009 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ * THIS SOURCE CODE IS PROVIDED BY JOEL HOCKEY WITH A 30-DAY MONEY BACK
+ * GUARANTEE.  IF THIS CODE DOES NOT MEAN WHAT IT SAYS IT MEANS WITHIN THE
+ * FIRST 30 DAYS, SIMPLY RETURN THIS CODE IN ORIGINAL CONDITION FOR A PARTIAL
+ * REFUND.  IN ADDITION, I WILL REFORMAT THIS CODE USING YOUR PREFERRED
+ * BRACE-POSITIONING AND INDENTATION.  THIS WARRANTY IS VOID IF THE CODE IS
+ * FOUND TO HAVE BEEN COMPILED.  NO FURTHER WARRANTY IS OFFERED.
+ */
+
+package net.java.jless.smartcard;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Test CardImage and ImageSmartcard.
+ */
+public class CardImageTest extends TestCase {
+    private File dir;
+
+    /** Card with MF, transparent EFs 2f00 and 2f01 (read protected) and record EF 2f02. */
+    static class FileCard implements Smartcard {
+        Map<String, String> fcps = new HashMap<String, String>();
+        Map<String, byte[]> contents = new HashMap<String, byte[]>();
+        byte[][] records = {Hex.s2b("0102"), Hex.s2b("030405")};
+        String current;
+        int reads;
+
+        FileCard() {
+            fcps.put("3f00", "6203820138");
+            fcps.put("3f002f01", "62078201018002000a");
+            fcps.put("3f002f02", "6203820102");
+            setEF("3f002f00", Hex.s2b("1122334455"));
+        }
+
+        void setEF(String path, byte[] content) {
+            fcps.put(path, "62078201018002" + Hex.b2s(new byte[] {0, (byte) content.length}));
+            contents.put(path, content);
+        }
+
+        public String getIFDName() { return "files"; }
+        public byte[] getATR() { return Hex.s2b("3b00"); }
+        public void disconnect(boolean reset) { }
+        public String transmith(String hexApdu) throws SmartcardException {
+            return transmit(Hex.s2b(hexApdu)).toString();
+        }
+        public APDURes transmit(int cla, int ins, int p1, int p2, byte[] data, Integer le) throws SmartcardException {
+            return transmit(SmartcardUtil.formatAPDU(cla, ins, p1, p2, data, le));
+        }
+        public APDURes transmit(byte[] apdu) {
+            int p1 = apdu[2] & 0xff;
+            int le = apdu[apdu.length - 1] == 0 ? 256 : apdu[apdu.length - 1] & 0xff;
+            switch (apdu[1] & 0xff) {
+                case 0xa4:
+                    String fids = Hex.b2s(apdu, 5, apdu[4]);
+                    String path = p1 == 0x08 ? "3f00" + fids : fids;
+                    if (!fcps.containsKey(path)) {
+                        return new APDURes("6a82");
+                    }
+                    current = path;
+                    return new APDURes(fcps.get(path) + "9000");
+                case 0xb0:
+                    reads++;
+                    if (current.equals("3f002f01")) {
+                        return new APDURes("6982");
+                    }
+                    byte[] content = contents.get(current);
+                    int offset = (p1 << 8) | (apdu[3] & 0xff);
+                    if (offset > content.length) {
+                        return new APDURes("6b00");
+                    }
+                    int n = Math.min(le, content.length - offset);
+                    return new APDURes(Buf.cat(Buf.substring(content, offset, n), Hex.s2b(n < le ? "6282" : "9000")));
+                case 0xb2:
+                    reads++;
+                    return p1 > records.length ? new APDURes("6a83")
+                            : new APDURes(Buf.cat(records[p1 - 1], Hex.s2b("9000")));
+                default:
+                    return new APDURes("6d00");
+            }
+        }
+    }
+
+    protected void setUp() throws IOException {
+        dir = File.createTempFile("images", "");
+        dir.delete();
+        dir.mkdir();
+    }
+
+    protected void tearDown() {
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    /** Test snapshot is answered by ImageSmartcard after reopening. */
+    public void testRoundTrip() throws Exception {
+        CardImage image = CardImage.open(dir, "8944000000000000001");
+        int read = image.snapshot(new FileCard(), "3f002f00", "3f002f01", "3f002f02", "3f002f09");
+        assertEquals(4, read);
+
+        image = CardImage.open(dir, "8944000000000000001");
+        assertEquals(4, image.getPaths().size());
+        assertFalse(image.contains("3f002f09"));
+        Smartcard card = new ImageSmartcard(image);
+        assertEquals("3b00", Hex.b2s(card.getATR()));
+
+        assertEquals("6207820101800200059000", card.transmith("00a40804022f00"));
+        assertEquals("11223344559000", card.transmith("00b0000005"));
+        // end of file
+        assertEquals("3344556282", card.transmith("00b000020a"));
+        // offset outside EF
+        assertEquals("6b00", card.transmith("00b0000600"));
+
+        // read protected EF keeps sw
+        assertEquals("9000", card.transmith("00a4080c022f01"));
+        assertEquals("6982", card.transmith("00b0000000"));
+
+        assertEquals("9000", card.transmith("00a4080c022f02"));
+        assertEquals("0304059000", card.transmith("00b2020400"));
+        assertEquals("6a83", card.transmith("00b2030400"));
+
+        assertEquals("6a82", card.transmith("00a40804022f09"));
+        assertEquals("6d00", card.transmith("00d6000001ff"));
+    }
+
+    /** Test refresh reads only changed files and writes a new version. */
+    public void testRefresh() throws Exception {
+        FileCard files = new FileCard();
+        CardImage image = CardImage.open(dir, "card");
+        image.snapshot(files, "3f002f00", "3f002f01", "3f002f02");
+        File first = image.getFile();
+        Smartcard card = new ImageSmartcard(image);
+        assertEquals("9000", card.transmith("00a4080c022f00"));
+        assertEquals("11223344559000", card.transmith("00b0000005"));
+
+        files.setEF("3f002f00", Hex.s2b("66778899aabbcc"));
+        files.reads = 0;
+        assertEquals(1, image.snapshot(files));
+        assertEquals(1, files.reads);
+        assertFalse(first.equals(image.getFile()));
+        assertFalse(first.exists());
+        assertEquals(1, dir.listFiles().length);
+
+        assertEquals("66778899aabbcc9000", card.transmith("00b0000007"));
+        assertEquals("9000", card.transmith("00a4080c022f01"));
+        assertEquals("6982", card.transmith("00b0000000"));
+        assertEquals("0102", Hex.b2s(CardImage.open(dir, "card").getRecord("3f002f02", 1)));
+    }
+}
@@ -16,6 +16,7 @@
 
 package net.java.jless.smartcard;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import net.java.jless.smartcard.ChainingSmartcard;
@@ -81,6 +82,110 @@ public class ChainingSmartcardTest extends TestCase {
         }
     }
 
+    /** Test extended length transport modes.  */
+    public void testMode() throws Exception {
+        String apdu = "00da0000000200" + Hex.b2s(new byte[512]);
+
+        // CHAIN is default
+        RecordingCard card = new RecordingCard("3b858001807300 00c037", "9000");
+        ChainingSmartcard chaining = new ChainingSmartcard(card);
+        chaining.transmith(apdu);
+        assertEquals(3, card.sent.size());
+
+        // AUTO with ATR indicating extended length
+        card = new RecordingCard("3b858001807300 00c037", "9000");
+        chaining = new ChainingSmartcard(card);
+        chaining.setMode(ChainingSmartcard.Mode.AUTO);
+        assertEquals("9000", chaining.transmith(apdu));
+        assertEquals(1, card.sent.size());
+        assertEquals(apdu, card.sent.get(0));
+
+        // AUTO with T=0 only
+        card = new RecordingCard("3b00", "9000");
+        chaining = new ChainingSmartcard(card);
+        chaining.setMode(ChainingSmartcard.Mode.AUTO);
+        chaining.transmith(apdu);
+        assertEquals(3, card.sent.size());
+        assertEquals(Boolean.FALSE, chaining.isExtendedSupported());
+
+        // AUTO probe rejected, then chained
+        card = new RecordingCard("3b80800101", "6700", "9000");
+        chaining = new ChainingSmartcard(card);
+        chaining.setMode(ChainingSmartcard.Mode.AUTO);
+        assertEquals("9000", chaining.transmith(apdu));
+        assertEquals(4, card.sent.size());
+        assertEquals(Hex.b2s(ChainingSmartcard.PROBE), card.sent.get(0));
+        assertEquals(Boolean.FALSE, chaining.isExtendedSupported());
+
+        // AUTO probe accepted, caller's apdu sent once
+        card = new RecordingCard("3b80800101", "6986", "9000");
+        chaining = new ChainingSmartcard(card);
+        chaining.setMode(ChainingSmartcard.Mode.AUTO);
+        chaining.transmith(apdu);
+        chaining.transmith(apdu);
+        assertEquals(3, card.sent.size());
+        assertEquals(Hex.b2s(ChainingSmartcard.PROBE), card.sent.get(0));
+        assertEquals(apdu, card.sent.get(1));
+        assertEquals(Boolean.TRUE, chaining.isExtendedSupported());
+    }
+
+    /** Test a failed probe does not send the caller's apdu.  */
+    public void testProbeFails() throws Exception {
+        String apdu = "00da0000000200" + Hex.b2s(new byte[512]);
+        final boolean[] fail = {true};
+        RecordingCard card = new RecordingCard("3b80800101", "9000") {
+            public APDURes transmit(byte[] apdu) throws SmartcardException {
+                if (fail[0]) {
+                    sent.add(Hex.b2s(apdu));
+                    throw new SmartcardException("transport", SmartcardException.Type.TRANSPORT);
+                }
+                return super.transmit(apdu);
+            }
+        };
+        ChainingSmartcard chaining = new ChainingSmartcard(card);
+        chaining.setMode(ChainingSmartcard.Mode.AUTO);
+        try {
+            chaining.transmith(apdu);
+            fail("expected exception");
+        } catch (SmartcardException e) {
+            assertEquals(SmartcardException.Type.TRANSPORT, e.getType());
+        }
+        assertEquals(1, card.sent.size());
+        assertEquals(Hex.b2s(ChainingSmartcard.PROBE), card.sent.get(0));
+        assertNull(chaining.isExtendedSupported());
+
+        // detects again on next call
+        fail[0] = false;
+        card.sent.clear();
+        chaining.transmith(apdu);
+        assertEquals(2, card.sent.size());
+        assertEquals(apdu, card.sent.get(1));
+    }
+
+    /** Card that records apdus and returns responses in order, repeating the last. */
+    static class RecordingCard implements Smartcard {
+        List<String> sent = new ArrayList<String>();
+        private String atr;
+        private String[] responses;
+
+        RecordingCard(String atr, String... responses) {
+            this.atr = atr;
+            this.responses = responses;
+        }
+
+        public String getIFDName() { return "test"; }
+        public byte[] getATR() { return Hex.s2b(atr); }
+        public APDURes transmit(byte[] apdu) throws SmartcardException {
+            sent.add(Hex.b2s(apdu));
+            return new APDURes(responses[Math.min(sent.size(), responses.length) - 1]);
+        }
+        public String transmith(String hexApdu) throws SmartcardException { return transmit(Hex.s2b(hexApdu)).toString(); }
+        public APDURes transmit(int cla, int ins, int p1, int p2, byte[] data, Integer le) throws SmartcardException {
+            return transmit(SmartcardUtil.formatAPDU(cla, ins, p1, p2, data, le));
+        }
+        public void disconnect(boolean reset) {}
+    }
+
     private void chain(int maxChainPieces, int maxDataLen) {
         String header4 = "00000000";
         String extle = "0000";
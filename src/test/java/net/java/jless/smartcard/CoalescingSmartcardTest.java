@@ -0,0 +1,127 @@
+/*
+ * Copyright 2009 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ * THIS SOURCE CODE IS PROVIDED BY JOEL HOCKEY WITH A 30-DAY MONEY BACK
+ * GUARANTEE.  IF THIS CODE DOES NOT MEAN WHAT IT SAYS IT MEANS WITHIN THE
+ * FIRST 30 DAYS, SIMPLY RETURN THIS CODE IN ORIGINAL CONDITION FOR A PARTIAL
+ * REFUND.  IN ADDITION, I WILL REFORMAT THIS CODE USING YOUR PREFERRED
+ * BRACE-POSITIONING AND INDENTATION.  THIS WARRANTY IS VOID IF THE CODE IS
+ * FOUND TO HAVE BEEN COMPILED.  NO FURTHER WARRANTY IS OFFERED.
+ */
+
+package net.java.jless.smartcard;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Test CoalescingSmartcard.
+ */
+public class CoalescingSmartcardTest extends TestCase {
+    private ExecutorService exec;
+
+    /** Blocks every command until released, echoes INS and P1 with 9000. */
+    static class GateCard implements Smartcard {
+        CountDownLatch gate = new CountDownLatch(1);
+        AtomicInteger arrived = new AtomicInteger();
+
+        public String getIFDName() { return "gate"; }
+        public byte[] getATR() { return Hex.s2b("3b00"); }
+        public void disconnect(boolean reset) { }
+        public String transmith(String hexApdu) throws SmartcardException {
+            return transmit(Hex.s2b(hexApdu)).toString();
+        }
+        public APDURes transmit(int cla, int ins, int p1, int p2, byte[] data, Integer le) throws SmartcardException {
+            return transmit(SmartcardUtil.formatAPDU(cla, ins, p1, p2, data, le));
+        }
+        public APDURes transmit(byte[] apdu) throws SmartcardException {
+            arrived.incrementAndGet();
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                throw new SmartcardException(e);
+            }
+            return new APDURes(new byte[] {apdu[1], apdu[2], (byte) 0x90, 0});
+        }
+    }
+
+    protected void setUp() {
+        exec = Executors.newCachedThreadPool();
+    }
+
+    protected void tearDown() {
+        exec.shutdownNow();
+    }
+
+    private Future<APDURes> send(final Smartcard card, final byte[] apdu) {
+        return exec.submit(new Callable<APDURes>() {
+            public APDURes call() throws SmartcardException {
+                return card.transmit(apdu);
+            }
+        });
+    }
+
+    private static void waitFor(AtomicInteger value, int expected) throws InterruptedException {
+        for (int i = 0; i < 500 && value.get() < expected; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, value.get());
+    }
+
+    /** Test identical reads share one command, even if the caller reuses its buffer. */
+    public void testCoalesce() throws Exception {
+        GateCard gate = new GateCard();
+        CoalescingSmartcard card = new CoalescingSmartcard(gate);
+        byte[] buf = Hex.s2b("00b0010000");
+        Future<APDURes> first = send(card, buf);
+        waitFor(gate.arrived, 1);
+
+        // caller reuses buffer while command is in flight
+        buf[2] = 2;
+        Future<APDURes> second = send(card, Hex.s2b("00b0010000"));
+        for (int i = 0; i < 500 && card.getCoalescedCount() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, card.getCoalescedCount());
+        gate.gate.countDown();
+
+        assertEquals("b0019000", first.get(5, TimeUnit.SECONDS).toString());
+        assertSame(first.get(), second.get(5, TimeUnit.SECONDS));
+        assertEquals(1, gate.arrived.get());
+
+        // next read after completion is sent again
+        card.transmit(Hex.s2b("00b0010000"));
+        assertEquals(2, gate.arrived.get());
+    }
+
+    /** Test non-idempotent commands are always sent. */
+    public void testPassThrough() throws Exception {
+        GateCard gate = new GateCard();
+        CoalescingSmartcard card = new CoalescingSmartcard(gate);
+        Future<APDURes> first = send(card, Hex.s2b("00d6000001ff"));
+        Future<APDURes> second = send(card, Hex.s2b("00d6000001ff"));
+        // secure messaging reads are also sent as-is
+        Future<APDURes> third = send(card, Hex.s2b("0cb0000000"));
+        Future<APDURes> fourth = send(card, Hex.s2b("0cb0000000"));
+        waitFor(gate.arrived, 4);
+        gate.gate.countDown();
+
+        assertEquals("d6009000", first.get(5, TimeUnit.SECONDS).toString());
+        assertEquals("d6009000", second.get(5, TimeUnit.SECONDS).toString());
+        assertEquals("b0009000", third.get(5, TimeUnit.SECONDS).toString());
+        assertEquals("b0009000", fourth.get(5, TimeUnit.SECONDS).toString());
+        assertEquals(0, card.getCoalescedCount());
+    }
+}
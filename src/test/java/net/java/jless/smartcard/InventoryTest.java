@@ -0,0 +1,121 @@
+/*
+ * Copyright 2009 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ * THIS SOURCE CODE IS PROVIDED BY JOEL HOCKEY WITH A 30-DAY MONEY BACK
+ * GUARANTEE.  IF THIS CODE DOES NOT MEAN WHAT IT SAYS IT MEANS WITHIN THE
+ * FIRST 30 DAYS, SIMPLY RETURN THIS CODE IN ORIGINAL CONDITION FOR A PARTIAL
+ * REFUND.  IN ADDITION, I WILL REFORMAT THIS CODE USING YOUR PREFERRED
+ * BRACE-POSITIONING AND INDENTATION.  THIS WARRANTY IS VOID IF THE CODE IS
+ * FOUND TO HAVE BEEN COMPILED.  NO FURTHER WARRANTY IS OFFERED.
+ */
+
+package net.java.jless.smartcard;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import javax.smartcardio.ATR;
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+
+import junit.framework.TestCase;
+
+/**
+ * Test Inventory with fake terminals.
+ */
+public class InventoryTest extends TestCase {
+    private CountDownLatch release = new CountDownLatch(1);
+
+    /** Terminal with a T=0 card, or one whose connect hangs. */
+    class FakeTerminal extends CardTerminal {
+        private String name;
+        private boolean hang;
+
+        FakeTerminal(String name, boolean hang) {
+            this.name = name;
+            this.hang = hang;
+        }
+
+        public String getName() { return name; }
+        public boolean isCardPresent() { return true; }
+        public boolean waitForCardPresent(long timeout) { return true; }
+        public boolean waitForCardAbsent(long timeout) { return false; }
+        public Card connect(String protocol) throws CardException {
+            if (hang) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    // interrupt does not free a real PC/SC call, keep waiting
+                    try {
+                        release.await();
+                    } catch (InterruptedException e2) {
+                        throw new CardException(e2);
+                    }
+                }
+            }
+            return new Card() {
+                public ATR getATR() { return new ATR(Hex.s2b("3b00")); }
+                public String getProtocol() { return "T=0"; }
+                public CardChannel getBasicChannel() { throw new UnsupportedOperationException(); }
+                public CardChannel openLogicalChannel() { throw new UnsupportedOperationException(); }
+                public void beginExclusive() { }
+                public void endExclusive() { }
+                public byte[] transmitControlCommand(int code, byte[] command) { return new byte[0]; }
+                public void disconnect(boolean reset) { }
+            };
+        }
+    }
+
+    protected void tearDown() {
+        release.countDown();
+    }
+
+    private Inventory inventory(int maxThreads) {
+        Inventory inventory = new Inventory();
+        inventory.setTimeoutMillis(300);
+        inventory.setMaxThreads(maxThreads);
+        inventory.setProbe(new Inventory.Probe() {
+            public void probe(Smartcard card, Map<String, String> values) {
+                values.put("ifd", card.getIFDName());
+            }
+        });
+        return inventory;
+    }
+
+    /** Test good card reported and hung card timed out. */
+    public void testHangingReader() throws Exception {
+        List<CardTerminal> terminals = Arrays.<CardTerminal>asList(
+                new FakeTerminal("good", false), new FakeTerminal("hung", true));
+        List<Inventory.Item> items = inventory(8).scan(terminals);
+        assertEquals(2, items.size());
+        assertEquals("good", items.get(0).getTerminal());
+        assertEquals("3b00", items.get(0).getATR());
+        assertEquals("good", items.get(0).getValues().get("ifd"));
+        assertFalse(items.get(0).isTimedOut());
+        assertEquals("hung", items.get(1).getTerminal());
+        assertTrue(items.get(1).isTimedOut());
+    }
+
+    /** Test scan returns when hung readers hold every thread. */
+    public void testAllThreadsHung() throws Exception {
+        List<CardTerminal> terminals = Arrays.<CardTerminal>asList(new FakeTerminal("hung 1", true),
+                new FakeTerminal("hung 2", true), new FakeTerminal("queued", false));
+        long start = System.currentTimeMillis();
+        List<Inventory.Item> items = inventory(2).scan(terminals);
+        assertTrue(System.currentTimeMillis() - start < 2000);
+        assertEquals(3, items.size());
+        for (Inventory.Item item : items) {
+            assertTrue(item.getTerminal(), item.isTimedOut());
+        }
+    }
+}
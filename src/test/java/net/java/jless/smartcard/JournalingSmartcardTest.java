@@ -0,0 +1,147 @@
+/*
+ * Copyright 2009 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ * THIS SOURCE CODE IS PROVIDED BY JOEL HOCKEY WITH A 30-DAY MONEY BACK
+ * GUARANTEE.  IF THIS CODE DOES NOT MEAN WHAT IT SAYS IT MEANS WITHIN THE
+ * FIRST 30 DAYS, SIMPLY RETURN THIS CODE IN ORIGINAL CONDITION FOR A PARTIAL
+ * REFUND.  IN ADDITION, I WILL REFORMAT THIS CODE USING YOUR PREFERRED
+ * BRACE-POSITIONING AND INDENTATION.  THIS WARRANTY IS VOID IF THE CODE IS
+ * FOUND TO HAVE BEEN COMPILED.  NO FURTHER WARRANTY IS OFFERED.
+ */
+
+package net.java.jless.smartcard;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Test JournalingSmartcard.
+ */
+public class JournalingSmartcardTest extends TestCase {
+
+    /** Card returning FCP for EF selects and failing once on request. */
+    static class StubCard implements ReconnectableSmartcard {
+        List<String> sent = new ArrayList<String>();
+        int reconnects;
+        boolean failNext;
+        String verifySW = "9000";
+
+        public String getIFDName() { return "stub"; }
+        public byte[] getATR() { return Hex.s2b("3b00"); }
+        public void disconnect(boolean reset) { }
+        public void reconnect(boolean reset) { reconnects++; }
+        public String transmith(String hexApdu) throws SmartcardException {
+            return transmit(Hex.s2b(hexApdu)).toString();
+        }
+        public APDURes transmit(int cla, int ins, int p1, int p2, byte[] data, Integer le) throws SmartcardException {
+            return transmit(SmartcardUtil.formatAPDU(cla, ins, p1, p2, data, le));
+        }
+        public APDURes transmit(byte[] apdu) throws SmartcardException {
+            sent.add(Hex.b2s(apdu));
+            if (failNext) {
+                failNext = false;
+                throw new SmartcardException("reader failed", SmartcardException.Type.TRANSPORT);
+            }
+            if ((apdu[1] & 0xff) == 0x20) {
+                return new APDURes(verifySW);
+            }
+            // EF if FID starts with 2f
+            if ((apdu[1] & 0xff) == 0xa4 && apdu.length >= 7 && (apdu[5] & 0xff) == 0x2f) {
+                return new APDURes("6203820101" + "9000");
+            }
+            return new APDURes("9000");
+        }
+    }
+
+    /** Test EF selects collapse whatever the P1. */
+    public void testEFSelectsCollapse() throws Exception {
+        StubCard stub = new StubCard();
+        JournalingSmartcard card = new JournalingSmartcard(stub);
+        card.transmith("00a4040007a0000000031010");
+        card.transmith("00a40000025f00"); // DF, kept
+        for (int i = 0; i < 10; i++) {
+            card.transmith("00a40000022f0" + i);
+            card.transmith("00a40200022f0" + i);
+        }
+        assertEquals(3, card.getJournalSize());
+        card.transmith("00a40000025f00");
+        card.transmith("00a40000025f00"); // repeated, not recorded again
+        assertEquals(4, card.getJournalSize());
+    }
+
+    /** Test auto recover only retries read only commands. */
+    public void testAutoRecover() throws Exception {
+        StubCard stub = new StubCard();
+        JournalingSmartcard card = new JournalingSmartcard(stub);
+        card.setAutoRecover(true);
+        card.transmith("00a4040007a0000000031010");
+
+        stub.failNext = true;
+        assertEquals("9000", card.transmith("00b0000010"));
+        assertEquals(1, stub.reconnects);
+        assertEquals("00a4040007a0000000031010", stub.sent.get(stub.sent.size() - 2));
+
+        stub.failNext = true;
+        stub.sent.clear();
+        try {
+            card.transmith("00da010203aabbcc");
+            fail("expected failure of PUT DATA");
+        } catch (SmartcardException e) {
+            assertEquals(SmartcardException.Type.TRANSPORT, e.getType());
+        }
+        assertEquals(2, stub.reconnects);
+        // PUT DATA sent once, then only the journal replayed
+        assertEquals(2, stub.sent.size());
+        assertEquals("00a4040007a0000000031010", stub.sent.get(1));
+    }
+
+    /** Test CHANGE REFERENCE DATA removes the recorded VERIFY. */
+    public void testChangeReferenceData() throws Exception {
+        StubCard stub = new StubCard();
+        JournalingSmartcard card = new JournalingSmartcard(stub);
+        card.transmith("00a4040007a0000000031010");
+        card.transmith("002000810431323334");
+        card.transmith("0020008204313233343536");
+        assertEquals(3, card.getJournalSize());
+        card.transmith("00240081083132333435363738");
+        assertEquals(2, card.getJournalSize());
+
+        stub.sent.clear();
+        card.recover();
+        assertEquals(2, stub.sent.size());
+        assertEquals("0020008204313233343536", stub.sent.get(1));
+    }
+
+    /** Test rejected VERIFY is not replayed again after warm reset. */
+    public void testVerifyRejected() throws Exception {
+        StubCard stub = new StubCard();
+        JournalingSmartcard card = new JournalingSmartcard(stub);
+        card.transmith("00a4040007a0000000031010");
+        card.transmith("002000810431323334");
+
+        stub.verifySW = "63c2";
+        stub.sent.clear();
+        try {
+            card.recover();
+            fail("expected VERIFY failure");
+        } catch (SmartcardException e) {
+            assertEquals(0x63c2, e.getSW());
+        }
+        // one reconnect without reset, VERIFY sent once
+        assertEquals(1, stub.reconnects);
+        assertEquals(2, stub.sent.size());
+        assertEquals(1, card.getJournalSize());
+
+        // next recovery does not send the stale PIN
+        stub.sent.clear();
+        card.recover();
+        assertEquals(1, stub.sent.size());
+    }
+}
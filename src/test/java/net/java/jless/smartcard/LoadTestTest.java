@@ -0,0 +1,101 @@
+/*
+ * Copyright 2009 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ * THIS SOURCE CODE IS PROVIDED BY JOEL HOCKEY WITH A 30-DAY MONEY BACK
+ * GUARANTEE.  IF THIS CODE DOES NOT MEAN WHAT IT SAYS IT MEANS WITHIN THE
+ * FIRST 30 DAYS, SIMPLY RETURN THIS CODE IN ORIGINAL CONDITION FOR A PARTIAL
+ * REFUND.  IN ADDITION, I WILL REFORMAT THIS CODE USING YOUR PREFERRED
+ * BRACE-POSITIONING AND INDENTATION.  THIS WARRANTY IS VOID IF THE CODE IS
+ * FOUND TO HAVE BEEN COMPILED.  NO FURTHER WARRANTY IS OFFERED.
+ */
+
+package net.java.jless.smartcard;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+/**
+ * Test LoadTest against stub cards and its latency histogram.
+ */
+public class LoadTestTest extends TestCase {
+
+    /** Test percentiles are within bucket precision. */
+    public void testHistogram() {
+        LoadTest.Histogram h = new LoadTest.Histogram();
+        for (long v = 1; v <= 100000; v++) {
+            h.record(v * 1000);
+        }
+        double[] ps = {50, 90, 99, 99.9};
+        for (double p : ps) {
+            long expected = (long) (p * 1000000);
+            long actual = h.percentile(p);
+            assertTrue(p + ": " + actual, actual >= expected && actual <= expected * 1.04);
+        }
+        assertEquals(100000000, h.percentile(100));
+        assertEquals(0, new LoadTest.Histogram().percentile(99));
+        LoadTest.Histogram small = new LoadTest.Histogram();
+        small.record(5);
+        assertEquals(5, small.percentile(50));
+    }
+
+    /** Returns 9000, except 6a82 for INS b0 and an exception for INS ff. */
+    static class StubCard implements Smartcard {
+        public String getIFDName() { return "stub"; }
+        public byte[] getATR() { return Hex.s2b("3b00"); }
+        public void disconnect(boolean reset) { }
+        public String transmith(String hexApdu) throws SmartcardException {
+            return transmit(Hex.s2b(hexApdu)).toString();
+        }
+        public APDURes transmit(int cla, int ins, int p1, int p2, byte[] data, Integer le) throws SmartcardException {
+            return transmit(SmartcardUtil.formatAPDU(cla, ins, p1, p2, data, le));
+        }
+        public APDURes transmit(byte[] apdu) throws SmartcardException {
+            switch (apdu[1] & 0xff) {
+                case 0xb0:
+                    return new APDURes("6a82");
+                case 0xff:
+                    throw new SmartcardException("stub error", SmartcardException.Type.TRANSPORT);
+                default:
+                    return new APDURes("9000");
+            }
+        }
+    }
+
+    /** Test run against stub cards and baseline compare in a decimal comma locale. */
+    public void testRun() throws Exception {
+        LoadTest test = new LoadTest();
+        test.addCommand(Hex.s2b("00a4040000"), 8, 0x9000);
+        test.addCommand(Hex.s2b("00b0000000"), 1, 0x9000);
+        test.addCommand(Hex.s2b("00ff000000"), 1, 0x9000);
+        test.setWarmupMillis(20);
+        test.setDurationMillis(200);
+        List<Smartcard> cards = new ArrayList<Smartcard>();
+        cards.add(new StubCard());
+        cards.add(new StubCard());
+        LoadTest.Result result = test.run(cards);
+        assertTrue(result.getCount() > 0);
+        assertTrue(result.getErrors().get(SmartcardException.Type.TRANSPORT) > 0);
+        assertTrue(result.getErrorRate() > 0.05 && result.getErrorRate() < 0.4);
+
+        Locale locale = Locale.getDefault();
+        Locale.setDefault(Locale.GERMANY);
+        try {
+            Properties baseline = result.toProperties();
+            assertTrue(baseline.getProperty("errorRate"), baseline.getProperty("errorRate").indexOf(',') < 0);
+            assertEquals(0, result.compare(baseline, 10).size());
+            baseline.setProperty("throughput", "1e12");
+            assertEquals(1, result.compare(baseline, 10).size());
+        } finally {
+            Locale.setDefault(locale);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2009 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ * THIS SOURCE CODE IS PROVIDED BY JOEL HOCKEY WITH A 30-DAY MONEY BACK
+ * GUARANTEE.  IF THIS CODE DOES NOT MEAN WHAT IT SAYS IT MEANS WITHIN THE
+ * FIRST 30 DAYS, SIMPLY RETURN THIS CODE IN ORIGINAL CONDITION FOR A PARTIAL
+ * REFUND.  IN ADDITION, I WILL REFORMAT THIS CODE USING YOUR PREFERRED
+ * BRACE-POSITIONING AND INDENTATION.  THIS WARRANTY IS VOID IF THE CODE IS
+ * FOUND TO HAVE BEEN COMPILED.  NO FURTHER WARRANTY IS OFFERED.
+ */
+
+package net.java.jless.smartcard;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Test PersoPipeline with stub readers.
+ */
+public class PersoPipelineTest extends TestCase {
+
+    /** Reader that counts commands, or fails every command with a transport error. */
+    static class StubReader implements Smartcard {
+        private String name;
+        private boolean broken;
+        AtomicInteger commands = new AtomicInteger();
+
+        StubReader(String name, boolean broken) {
+            this.name = name;
+            this.broken = broken;
+        }
+
+        public String getIFDName() { return name; }
+        public byte[] getATR() { return Hex.s2b("3b00"); }
+        public void disconnect(boolean reset) { }
+        public String transmith(String hexApdu) throws SmartcardException {
+            return transmit(Hex.s2b(hexApdu)).toString();
+        }
+        public APDURes transmit(int cla, int ins, int p1, int p2, byte[] data, Integer le) throws SmartcardException {
+            return transmit(SmartcardUtil.formatAPDU(cla, ins, p1, p2, data, le));
+        }
+        public APDURes transmit(byte[] apdu) throws SmartcardException {
+            commands.incrementAndGet();
+            if (broken) {
+                throw new SmartcardException("card removed", SmartcardException.Type.CARD_REMOVED);
+            }
+            return new APDURes("9000");
+        }
+    }
+
+    private static PersoPipeline<Integer> pipeline() {
+        return new PersoPipeline<Integer>(new PersoPipeline.Preparer<Integer>() {
+            public List<byte[]> prepare(Integer job) {
+                return Collections.nCopies(3, Hex.s2b("80e2000000"));
+            }
+        }, 2);
+    }
+
+    /** Test broken reader is taken out of rotation and its job written elsewhere. */
+    public void testBrokenReader() throws Exception {
+        StubReader good = new StubReader("good", false);
+        StubReader broken = new StubReader("broken", true);
+        final AtomicInteger acquired = new AtomicInteger();
+        final AtomicInteger released = new AtomicInteger();
+        PersoPipeline<Integer> pipeline = pipeline();
+        pipeline.setStation(new PersoPipeline.Station() {
+            public Smartcard acquire(Smartcard reader) {
+                acquired.incrementAndGet();
+                return reader;
+            }
+            public void release(Smartcard card, Throwable error) {
+                released.incrementAndGet();
+            }
+        });
+        pipeline.addReader(broken);
+        pipeline.addReader(good);
+        pipeline.start();
+        for (int i = 0; i < 20; i++) {
+            pipeline.submit(i);
+        }
+        pipeline.finish();
+        assertEquals(20, pipeline.getSucceeded());
+        assertEquals(0, pipeline.getFailed());
+        assertEquals(60, good.commands.get());
+        assertTrue(broken.commands.get() <= 1);
+        assertEquals(acquired.get(), released.get());
+    }
+
+    /** Test jobs fail once no readers are left. */
+    public void testAllReadersBroken() throws Exception {
+        PersoPipeline<Integer> pipeline = pipeline();
+        pipeline.addReader(new StubReader("broken 1", true));
+        pipeline.addReader(new StubReader("broken 2", true));
+        pipeline.start();
+        for (int i = 0; i < 10; i++) {
+            pipeline.submit(i);
+        }
+        pipeline.finish();
+        assertEquals(0, pipeline.getSucceeded());
+        assertEquals(10, pipeline.getFailed());
+    }
+
+    /** Test submit before start. */
+    public void testNotStarted() throws Exception {
+        try {
+            pipeline().submit(1);
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2009 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ * THIS SOURCE CODE IS PROVIDED BY JOEL HOCKEY WITH A 30-DAY MONEY BACK
+ * GUARANTEE.  IF THIS CODE DOES NOT MEAN WHAT IT SAYS IT MEANS WITHIN THE
+ * FIRST 30 DAYS, SIMPLY RETURN THIS CODE IN ORIGINAL CONDITION FOR A PARTIAL
+ * REFUND.  IN ADDITION, I WILL REFORMAT THIS CODE USING YOUR PREFERRED
+ * BRACE-POSITIONING AND INDENTATION.  THIS WARRANTY IS VOID IF THE CODE IS
+ * FOUND TO HAVE BEEN COMPILED.  NO FURTHER WARRANTY IS OFFERED.
+ */
+
+package net.java.jless.smartcard;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+/**
+ * Test ReaderTuner and ReaderProfileCache.
+ */
+public class ReaderTunerTest extends TestCase {
+    private File file;
+
+    /** Accepts everything with 9000, READ BINARY returns Le zero bytes. */
+    static class StubCard implements Smartcard {
+        int commands;
+
+        public String getIFDName() { return "stub"; }
+        public byte[] getATR() { return Hex.s2b("3b00"); }
+        public void disconnect(boolean reset) { }
+        public String transmith(String hexApdu) throws SmartcardException {
+            return transmit(Hex.s2b(hexApdu)).toString();
+        }
+        public APDURes transmit(int cla, int ins, int p1, int p2, byte[] data, Integer le) throws SmartcardException {
+            return transmit(SmartcardUtil.formatAPDU(cla, ins, p1, p2, data, le));
+        }
+        public APDURes transmit(byte[] apdu) {
+            commands++;
+            if ((apdu[1] & 0xff) == 0xb0) {
+                int le = apdu[4] == 0 ? 256 : apdu[4] & 0xff;
+                return new APDURes(Buf.cat(new byte[le], Hex.s2b("9000")));
+            }
+            return new APDURes("9000");
+        }
+    }
+
+    protected void setUp() throws IOException {
+        file = File.createTempFile("readers", ".properties");
+        file.delete();
+    }
+
+    protected void tearDown() {
+        file.delete();
+        new File(file.getPath() + ".lock").delete();
+    }
+
+    /** Test untuned defaults are not stored. */
+    public void testNoProbes() throws Exception {
+        ReaderTuner tuner = new ReaderTuner(new ReaderProfileCache(file));
+        ReaderProfile profile = tuner.getProfile(new StubCard());
+        assertEquals(255, profile.getChainSize());
+        assertEquals(256, profile.getReadSize());
+        assertFalse(file.exists());
+    }
+
+    /** Test tuned profile is stored and reused. */
+    public void testTuneAndCache() throws Exception {
+        ReaderTuner tuner = new ReaderTuner(new ReaderProfileCache(file));
+        tuner.setRepeat(1);
+        tuner.setPayloadLen(300);
+        tuner.setWriteProbe(Hex.s2b("80e20000"));
+        tuner.setReadProbe(Hex.s2b("00a40000020101"));
+        StubCard card = new StubCard();
+        ReaderProfile profile = tuner.getProfile(card);
+        assertTrue(card.commands > 0);
+        assertTrue(file.exists());
+
+        card.commands = 0;
+        ReaderTuner other = new ReaderTuner(new ReaderProfileCache(file));
+        other.setWriteProbe(Hex.s2b("80e20000"));
+        ReaderProfile cached = other.getProfile(card);
+        assertEquals(0, card.commands);
+        assertEquals(profile.getChainSize(), cached.getChainSize());
+        assertEquals(profile.getReadSize(), cached.getReadSize());
+    }
+
+    /** Test caches sharing a file keep each other's profiles. */
+    public void testMerge() throws Exception {
+        ReaderProfileCache a = new ReaderProfileCache(file);
+        ReaderProfileCache b = new ReaderProfileCache(file);
+        a.put(new ReaderProfile("reader a", "3b00", 128, 256, 100));
+        b.put(new ReaderProfile("reader b", "3b00", 64, 128, 200));
+        a.put(new ReaderProfile("reader c", "3b00", 32, 64, 300));
+
+        ReaderProfileCache loaded = new ReaderProfileCache(file);
+        assertEquals(128, loaded.get("reader a", "3b00").getChainSize());
+        assertEquals(64, loaded.get("reader b", "3b00").getChainSize());
+        assertEquals(32, loaded.get("reader c", "3b00").getChainSize());
+        assertEquals(64, a.get("reader b", "3b00").getChainSize());
+        assertNull(loaded.get("reader d", "3b00"));
+    }
+}
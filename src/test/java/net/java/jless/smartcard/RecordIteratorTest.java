@@ -0,0 +1,100 @@
+/*
+ * Copyright 2009 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ * THIS SOURCE CODE IS PROVIDED BY JOEL HOCKEY WITH A 30-DAY MONEY BACK
+ * GUARANTEE.  IF THIS CODE DOES NOT MEAN WHAT IT SAYS IT MEANS WITHIN THE
+ * FIRST 30 DAYS, SIMPLY RETURN THIS CODE IN ORIGINAL CONDITION FOR A PARTIAL
+ * REFUND.  IN ADDITION, I WILL REFORMAT THIS CODE USING YOUR PREFERRED
+ * BRACE-POSITIONING AND INDENTATION.  THIS WARRANTY IS VOID IF THE CODE IS
+ * FOUND TO HAVE BEEN COMPILED.  NO FURTHER WARRANTY IS OFFERED.
+ */
+
+package net.java.jless.smartcard;
+
+import junit.framework.TestCase;
+
+/**
+ * Test RecordIterator.
+ */
+public class RecordIteratorTest extends TestCase {
+
+    /** EF with 5 records, record n is n repeated n times, each read takes 50ms. */
+    static class RecordCard implements Smartcard {
+        int reads;
+        volatile boolean busy;
+
+        public String getIFDName() { return "records"; }
+        public byte[] getATR() { return Hex.s2b("3b00"); }
+        public void disconnect(boolean reset) { }
+        public String transmith(String hexApdu) throws SmartcardException {
+            return transmit(Hex.s2b(hexApdu)).toString();
+        }
+        public APDURes transmit(int cla, int ins, int p1, int p2, byte[] data, Integer le) throws SmartcardException {
+            return transmit(SmartcardUtil.formatAPDU(cla, ins, p1, p2, data, le));
+        }
+        public synchronized APDURes transmit(byte[] apdu) throws SmartcardException {
+            busy = true;
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                throw new SmartcardException(e);
+            }
+            reads++;
+            busy = false;
+            int num = apdu[2] & 0xff;
+            if (num > 5) {
+                return new APDURes("6a83");
+            }
+            byte[] res = new byte[num + 2];
+            for (int i = 0; i < num; i++) {
+                res[i] = (byte) num;
+            }
+            res[num] = (byte) 0x90;
+            return new APDURes(res);
+        }
+    }
+
+    /** Test all records read. */
+    public void testIterate() throws Exception {
+        RecordCard card = new RecordCard();
+        RecordIterator records = new RecordIterator(card, 1);
+        int n = 0;
+        for (byte[] rec; (rec = records.nextRecord()) != null; ) {
+            n++;
+            assertEquals(n, rec.length);
+            assertEquals(n, records.getRecordNum());
+        }
+        assertEquals(5, n);
+        assertEquals(6, card.reads);
+    }
+
+    /** Test find does not read past match. */
+    public void testFind() throws Exception {
+        RecordCard card = new RecordCard();
+        byte[] rec = new RecordIterator(card, 1).find(new RecordIterator.Filter() {
+            public boolean accept(int recordNum, byte[] record) {
+                return recordNum == 2;
+            }
+        });
+        assertEquals("0202", Hex.b2s(rec));
+        assertEquals(2, card.reads);
+        Thread.sleep(100);
+        assertEquals(2, card.reads);
+    }
+
+    /** Test close waits for prefetch at the card. */
+    public void testCloseWaits() throws Exception {
+        RecordCard card = new RecordCard();
+        RecordIterator records = new RecordIterator(card, 1);
+        assertNotNull(records.nextRecord());
+        records.close();
+        assertFalse(card.busy);
+        assertEquals(2, card.reads);
+        assertNull(records.nextRecord());
+    }
+}
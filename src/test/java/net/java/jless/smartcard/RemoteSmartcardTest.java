@@ -0,0 +1,231 @@
+/*
+ * Copyright 2009 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ * THIS SOURCE CODE IS PROVIDED BY JOEL HOCKEY WITH A 30-DAY MONEY BACK
+ * GUARANTEE.  IF THIS CODE DOES NOT MEAN WHAT IT SAYS IT MEANS WITHIN THE
+ * FIRST 30 DAYS, SIMPLY RETURN THIS CODE IN ORIGINAL CONDITION FOR A PARTIAL
+ * REFUND.  IN ADDITION, I WILL REFORMAT THIS CODE USING YOUR PREFERRED
+ * BRACE-POSITIONING AND INDENTATION.  THIS WARRANTY IS VOID IF THE CODE IS
+ * FOUND TO HAVE BEEN COMPILED.  NO FURTHER WARRANTY IS OFFERED.
+ */
+
+package net.java.jless.smartcard;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Test RemoteSmartcard against SmartcardServer on loopback.
+ */
+public class RemoteSmartcardTest extends TestCase {
+    private SmartcardServer server;
+    private RemoteSmartcard.Connection conn;
+
+    protected void setUp() throws Exception {
+        server = new SmartcardServer(new InetSocketAddress("127.0.0.1", 0));
+        server.addCard(0, new EchoCard("reader 0"));
+        server.addCard(1, new EchoCard("reader 1"));
+        server.start();
+        conn = RemoteSmartcard.connect("127.0.0.1", server.getPort());
+    }
+
+    protected void tearDown() {
+        conn.close();
+        server.stop();
+    }
+
+    /** Test info, transmit and large frames. */
+    public void testTransmit() throws Exception {
+        RemoteSmartcard card = conn.getCard(1);
+        assertEquals("reader 1", card.getIFDName());
+        assertEquals("3b00", Hex.b2s(card.getATR()));
+        assertEquals("01029000", card.transmith("0000000002010200"));
+        byte[] big = new byte[5000];
+        big[4] = 0x7f;
+        APDURes res = card.transmit(big);
+        assertEquals(0x9000, res.getSW());
+        assertEquals(big.length - 5 + 2, res.getBytes().length);
+    }
+
+    /** Test client disconnect does not disconnect shared card. */
+    public void testDisconnect() throws Exception {
+        EchoCard echo = new EchoCard("shared");
+        server.addCard(2, echo);
+        conn.getCard(2).disconnect(true);
+        assertFalse(echo.disconnected);
+        assertEquals("9000", conn.getCard(2).transmith("00000000"));
+    }
+
+    /** Test channel is used by one connection at a time. */
+    public void testExclusive() throws Exception {
+        assertEquals("9000", conn.getCard(0).transmith("00000000"));
+        RemoteSmartcard.Connection other = RemoteSmartcard.connect("127.0.0.1", server.getPort());
+        try {
+            try {
+                other.getCard(0);
+                fail("expected channel in use");
+            } catch (SmartcardException e) {
+                assertEquals(SmartcardException.Type.REJECTED, e.getType());
+            }
+            // other channels are free
+            assertEquals("9000", other.getCard(1).transmith("00000000"));
+
+            // released by disconnect
+            conn.getCard(0).disconnect(false);
+            assertEquals("9000", other.getCard(0).transmith("00000000"));
+        } finally {
+            other.close();
+        }
+
+        // released when connection closes
+        for (int i = 0; ; i++) {
+            try {
+                assertEquals("9000", conn.getCard(0).transmith("00000000"));
+                break;
+            } catch (SmartcardException e) {
+                if (i == 100) {
+                    throw e;
+                }
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    /** Test full channel queue rejects requests. */
+    public void testQueueFull() throws Exception {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        server.setQueueSize(1);
+        server.addCard(3, new EchoCard("slow") {
+            public APDURes transmit(byte[] apdu) throws SmartcardException {
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new SmartcardException(e);
+                }
+                return super.transmit(apdu);
+            }
+        });
+        final RemoteSmartcard card = conn.getCard(3);
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 3; i++) {
+            Thread t = new Thread() {
+                public void run() {
+                    try {
+                        card.transmith("00000000");
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            };
+            threads.add(t);
+            t.start();
+            if (i == 0) {
+                assertTrue(entered.await(5, TimeUnit.SECONDS));
+            }
+        }
+        // one running, one queued, one rejected
+        for (int i = 0; i < 500 && errors.isEmpty(); i++) {
+            Thread.sleep(10);
+        }
+        release.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(errors.toString(), 1, errors.size());
+        assertEquals(SmartcardException.Type.REJECTED, ((SmartcardException) errors.get(0)).getType());
+    }
+
+    /** Test errors keep type and sw. */
+    public void testErrors() throws Exception {
+        RemoteSmartcard card = conn.getCard(0);
+        try {
+            card.transmith("00ff0000");
+            fail("expected rejected");
+        } catch (SmartcardException e) {
+            assertEquals(SmartcardException.Type.REJECTED, e.getType());
+            assertEquals(0x6d00, e.getSW());
+            assertEquals("ins not supported", e.getMessage());
+        }
+        try {
+            conn.getCard(9);
+            fail("expected no card");
+        } catch (SmartcardException e) {
+            assertEquals(SmartcardException.Type.CARD_REMOVED, e.getType());
+        }
+        // connection still usable
+        assertEquals("9000", card.transmith("00000000"));
+    }
+
+    /** Test many threads pipelining over one connection. */
+    public void testPipelined() throws Exception {
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 8; i++) {
+            final RemoteSmartcard card = conn.getCard(i % 2);
+            final int n = i;
+            Thread t = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < 100; j++) {
+                            String data = String.format("%02x%02x", n, j);
+                            assertEquals(data + "9000", card.transmith("00000000 02" + data));
+                        }
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            };
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(errors.toString(), 0, errors.size());
+    }
+
+    /** Returns command data with 9000, rejects INS ff. */
+    static class EchoCard implements Smartcard {
+        private String ifdName;
+        volatile boolean disconnected;
+
+        EchoCard(String ifdName) {
+            this.ifdName = ifdName;
+        }
+
+        public String getIFDName() { return ifdName; }
+        public byte[] getATR() { return Hex.s2b("3b00"); }
+        public APDURes transmit(byte[] apdu) throws SmartcardException {
+            if ((apdu[1] & 0xff) == 0xff) {
+                throw new SmartcardException("ins not supported", 0x6d00);
+            }
+            byte[] data = apdu.length > 5 ? Buf.substring(apdu, 5, apdu.length - 5) : new byte[0];
+            if (data.length > 0 && data.length == (apdu[4] & 0xff) + 1) {
+                data = Buf.substring(data, 0, data.length - 1); // drop le
+            }
+            return new APDURes(Buf.cat(data, Hex.s2b("9000")));
+        }
+        public String transmith(String hexApdu) throws SmartcardException { return transmit(Hex.s2b(hexApdu)).toString(); }
+        public APDURes transmit(int cla, int ins, int p1, int p2, byte[] data, Integer le) throws SmartcardException {
+            return transmit(SmartcardUtil.formatAPDU(cla, ins, p1, p2, data, le));
+        }
+        public void disconnect(boolean reset) { disconnected = true; }
+    }
+}
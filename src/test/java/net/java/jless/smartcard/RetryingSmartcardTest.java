@@ -0,0 +1,126 @@
+/*
+ * Copyright 2009 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ * THIS SOURCE CODE IS PROVIDED BY JOEL HOCKEY WITH A 30-DAY MONEY BACK
+ * GUARANTEE.  IF THIS CODE DOES NOT MEAN WHAT IT SAYS IT MEANS WITHIN THE
+ * FIRST 30 DAYS, SIMPLY RETURN THIS CODE IN ORIGINAL CONDITION FOR A PARTIAL
+ * REFUND.  IN ADDITION, I WILL REFORMAT THIS CODE USING YOUR PREFERRED
+ * BRACE-POSITIONING AND INDENTATION.  THIS WARRANTY IS VOID IF THE CODE IS
+ * FOUND TO HAVE BEEN COMPILED.  NO FURTHER WARRANTY IS OFFERED.
+ */
+
+package net.java.jless.smartcard;
+
+import java.util.LinkedList;
+
+import junit.framework.TestCase;
+
+/**
+ * Test RetryingSmartcard and CircuitBreaker.
+ */
+public class RetryingSmartcardTest extends TestCase {
+
+    /** Card that throws queued exceptions, then returns 9000. */
+    static class FailingCard implements Smartcard {
+        LinkedList<RuntimeException> runtime = new LinkedList<RuntimeException>();
+        LinkedList<SmartcardException> errors = new LinkedList<SmartcardException>();
+        int sent;
+
+        public String getIFDName() { return "failing"; }
+        public byte[] getATR() { return Hex.s2b("3b00"); }
+        public void disconnect(boolean reset) { }
+        public String transmith(String hexApdu) throws SmartcardException {
+            return transmit(Hex.s2b(hexApdu)).toString();
+        }
+        public APDURes transmit(int cla, int ins, int p1, int p2, byte[] data, Integer le) throws SmartcardException {
+            return transmit(SmartcardUtil.formatAPDU(cla, ins, p1, p2, data, le));
+        }
+        public APDURes transmit(byte[] apdu) throws SmartcardException {
+            sent++;
+            if (!runtime.isEmpty()) {
+                throw runtime.removeFirst();
+            }
+            if (!errors.isEmpty()) {
+                throw errors.removeFirst();
+            }
+            return new APDURes("9000");
+        }
+    }
+
+    private static SmartcardException error(SmartcardException.Type type) {
+        return new SmartcardException(type.toString(), type);
+    }
+
+    /** Test breaker opens, and a trial that is rejected or throws does not stick. */
+    public void testHalfOpenTrialReleased() throws Exception {
+        FailingCard failing = new FailingCard();
+        CircuitBreaker breaker = new CircuitBreaker("test");
+        breaker.setFailureThreshold(2);
+        breaker.setCoolDownMillis(0);
+        RetryingSmartcard card = new RetryingSmartcard(failing, new RetryPolicy().setMaxAttempts(1), breaker);
+
+        for (int i = 0; i < 2; i++) {
+            failing.errors.add(error(SmartcardException.Type.TRANSPORT));
+            try {
+                card.transmith("00b0000000");
+                fail("expected transport error");
+            } catch (SmartcardException e) {
+                assertEquals(SmartcardException.Type.TRANSPORT, e.getType());
+            }
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+        failing.errors.add(error(SmartcardException.Type.REJECTED));
+        try {
+            card.transmith("00b0000000");
+            fail("expected rejected");
+        } catch (SmartcardException e) {
+            assertEquals(SmartcardException.Type.REJECTED, e.getType());
+        }
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+        failing.runtime.add(new IllegalStateException("bug"));
+        try {
+            card.transmith("00b0000000");
+            fail("expected runtime exception");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        // trial allowed again and closes breaker
+        assertEquals("9000", card.transmith("00b0000000"));
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    /** Test only read only commands are retried by default. */
+    public void testRetryOnlyIdempotent() throws Exception {
+        FailingCard failing = new FailingCard();
+        RetryPolicy policy = new RetryPolicy().setBackoff(0, 1, 0);
+        RetryingSmartcard card = new RetryingSmartcard(failing, policy, new CircuitBreaker("test"));
+
+        failing.errors.add(error(SmartcardException.Type.TIMEOUT));
+        assertEquals("9000", card.transmith("00b0000000"));
+        assertEquals(2, failing.sent);
+
+        failing.sent = 0;
+        failing.errors.add(error(SmartcardException.Type.TIMEOUT));
+        try {
+            card.transmith("00da0101020102");
+            fail("expected PUT DATA not retried");
+        } catch (SmartcardException e) {
+            assertEquals(SmartcardException.Type.TIMEOUT, e.getType());
+        }
+        assertEquals(1, failing.sent);
+
+        policy.retryAllCommands();
+        failing.sent = 0;
+        failing.errors.add(error(SmartcardException.Type.TIMEOUT));
+        assertEquals("9000", card.transmith("00da0101020102"));
+        assertEquals(2, failing.sent);
+    }
+}
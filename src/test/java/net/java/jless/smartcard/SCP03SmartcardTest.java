@@ -0,0 +1,139 @@
+/*
+ * Copyright 2009 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ * THIS SOURCE CODE IS PROVIDED BY JOEL HOCKEY WITH A 30-DAY MONEY BACK
+ * GUARANTEE.  IF THIS CODE DOES NOT MEAN WHAT IT SAYS IT MEANS WITHIN THE
+ * FIRST 30 DAYS, SIMPLY RETURN THIS CODE IN ORIGINAL CONDITION FOR A PARTIAL
+ * REFUND.  IN ADDITION, I WILL REFORMAT THIS CODE USING YOUR PREFERRED
+ * BRACE-POSITIONING AND INDENTATION.  THIS WARRANTY IS VOID IF THE CODE IS
+ * FOUND TO HAVE BEEN COMPILED.  NO FURTHER WARRANTY IS OFFERED.
+ */
+
+package net.java.jless.smartcard;
+
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import junit.framework.TestCase;
+
+/**
+ * Test SCP03 CMAC and wrapping.
+ */
+public class SCP03SmartcardTest extends TestCase {
+    private static final byte[] KEY = Hex.s2b("404142434445464748494a4b4c4d4e4f");
+
+    /** Test CMAC against RFC 4493 vectors, fed in pieces. */
+    public void testCmac() {
+        SCP03Smartcard.Cmac cmac = new SCP03Smartcard.Cmac(Hex.s2b("2b7e151628aed2a6abf7158809cf4f3c"));
+        byte[] msg = Hex.s2b("6bc1bee22e409f96e93d7e117393172aae2d8a571e03ac9c9eb76fac45af8e5130c81c46a35ce411");
+        String[][] vectors = {
+            {"0", "bb1d6929e95937287fa37d129b756746"},
+            {"16", "070a16b46b4d4144f79bdd9dd04a287c"},
+            {"40", "dfa66747de9ae63030ca32611497c827"},
+        };
+        byte[] out = new byte[16];
+        for (String[] v : vectors) {
+            int len = Integer.parseInt(v[0]);
+            for (int i = 0; i < len; i++) {
+                cmac.update(msg, i, 1);
+            }
+            cmac.doFinal(out, 0, 16);
+            assertEquals(v[1], Hex.b2s(out));
+            cmac.update(msg, 0, len);
+            cmac.doFinal(out, 0, 16);
+            assertEquals(v[1], Hex.b2s(out));
+        }
+    }
+
+    /** Test open, C-MAC, C-DECRYPTION and R-MAC against card side computed with JCE CBC. */
+    public void testSession() throws Exception {
+        CardSide cardSide = new CardSide();
+        SCP03Smartcard scp = new SCP03Smartcard(cardSide, KEY, KEY);
+        scp.open(0x30, SCP03Smartcard.C_MAC | SCP03Smartcard.C_DECRYPTION | SCP03Smartcard.R_MAC);
+        assertEquals("8482130010", Hex.b2s(cardSide.last).substring(0, 10));
+        for (int len = 0; len < 40; len++) {
+            byte[] data = Buf.random(len);
+            APDURes res = scp.transmit(0x80, 0xe2, 0x00, 0x00, data, null);
+            assertEquals(Hex.b2s(data) + "9000", res.toString());
+        }
+        assertEquals(239, scp.getMaxDataLen());
+        byte[] big = Buf.random(600);
+        assertEquals(0x9000, scp.chaining().transmit(0x80, 0xe2, 0x00, 0x00, big, null).getSW());
+    }
+
+    /** Card side of SCP03 using JCE CBC, echoes plain command data. */
+    static class CardSide implements Smartcard {
+        private byte[] context;
+        private byte[] sEnc;
+        private SCP03Smartcard.Cmac cmac;
+        private SCP03Smartcard.Cmac rmac;
+        private byte[] chaining = new byte[16];
+        private int counter;
+        byte[] last;
+
+        public String getIFDName() { return "scp03"; }
+        public byte[] getATR() { return Hex.s2b("3b00"); }
+        public APDURes transmit(byte[] apdu) {
+            last = apdu;
+            if ((apdu[1] & 0xff) == 0x50) {
+                byte[] cardChallenge = Hex.s2b("0102030405060708");
+                context = Buf.cat(Buf.substring(apdu, 5, 8), cardChallenge);
+                sEnc = SCP03Smartcard.kdf(KEY, 0x04, 128, context);
+                byte[] sMac = SCP03Smartcard.kdf(KEY, 0x06, 128, context);
+                cmac = new SCP03Smartcard.Cmac(sMac);
+                rmac = new SCP03Smartcard.Cmac(SCP03Smartcard.kdf(KEY, 0x07, 128, context));
+                byte[] cryptogram = SCP03Smartcard.kdf(sMac, 0x00, 64, context);
+                return new APDURes(Buf.cat(new byte[10], Hex.s2b("300300"), cardChallenge, cryptogram,
+                        Hex.s2b("9000")));
+            }
+            int lc = apdu[4] & 0xff;
+            cmac.update(chaining, 0, 16);
+            cmac.update(apdu, 0, 5 + lc - 8);
+            cmac.doFinal(chaining, 0, 16);
+            assertEquals(Hex.b2s(Buf.substring(chaining, 0, 8)), Hex.b2s(Buf.substring(apdu, 5 + lc - 8, 8)));
+            if ((apdu[1] & 0xff) == 0x82) {
+                return new APDURes("9000");
+            }
+            counter++;
+            byte[] data = Buf.substring(apdu, 5, lc - 8);
+            if (data.length > 0) {
+                try {
+                    byte[] ctr = new byte[16];
+                    ctr[15] = (byte) counter;
+                    Cipher ecb = Cipher.getInstance("AES/ECB/NoPadding");
+                    ecb.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(sEnc, "AES"));
+                    Cipher cbc = Cipher.getInstance("AES/CBC/NoPadding");
+                    cbc.init(Cipher.DECRYPT_MODE, new SecretKeySpec(sEnc, "AES"), new IvParameterSpec(ecb.doFinal(ctr)));
+                    data = cbc.doFinal(data);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+                int end = data.length - 1;
+                while (data[end] == 0) {
+                    end--;
+                }
+                data = Arrays.copyOf(data, end);
+            }
+            byte[] sw = Hex.s2b("9000");
+            byte[] mac = new byte[16];
+            rmac.update(chaining, 0, 16);
+            rmac.update(data, 0, data.length);
+            rmac.update(sw, 0, 2);
+            rmac.doFinal(mac, 0, 16);
+            return new APDURes(Buf.cat(data, Buf.substring(mac, 0, 8), sw));
+        }
+        public String transmith(String hexApdu) { return transmit(Hex.s2b(hexApdu)).toString(); }
+        public APDURes transmit(int cla, int ins, int p1, int p2, byte[] data, Integer le) {
+            return transmit(SmartcardUtil.formatAPDU(cla, ins, p1, p2, data, le));
+        }
+        public void disconnect(boolean reset) {}
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2009 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ * THIS SOURCE CODE IS PROVIDED BY JOEL HOCKEY WITH A 30-DAY MONEY BACK
+ * GUARANTEE.  IF THIS CODE DOES NOT MEAN WHAT IT SAYS IT MEANS WITHIN THE
+ * FIRST 30 DAYS, SIMPLY RETURN THIS CODE IN ORIGINAL CONDITION FOR A PARTIAL
+ * REFUND.  IN ADDITION, I WILL REFORMAT THIS CODE USING YOUR PREFERRED
+ * BRACE-POSITIONING AND INDENTATION.  THIS WARRANTY IS VOID IF THE CODE IS
+ * FOUND TO HAVE BEEN COMPILED.  NO FURTHER WARRANTY IS OFFERED.
+ */
+
+package net.java.jless.smartcard;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Test SmartcardPool.
+ */
+public class SmartcardPoolTest extends TestCase {
+    private static final byte[] SELECT = Hex.s2b("00a4040006d27600012401");
+    private static final byte[] VERIFY = Hex.s2b("0020008206313233343536");
+
+    /** Fails transmit on request, INS ee returns 6a80. */
+    static class StubCard implements ReconnectableSmartcard {
+        List<String> sent = new ArrayList<String>();
+        String name;
+        boolean fail;
+        boolean reconnectable = true;
+        String verifySW = "9000";
+        int reconnects;
+
+        StubCard(String name) {
+            this.name = name;
+        }
+
+        public String getIFDName() { return name; }
+        public byte[] getATR() { return Hex.s2b("3b00"); }
+        public void disconnect(boolean reset) { }
+        public void reconnect(boolean reset) throws SmartcardException {
+            reconnects++;
+            if (!reconnectable) {
+                throw new SmartcardException("card removed", SmartcardException.Type.CARD_REMOVED);
+            }
+        }
+        public String transmith(String hexApdu) throws SmartcardException {
+            return transmit(Hex.s2b(hexApdu)).toString();
+        }
+        public APDURes transmit(int cla, int ins, int p1, int p2, byte[] data, Integer le) throws SmartcardException {
+            return transmit(SmartcardUtil.formatAPDU(cla, ins, p1, p2, data, le));
+        }
+        public APDURes transmit(byte[] apdu) throws SmartcardException {
+            if (fail) {
+                fail = false;
+                throw new SmartcardException("reader failed", SmartcardException.Type.TRANSPORT);
+            }
+            sent.add(Hex.b2s(apdu));
+            switch (apdu[1] & 0xff) {
+                case 0x20: return new APDURes(verifySW);
+                case 0xee: return new APDURes("6a80");
+                default: return new APDURes("9000");
+            }
+        }
+    }
+
+    /** Test card is reconnected after transport error and session reopened. */
+    public void testReconnect() throws Exception {
+        StubCard stub = new StubCard("a");
+        SmartcardPool pool = new SmartcardPool(SELECT, VERIFY);
+        pool.add(stub);
+        pool.execute(Hex.s2b("00b0000000"));
+        assertEquals(3, stub.sent.size());
+
+        // rejected sw keeps session
+        try {
+            pool.execute(Hex.s2b("00ee000000"));
+            fail("expected 6a80");
+        } catch (SmartcardException e) {
+            assertEquals(0x6a80, e.getSW());
+        }
+        assertEquals(0, stub.reconnects);
+
+        stub.fail = true;
+        try {
+            pool.execute(Hex.s2b("00b0000000"));
+            fail("expected transport error");
+        } catch (SmartcardException e) {
+            assertEquals(SmartcardException.Type.TRANSPORT, e.getType());
+        }
+        assertEquals(1, stub.reconnects);
+        assertEquals(1, pool.size());
+
+        // select and verify sent again after reconnect
+        stub.sent.clear();
+        pool.execute(Hex.s2b("00b0000000"));
+        assertEquals(3, stub.sent.size());
+        assertEquals(Hex.b2s(SELECT), stub.sent.get(0));
+    }
+
+    /** Test card that cannot be reconnected or rejects VERIFY is removed. */
+    public void testRetire() throws Exception {
+        StubCard a = new StubCard("a");
+        StubCard b = new StubCard("b");
+        SmartcardPool pool = new SmartcardPool(SELECT, VERIFY);
+        pool.setTimeoutMillis(100);
+        pool.add(a);
+        pool.add(b);
+
+        a.reconnectable = false;
+        a.fail = true;
+        b.verifySW = "63c2";
+        for (int i = 0; i < 2; i++) {
+            try {
+                pool.execute(Hex.s2b("00b0000000"));
+                fail("expected failure");
+            } catch (SmartcardException e) {
+                // expected
+            }
+        }
+        assertEquals(0, pool.size());
+        // VERIFY tried once only
+        assertEquals(2, b.sent.size());
+        try {
+            pool.execute(Hex.s2b("00b0000000"));
+            fail("expected no card");
+        } catch (SmartcardTimeoutException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2009 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ * THIS SOURCE CODE IS PROVIDED BY JOEL HOCKEY WITH A 30-DAY MONEY BACK
+ * GUARANTEE.  IF THIS CODE DOES NOT MEAN WHAT IT SAYS IT MEANS WITHIN THE
+ * FIRST 30 DAYS, SIMPLY RETURN THIS CODE IN ORIGINAL CONDITION FOR A PARTIAL
+ * REFUND.  IN ADDITION, I WILL REFORMAT THIS CODE USING YOUR PREFERRED
+ * BRACE-POSITIONING AND INDENTATION.  THIS WARRANTY IS VOID IF THE CODE IS
+ * FOUND TO HAVE BEEN COMPILED.  NO FURTHER WARRANTY IS OFFERED.
+ */
+
+package net.java.jless.smartcard;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals;
+
+import junit.framework.TestCase;
+
+/**
+ * Test TerminalMonitor.
+ */
+public class TerminalMonitorTest extends TestCase {
+
+    /** Reports a card inserted after every wait. */
+    static class FakeTerminals extends CardTerminals {
+        AtomicInteger waits = new AtomicInteger();
+        CardTerminal terminal = new CardTerminal() {
+            public String getName() { return "fake"; }
+            public Card connect(String protocol) { throw new UnsupportedOperationException(); }
+            public boolean isCardPresent() { return true; }
+            public boolean waitForCardPresent(long timeout) { return true; }
+            public boolean waitForCardAbsent(long timeout) { return false; }
+        };
+
+        public List<CardTerminal> list(State state) {
+            return state == State.CARD_INSERTION ? Collections.singletonList(terminal)
+                    : Collections.<CardTerminal>emptyList();
+        }
+
+        public boolean waitForChange(long timeout) {
+            waits.incrementAndGet();
+            try {
+                Thread.sleep(timeout);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return true;
+        }
+    }
+
+    /** Test failing listener does not stop others or make the monitor spin. */
+    public void testListenerFails() throws Exception {
+        FakeTerminals terminals = new FakeTerminals();
+        TerminalMonitor monitor = new TerminalMonitor(terminals);
+        monitor.setTimeoutMillis(20);
+        final AtomicInteger calls = new AtomicInteger();
+        final AtomicInteger reached = new AtomicInteger();
+        monitor.addListener(new TerminalMonitor.Listener() {
+            public void cardInserted(CardTerminal terminal) {
+                calls.incrementAndGet();
+                throw new IllegalStateException("listener bug");
+            }
+            public void cardRemoved(CardTerminal terminal) { }
+        });
+        monitor.addListener(new TerminalMonitor.Listener() {
+            public void cardInserted(CardTerminal terminal) { reached.incrementAndGet(); }
+            public void cardRemoved(CardTerminal terminal) { }
+        });
+        monitor.start();
+        Thread.sleep(200);
+        monitor.stop();
+
+        assertTrue(terminals.waits.get() >= 2);
+        // one event per wait, not a busy loop
+        assertTrue(calls.get() <= terminals.waits.get() + 1);
+        assertTrue(reached.get() >= 2);
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2009 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ * THIS SOURCE CODE IS PROVIDED BY JOEL HOCKEY WITH A 30-DAY MONEY BACK
+ * GUARANTEE.  IF THIS CODE DOES NOT MEAN WHAT IT SAYS IT MEANS WITHIN THE
+ * FIRST 30 DAYS, SIMPLY RETURN THIS CODE IN ORIGINAL CONDITION FOR A PARTIAL
+ * REFUND.  IN ADDITION, I WILL REFORMAT THIS CODE USING YOUR PREFERRED
+ * BRACE-POSITIONING AND INDENTATION.  THIS WARRANTY IS VOID IF THE CODE IS
+ * FOUND TO HAVE BEEN COMPILED.  NO FURTHER WARRANTY IS OFFERED.
+ */
+
+package net.java.jless.smartcard;
+
+import junit.framework.TestCase;
+
+/**
+ * Test TlvWriter.
+ */
+public class TlvWriterTest extends TestCase {
+
+    /** Test nested TLVs with back-patched lengths.  */
+    public void testNested() {
+        byte[] big = Buf.random(300);
+        TlvWriter w = new TlvWriter(4);
+        w.start(0x70).add(0x5f20, Hex.s2b("414243")).start(0xbf0c).add(0x9f38, big).end().addByte(0x87, 1).end();
+        byte[] buf = w.toByteArray();
+        assertEquals(buf.length, w.size());
+        assertEquals("7082013f5f2003414243bf0c8201319f3882012c", Hex.b2s(buf, 0, 20));
+
+        BerTlv tlv = BerTlv.parse(buf);
+        assertEquals(buf.length, tlv.getTotalLength());
+        assertEquals("414243", Hex.b2s(tlv.find(0x5f20).getValue()));
+        assertEquals(Hex.b2s(big), Hex.b2s(tlv.find(0xbf0c, 0x9f38).getValue()));
+        assertEquals(1, tlv.find(0x87).getInt());
+
+        try {
+            new TlvWriter().start(0x70).toByteArray();
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    /** Test DGI lengths and caller buffer.  */
+    public void testDGI() {
+        byte[] buf = new byte[20];
+        TlvWriter w = new TlvWriter(buf, 2);
+        w.startDGI(0x0101).raw(Hex.s2b("0102")).end();
+        assertEquals("0101020102", Hex.b2s(buf, 2, 5));
+
+        w = new TlvWriter();
+        w.startDGI(0x8201).raw(new byte[255]).end();
+        assertEquals("8201ff00ff", Hex.b2s(w.toByteArray(), 0, 5));
+
+        try {
+            new TlvWriter(new byte[4], 0).add(0x80, new byte[3]);
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    /** Test APDU encoding matches SmartcardUtil.formatAPDU.  */
+    public void testAPDU() {
+        for (int len : new int[] {0, 1, 255, 256, 1000}) {
+            byte[] data = Buf.random(len);
+            for (Integer le : new Integer[] {null, 0, 256, 1000}) {
+                byte[] expected = SmartcardUtil.formatAPDU(0x80, 0xe2, 1, 2, len == 0 ? null : data, le);
+                byte[] actual = TlvWriter.forAPDU(0x80, 0xe2, 1, 2).raw(data).toAPDU(le);
+                assertEquals("len " + len + ", le " + le, Hex.b2s(expected), Hex.b2s(actual));
+            }
+        }
+    }
+
+    /** Test APDU is not changed by reusing writer.  */
+    public void testAPDUCopied() {
+        byte[] data = Buf.random(1000);
+        TlvWriter w = TlvWriter.forAPDU(0x80, 0xe2, 1, 2).raw(data);
+        byte[] apdu = w.toAPDU(null);
+        String expected = Hex.b2s(apdu);
+        w.reset();
+        w.raw(new byte[1000]);
+        w.toAPDU(null);
+        assertEquals(expected, Hex.b2s(apdu));
+    }
+}
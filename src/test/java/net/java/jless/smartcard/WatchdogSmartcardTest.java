@@ -0,0 +1,134 @@
+/*
+ * Copyright 2009 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ * THIS SOURCE CODE IS PROVIDED BY JOEL HOCKEY WITH A 30-DAY MONEY BACK
+ * GUARANTEE.  IF THIS CODE DOES NOT MEAN WHAT IT SAYS IT MEANS WITHIN THE
+ * FIRST 30 DAYS, SIMPLY RETURN THIS CODE IN ORIGINAL CONDITION FOR A PARTIAL
+ * REFUND.  IN ADDITION, I WILL REFORMAT THIS CODE USING YOUR PREFERRED
+ * BRACE-POSITIONING AND INDENTATION.  THIS WARRANTY IS VOID IF THE CODE IS
+ * FOUND TO HAVE BEEN COMPILED.  NO FURTHER WARRANTY IS OFFERED.
+ */
+
+package net.java.jless.smartcard;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+/**
+ * Test WatchdogSmartcard with cards that block.
+ */
+public class WatchdogSmartcardTest extends TestCase {
+    private CountDownLatch release = new CountDownLatch(1);
+
+    /** Card where INS is the time in 10ms units to take, ff blocks until released. */
+    class SlowCard implements ReconnectableSmartcard {
+        volatile boolean hangOnReconnect;
+        volatile int reconnects;
+        String name;
+
+        SlowCard(String name) { this.name = name; }
+
+        public String getIFDName() { return name; }
+        public byte[] getATR() { return Hex.s2b("3b00"); }
+        public void disconnect(boolean reset) { }
+        public void reconnect(boolean reset) {
+            reconnects++;
+            if (hangOnReconnect) {
+                hang();
+            }
+        }
+        public String transmith(String hexApdu) throws SmartcardException {
+            return transmit(Hex.s2b(hexApdu)).toString();
+        }
+        public APDURes transmit(int cla, int ins, int p1, int p2, byte[] data, Integer le) throws SmartcardException {
+            return transmit(SmartcardUtil.formatAPDU(cla, ins, p1, p2, data, le));
+        }
+        public APDURes transmit(byte[] apdu) throws SmartcardException {
+            int ins = apdu[1] & 0xff;
+            if (ins == 0xff) {
+                hang();
+            } else {
+                try {
+                    Thread.sleep(ins * 10);
+                } catch (InterruptedException e) {
+                    throw new SmartcardException(e);
+                }
+            }
+            return new APDURes("9000");
+        }
+        private void hang() {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                // abandoned worker
+            }
+        }
+    }
+
+    protected void tearDown() {
+        release.countDown();
+    }
+
+    /** Test time waiting for another caller does not count towards deadline. */
+    public void testDeadlineStartsWithCard() throws Exception {
+        final WatchdogSmartcard card = new WatchdogSmartcard(new SlowCard("slow 1"), 500);
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread first = new Thread() {
+            public void run() {
+                try {
+                    started.countDown();
+                    card.transmith("00280000"); // 400ms
+                } catch (Throwable t) {
+                    error.set(t);
+                }
+            }
+        };
+        first.start();
+        started.await();
+        Thread.sleep(50);
+        // waits ~350ms for first, then takes 200ms of its own 500ms
+        assertEquals("9000", card.transmith("00140000"));
+        first.join();
+        assertNull(error.get());
+        assertFalse(card.isQuarantined());
+        assertEquals(0, card.getTimeoutCount());
+    }
+
+    /** Test hanging reconnect times out instead of blocking callers. */
+    public void testReconnectHangs() throws Exception {
+        SlowCard slow = new SlowCard("slow 2");
+        WatchdogSmartcard card = new WatchdogSmartcard(slow, 200);
+        card.setQuarantineMillis(0);
+        try {
+            card.transmith("00ff0000");
+            fail("expected timeout");
+        } catch (SmartcardTimeoutException e) {
+            // expected
+        }
+        slow.hangOnReconnect = true;
+        long start = System.nanoTime();
+        try {
+            card.transmith("00000000");
+            fail("expected timeout in reconnect");
+        } catch (SmartcardTimeoutException e) {
+            // expected
+        }
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+        assertEquals(1, slow.reconnects);
+
+        // reader recovers, reconnect is tried again before next command
+        slow.hangOnReconnect = false;
+        assertEquals("9000", card.transmith("00000000"));
+        assertEquals(2, slow.reconnects);
+        assertEquals(2, card.getTimeoutCount());
+    }
+}